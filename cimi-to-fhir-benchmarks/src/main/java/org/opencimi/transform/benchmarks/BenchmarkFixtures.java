@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencimi.transform.translator.fhir.FhirLogicalProfileGenerator;
+import org.openehr.bmm.core.BmmModel;
+import org.openehr.bmm.persistence.PersistedBmmSchema;
+
+/**
+ * Inputs shared by the benchmarks: the ballot_may_2017 BMM files and the
+ * transformations bundled with the resource profile generator.
+ */
+final class BenchmarkFixtures {
+
+    static final String BASE_URL = "http://opencimi.org/logical-model/fhir";
+    static final String TRANSFORMATIONS = "/mapping/maps/CimiTransformations.xml";
+    static final String COLORECTAL_MAP = "/mapping/maps/colorectal.map";
+    static final String COLORECTAL_PROFILE = "/mapping/logical/structuredefinition-colorectal.json";
+
+    private static final String[] BALLOT_SCHEMAS = {
+        "/bmm/ballot_may_2017/CIMI_RM_CORE.v.0.0.2.bmm",
+        "/bmm/ballot_may_2017/CIMI_RM_FOUNDATION.v.0.0.2.bmm",
+        "/bmm/ballot_may_2017/CIMI_RM_CLINICAL.v.0.0.2.bmm"
+    };
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * The schemas are read into memory once so that the benchmarks measure
+     * parsing and not class path access.
+     */
+    static List<byte[]> readBallotSchemas() throws IOException {
+        List<byte[]> schemas = new ArrayList<>();
+        for (String schema : BALLOT_SCHEMAS) {
+            schemas.add(readResource(schema));
+        }
+        return schemas;
+    }
+
+    static List<InputStream> toStreams(List<byte[]> contents) {
+        List<InputStream> streams = new ArrayList<>();
+        contents.forEach(content -> streams.add(new ByteArrayInputStream(content)));
+        return streams;
+    }
+
+    static BmmModel loadBallotModel() throws IOException {
+        PersistedBmmSchema schema = new FhirLogicalProfileGenerator(BASE_URL).deserializeSchemas(toStreams(readBallotSchemas()));
+        schema.createBmmSchema();
+        return schema.getBmmModel();
+    }
+
+    static byte[] readResource(String resource) throws IOException {
+        try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Resource not found: " + resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
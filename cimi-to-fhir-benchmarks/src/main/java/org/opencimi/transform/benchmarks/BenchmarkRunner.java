@@ -0,0 +1,168 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the pipeline benchmarks with the GC profiler and keeps a baseline of
+ * the average time and of the normalized allocation rate of every benchmark.
+ * 
+ * Arguments:
+ * <ul>
+ * <li>--include &lt;regex&gt;: the benchmarks to run, all of them by default</li>
+ * <li>--save &lt;file&gt;: stores the results as the new baseline</li>
+ * <li>--compare &lt;file&gt;: compares the results with a stored baseline and
+ * exits with status 1 if any benchmark regressed</li>
+ * <li>--threshold &lt;percent&gt;: tolerated slowdown or allocation increase,
+ * 10 by default</li>
+ * </ul>
+ * 
+ * Baselines are only meaningful when they are compared on the machine and JVM
+ * where they were recorded.
+ */
+public class BenchmarkRunner {
+
+    private static final String SCORE_SUFFIX = ".score";
+    private static final String ALLOCATION_SUFFIX = ".alloc";
+    private static final String ALLOCATION_RESULT = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        String include = BenchmarkRunner.class.getPackage().getName() + ".*Benchmark.*";
+        Path save = null;
+        Path compare = null;
+        double threshold = 10;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--include":
+                    include = args[++i];
+                    break;
+                case "--save":
+                    save = Paths.get(args[++i]);
+                    break;
+                case "--compare":
+                    compare = Paths.get(args[++i]);
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    System.out.println("Unknown argument " + args[i]);
+                    System.out.println("Usage: BenchmarkRunner [--include <regex>] [--save <file>] [--compare <file>] [--threshold <percent>]");
+                    System.exit(2);
+            }
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .include(include)
+            .addProfiler(GCProfiler.class);
+        Collection<RunResult> results = new Runner(options.build()).run();
+        Properties current = toProperties(results);
+
+        boolean regressed = false;
+        if (compare != null) {
+            regressed = compare(load(compare), current, threshold);
+        }
+        if (save != null) {
+            try (OutputStream out = Files.newOutputStream(save)) {
+                current.store(out, "CIMI-to-FHIR benchmark baseline");
+            }
+            System.out.println("Baseline saved to " + save);
+        }
+        if (regressed) {
+            System.exit(1);
+        }
+    }
+
+    static Properties toProperties(Collection<RunResult> results) {
+        Properties properties = new Properties();
+        for (RunResult result : results) {
+            String label = getLabel(result.getParams());
+            properties.setProperty(label + SCORE_SUFFIX, Double.toString(result.getPrimaryResult().getScore()));
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                //The GC profiler prefixes its result names
+                if (secondary.getKey().endsWith(ALLOCATION_RESULT)) {
+                    properties.setProperty(label + ALLOCATION_SUFFIX, Double.toString(secondary.getValue().getScore()));
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return true if any benchmark is slower, or allocates more, than the
+     * baseline by more than the threshold
+     */
+    static boolean compare(Properties baseline, Properties current, double threshold) {
+        boolean regressed = false;
+        Map<String, String> sorted = new TreeMap<>();
+        current.stringPropertyNames().forEach(key -> sorted.put(key, current.getProperty(key)));
+        System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            String previous = baseline.getProperty(entry.getKey());
+            if (previous == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s", entry.getKey(), "-", Double.parseDouble(entry.getValue()), "new"));
+                continue;
+            }
+            double before = Double.parseDouble(previous);
+            double after = Double.parseDouble(entry.getValue());
+            double change = before == 0 ? 0 : (after - before) * 100 / before;
+            boolean isRegression = change > threshold;
+            regressed |= isRegression;
+            System.out.println(String.format("%-70s %14.3f %14.3f %8.1f%%%s", entry.getKey(), before, after, change, isRegression ? " REGRESSION" : ""));
+        }
+        return regressed;
+    }
+
+    private static Properties load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static String getLabel(BenchmarkParams params) {
+        String benchmark = params.getBenchmark();
+        StringBuilder label = new StringBuilder(benchmark.substring(BenchmarkRunner.class.getPackage().getName().length() + 1));
+        for (String key : params.getParamsKeys()) {
+            label.append('[').append(key).append('=').append(params.getParam(key)).append(']');
+        }
+        return label.toString();
+    }
+}
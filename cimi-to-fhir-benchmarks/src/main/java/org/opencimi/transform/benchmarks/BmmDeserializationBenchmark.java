@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opencimi.transform.translator.fhir.FhirLogicalProfileGenerator;
+import org.openehr.bmm.core.BmmModel;
+import org.openehr.bmm.persistence.PersistedBmmSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ODIN parsing, BMM deserialization and model creation of the three ballot
+ * schemas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BmmDeserializationBenchmark {
+
+    private List<byte[]> schemas;
+    private FhirLogicalProfileGenerator generator;
+
+    @Setup
+    public void setUp() throws IOException {
+        schemas = BenchmarkFixtures.readBallotSchemas();
+        generator = new FhirLogicalProfileGenerator(BenchmarkFixtures.BASE_URL);
+    }
+
+    @Benchmark
+    public PersistedBmmSchema deserializeSchemas() {
+        return generator.deserializeSchemas(BenchmarkFixtures.toStreams(schemas));
+    }
+
+    @Benchmark
+    public BmmModel createBmmModel() {
+        PersistedBmmSchema schema = generator.deserializeSchemas(BenchmarkFixtures.toStreams(schemas));
+        schema.createBmmSchema();
+        return schema.getBmmModel();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r4.utils.StructureMapUtilities;
+import org.hl7.fhir.r4.utils.transform.BatchContext;
+import org.hl7.fhir.r4.utils.transform.FhirTransformationEngine;
+import org.opencimi.transform.fhir.CimiToFhirTranslator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Analysis of the colorectal StructureMap against the colorectal logical
+ * model. The engine, with the core definitions, is built once; each
+ * invocation analyses the map with a fresh BatchContext, as the translator
+ * does for every map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformationAnalysisBenchmark {
+
+    private FhirTransformationEngine engine;
+    private StructureMap map;
+
+    @Setup
+    public void setUp() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4();
+        String colorectal = new String(BenchmarkFixtures.readResource(BenchmarkFixtures.COLORECTAL_PROFILE), StandardCharsets.UTF_8);
+        PrePopulatedValidationSupport validationSupport = new PrePopulatedValidationSupport();
+        validationSupport.addStructureDefinition(fhirContext.newJsonParser().parseResource(StructureDefinition.class, colorectal));
+
+        Map<String, StructureMap> maps = new HashMap<>();
+        engine = CimiToFhirTranslator.configureTransformationEngine(fhirContext, maps, validationSupport);
+        StructureMapUtilities mapUtilities = new StructureMapUtilities(new HapiWorkerContext(fhirContext, validationSupport), maps, null, null);
+        String mapText = new String(BenchmarkFixtures.readResource(BenchmarkFixtures.COLORECTAL_MAP), StandardCharsets.UTF_8);
+        map = mapUtilities.parse(mapText);
+        maps.put(map.getUrl(), map);
+    }
+
+    @Benchmark
+    public List<StructureDefinition> analyse() throws Exception {
+        BatchContext context = new BatchContext();
+        context.setBaseGeneratedProfileUrl("http://opencimi.org/logical-model/fhir/");
+        return engine.analyse(context, null, map).getProfiles();
+    }
+}
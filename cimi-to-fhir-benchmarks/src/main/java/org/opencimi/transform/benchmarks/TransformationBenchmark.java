@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.fhir.ConversionHandlerRegistry;
+import org.opencimi.transform.fhir.StructureMapFactory;
+import org.opencimi.transform.parser.TransformationDeserializer;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the bundled CIMI transformations and turning them into
+ * StructureMaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformationBenchmark {
+
+    private List<ModelTransform> transformations;
+
+    @Setup
+    public void setUp() {
+        transformations = new TransformationDeserializer().loadFromClassPath(BenchmarkFixtures.TRANSFORMATIONS);
+    }
+
+    @Benchmark
+    public List<ModelTransform> loadFromClassPath() {
+        return new TransformationDeserializer().loadFromClassPath(BenchmarkFixtures.TRANSFORMATIONS);
+    }
+
+    /**
+     * Compiles and builds every map from scratch.
+     */
+    @Benchmark
+    public List<StructureMap> buildStructureMaps() {
+        StructureMapFactory factory = new StructureMapFactory(ConversionHandlerRegistry.createDefault());
+        List<StructureMap> maps = new ArrayList<>();
+        for (ModelTransform transformation : transformations) {
+            maps.add(factory.toStructureMap(transformation, PipelineMetrics.NOOP));
+        }
+        return maps;
+    }
+
+    /**
+     * Every map comes from the cache of the default factory.
+     */
+    @Benchmark
+    public List<StructureMap> buildCachedStructureMaps() {
+        List<StructureMap> maps = new ArrayList<>();
+        for (ModelTransform transformation : transformations) {
+            maps.add(StructureMapFactory.build(transformation));
+        }
+        return maps;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.opencimi.transform.tools.CimiTransformHelper;
+import org.opencimi.transform.utils.metrics.InMemoryPipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local HTTP front end of {@link CimiToFhirService}, on the JDK's embedded
+ * server. It only listens on the loopback interface.
+ * <ul>
+ * <li><code>POST /translate</code>: a CIMI instance as JSON, answered with
+ * the FHIR resources it was transformed into</li>
+ * <li><code>GET /logical-profile?class=NAME</code>, or <code>POST</code> with
+ * the class name as body: the logical profile of a class of the configured
+ * model</li>
+ * <li><code>GET /profiles?url=URL</code>: a generated logical or resource
+ * profile</li>
+ * <li><code>GET /metrics</code>: the metrics report, with a latency
+ * distribution per endpoint</li>
+ * </ul>
+ * Request bodies larger than the configured limit are rejected with 413
+ * without being read. Requests run on virtual threads when the JVM has them,
+ * otherwise on a fixed pool.
+ */
+public class CimiToFhirHttpServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CimiToFhirHttpServer.class);
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+    public static final String PORT_OPTION = "--port";
+    public static final String MAX_REQUEST_BYTES_OPTION = "--max-request-bytes";
+    public static final String FHIR_JSON = "application/fhir+json; charset=UTF-8";
+
+    private final CimiToFhirService service;
+    private final InMemoryPipelineMetrics metrics;
+    private final int maxRequestBytes;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public CimiToFhirHttpServer(CimiToFhirService service, InMemoryPipelineMetrics metrics, int port, int maxRequestBytes) throws IOException {
+        this.service = service;
+        this.metrics = metrics;
+        this.maxRequestBytes = maxRequestBytes;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = createExecutor();
+        server.setExecutor(executor);
+        server.createContext("/translate", new Endpoint("translate", this::translate));
+        server.createContext("/logical-profile", new Endpoint("logical-profile", this::logicalProfile));
+        server.createContext("/profiles", new Endpoint("profiles", this::profiles));
+        server.createContext("/metrics", new Endpoint("metrics", this::metrics));
+    }
+
+    /**
+     * Usage: <code>[--port n] [--max-request-bytes n] &lt;config.xml&gt;</code>
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+        String configFilePath = null;
+        for (int i = 0; i < args.length; i++) {
+            if (PORT_OPTION.equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (MAX_REQUEST_BYTES_OPTION.equals(args[i]) && i + 1 < args.length) {
+                maxRequestBytes = Integer.parseInt(args[++i]);
+            } else {
+                configFilePath = args[i];
+            }
+        }
+        if (configFilePath == null) {
+            System.out.println("Usage: CimiToFhirHttpServer [" + PORT_OPTION + " n] [" + MAX_REQUEST_BYTES_OPTION + " n] <config.xml>");
+            System.exit(2);
+        }
+        InMemoryPipelineMetrics metrics = new InMemoryPipelineMetrics(0);
+        CimiToFhirService service = CimiToFhirService.create(new CimiTransformHelper(configFilePath), metrics);
+        CimiToFhirHttpServer server = new CimiToFhirHttpServer(service, metrics, port, maxRequestBytes);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+        System.out.println("CIMI to FHIR service listening on port " + server.getPort());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Uses <code>Executors.newVirtualThreadPerTaskExecutor()</code> through
+     * reflection, so the module still builds and runs on Java 8.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOG.info("Serving requests on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+            LOG.info("Virtual threads are not available, serving requests on " + threads + " threads");
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private Response translate(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            return Response.error(405, "Use POST");
+        }
+        return Response.resource(200, service.translate(readBody(exchange)));
+    }
+
+    private Response logicalProfile(HttpExchange exchange) throws IOException {
+        String className;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            className = readBody(exchange).trim();
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            className = getQueryParameters(exchange).get("class");
+        } else {
+            return Response.error(405, "Use GET or POST");
+        }
+        if (className == null || className.isEmpty()) {
+            return Response.error(400, "No class name");
+        }
+        StructureDefinition profile = service.getLogicalProfile(className);
+        return profile == null ? Response.error(404, "No logical profile for class " + className) : Response.resource(200, profile);
+    }
+
+    private Response profiles(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            return Response.error(405, "Use GET");
+        }
+        String url = getQueryParameters(exchange).get("url");
+        if (url == null) {
+            return Response.error(400, "No url parameter");
+        }
+        StructureDefinition profile = service.getProfile(url);
+        return profile == null ? Response.error(404, "No profile with URL " + url) : Response.resource(200, profile);
+    }
+
+    private Response metrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            return Response.error(405, "Use GET");
+        }
+        return new Response(200, "application/json; charset=UTF-8", metrics.getReport(), null);
+    }
+
+    /**
+     * Reads the body, up to the size limit.
+     *
+     * @throws RequestTooLargeException when the body is over the limit
+     */
+    private String readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length.trim()) > maxRequestBytes) {
+            throw new RequestTooLargeException();
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (body.size() + read > maxRequestBytes) {
+                    throw new RequestTooLargeException();
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> getQueryParameters(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    @FunctionalInterface
+    private interface RequestHandler {
+
+        Response handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Maps failures to status codes and records the latency of every
+     * request, in microseconds, in the <code>http.NAME.latency.micros</code>
+     * distribution.
+     */
+    private class Endpoint implements HttpHandler {
+
+        private final String name;
+        private final RequestHandler handler;
+
+        private Endpoint(String name, RequestHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            Response response;
+            try {
+                response = handler.handle(exchange);
+            } catch (RequestTooLargeException e) {
+                response = Response.error(413, "Request bodies are limited to " + maxRequestBytes + " bytes");
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                response = Response.error(400, e.getMessage());
+            } catch (RuntimeException e) {
+                LOG.error("Error handling " + exchange.getRequestURI(), e);
+                response = Response.error(500, e.getMessage());
+            }
+            try {
+                response.send(exchange, service);
+            } finally {
+                exchange.close();
+                metrics.increment("http." + name + ".status." + response.status);
+                metrics.record("http." + name + ".latency.micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        }
+    }
+
+    private static final class Response {
+
+        private final int status;
+        private final String contentType;
+        private final String text;
+        private final Resource resource;
+
+        private Response(int status, String contentType, String text, Resource resource) {
+            this.status = status;
+            this.contentType = contentType;
+            this.text = text;
+            this.resource = resource;
+        }
+
+        private static Response resource(int status, Resource resource) {
+            return new Response(status, FHIR_JSON, null, resource);
+        }
+
+        private static Response error(int status, String message) {
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(status == 413 ? OperationOutcome.IssueType.TOOLONG : OperationOutcome.IssueType.PROCESSING)
+                .setDiagnostics(message);
+            return resource(status, outcome);
+        }
+
+        private void send(HttpExchange exchange, CimiToFhirService service) throws IOException {
+            String body = resource == null ? text : service.newJsonParser().encodeResourceToString(resource);
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static final class RequestTooLargeException extends IOException {
+    }
+}
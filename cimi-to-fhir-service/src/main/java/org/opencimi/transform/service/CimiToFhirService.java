@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.Type;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.fhir.CimiToFhirTranslator;
+import org.opencimi.transform.fhir.LogicalProfileIndex;
+import org.opencimi.transform.runtime.CimiInstanceJsonParser;
+import org.opencimi.transform.runtime.CimiToFhirTransformer;
+import org.opencimi.transform.runtime.TransformationResult;
+import org.opencimi.transform.tools.CimiTransformHelper;
+import org.opencimi.transform.translator.fhir.FhirLogicalProfileGenerator;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+
+/**
+ * The operations of {@link CimiToFhirHttpServer}, independent of HTTP.
+ * <p>
+ * Everything expensive is done once, when the service is created: the
+ * model is loaded, the logical and resource profiles are generated and the
+ * transformations are compiled.
+ * Requests then only read that state, from any number of threads.
+ */
+public class CimiToFhirService {
+
+    private final FhirContext fhirContext;
+    private final CimiToFhirTransformer transformer;
+    private final CimiInstanceJsonParser instanceParser = new CimiInstanceJsonParser();
+    private final LogicalProfileIndex logicalProfiles;
+    private final Map<String, StructureDefinition> resourceProfilesByUrl = new HashMap<>();
+
+    public CimiToFhirService(FhirContext fhirContext, List<ModelTransform> transforms, Collection<StructureDefinition> profiles) {
+        this(fhirContext, transforms,
+                LogicalProfileIndex.of(fhirContext, profiles.stream().filter(CimiToFhirService::isLogical).collect(Collectors.toList())),
+                profiles.stream().filter(profile -> !isLogical(profile)).collect(Collectors.toList()));
+    }
+
+    /**
+     * @param fhirContext
+     * @param transforms
+     * @param logicalProfiles the logical profiles, which are decoded when
+     * they are requested rather than kept
+     * @param resourceProfiles
+     */
+    public CimiToFhirService(FhirContext fhirContext, List<ModelTransform> transforms, LogicalProfileIndex logicalProfiles, Collection<StructureDefinition> resourceProfiles) {
+        this.fhirContext = fhirContext;
+        this.transformer = new CimiToFhirTransformer(fhirContext, transforms);
+        this.logicalProfiles = logicalProfiles;
+        resourceProfiles.forEach(profile -> resourceProfilesByUrl.put(profile.getUrl(), profile));
+    }
+
+    private static boolean isLogical(StructureDefinition profile) {
+        return profile.getKind() == StructureDefinition.StructureDefinitionKind.LOGICAL;
+    }
+
+    /**
+     * Runs the whole translation of the helper's configuration and keeps its
+     * results.
+     *
+     * @param helper
+     * @param metrics
+     * @return
+     * @throws IOException
+     */
+    public static CimiToFhirService create(CimiTransformHelper helper, PipelineMetrics metrics) throws IOException {
+        helper.initialize();
+        FhirLogicalProfileGenerator logicalProfileGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir", helper.getConfig().getParallelism(), helper.createTypeIndex());
+        CimiToFhirTranslator translator = new CimiToFhirTranslator(helper, logicalProfileGenerator);
+        translator.setMetrics(metrics);
+        translator.initialize();
+        translator.generateFhirResourceProfiles();
+        return new CimiToFhirService(helper.getFhirContext(), translator.getTransformations(), translator.getLogicalProfiles(), translator.getResourceProfiles());
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    /**
+     * @param cimiInstanceJson a CIMI instance, as read by
+     * {@link CimiInstanceJsonParser}
+     * @return a collection bundle with the resource the instance was
+     * transformed into, followed by the resources created for its references,
+     * or a parameters resource with a single <code>result</code> when the
+     * instance was transformed into a data type. Referenced resources get a
+     * <code>urn:uuid</code> full URL, which the references between the
+     * resources of the bundle point to.
+     * @throws IllegalArgumentException if the instance cannot be read or
+     * transformed
+     * @throws IllegalStateException if there is no transformation for the
+     * instance's class
+     */
+    public Resource translate(String cimiInstanceJson) {
+        TransformationResult result = transformer.transform(instanceParser.parse(cimiInstanceJson));
+        Base target = result.getTarget();
+        if (!(target instanceof Resource)) {
+            Parameters parameters = new Parameters();
+            parameters.addParameter().setName("result").setValue((Type) target);
+            return parameters;
+        }
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        bundle.addEntry().setResource((Resource) target);
+        Map<String, String> fullUrls = new HashMap<>();
+        for (Resource resource : result.getReferencedResources()) {
+            String fullUrl = "urn:uuid:" + resource.getIdElement().getIdPart();
+            fullUrls.put(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), fullUrl);
+            bundle.addEntry().setFullUrl(fullUrl).setResource(resource);
+        }
+        //The transformer references resources by type and id, which only
+        //resolve within a bundle through the full URLs of its entries
+        if (!fullUrls.isEmpty()) {
+            FhirTerser terser = fhirContext.newTerser();
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                for (Reference reference : terser.getAllPopulatedChildElementsOfType(entry.getResource(), Reference.class)) {
+                    String fullUrl = fullUrls.get(reference.getReference());
+                    if (fullUrl != null) {
+                        reference.setReference(fullUrl);
+                    }
+                }
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * @param className a class of the configured model
+     * @return its logical profile, or null
+     */
+    public StructureDefinition getLogicalProfile(String className) {
+        String url = logicalProfiles.getUrl(className);
+        return url == null ? null : logicalProfiles.getProfile(url);
+    }
+
+    /**
+     * @param url
+     * @return the logical or resource profile with the URL, or null
+     */
+    public StructureDefinition getProfile(String url) {
+        StructureDefinition profile = resourceProfilesByUrl.get(url);
+        return profile != null ? profile : logicalProfiles.getProfile(url);
+    }
+
+    /**
+     * @return a new JSON parser. Parsers are not thread safe, the context is.
+     */
+    public IParser newJsonParser() {
+        return fhirContext.newJsonParser();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencimi.transform.parser.TransformationDeserializer;
+import org.opencimi.transform.utils.metrics.InMemoryPipelineMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CimiToFhirHttpServerTest {
+
+    private static final String CODED_TEXT_URL = "http://opencimi.org/logical-model/fhir/CODED_TEXT";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final InMemoryPipelineMetrics metrics = new InMemoryPipelineMetrics(0);
+    private CimiToFhirHttpServer server;
+
+    @Before
+    public void start() throws IOException {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setUrl(CODED_TEXT_URL);
+        profile.setName("CODED_TEXT");
+        profile.setTitle("CODED_TEXT");
+        profile.setKind(StructureDefinition.StructureDefinitionKind.LOGICAL);
+        CimiToFhirService service = new CimiToFhirService(fhirContext,
+                new TransformationDeserializer().loadFromClassPath("/mapping/maps/CimiTransformations.xml"),
+                Collections.singletonList(profile));
+        server = new CimiToFhirHttpServer(service, metrics, 0, 256);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void instancesAreTranslated() throws IOException {
+        HttpURLConnection connection = post("/translate", "{\"cimiType\": \"CODED_TEXT\", \"code\": \"1049630\"}");
+        assertEquals(200, connection.getResponseCode());
+        Parameters parameters = fhirContext.newJsonParser().parseResource(Parameters.class, read(connection.getInputStream()));
+        assertEquals("1049630", ((Coding) parameters.getParameterFirstRep().getValue()).getCode());
+
+        assertEquals(400, post("/translate", "{\"cimiType\": \"PARTY\"}").getResponseCode());
+        assertTrue(metrics.getReport().contains("\"http.translate.latency.micros\""));
+    }
+
+    @Test
+    public void profilesAreFoundByUrlAndClass() throws IOException {
+        assertEquals(200, get("/profiles?url=" + URLEncoder.encode(CODED_TEXT_URL, "UTF-8")).getResponseCode());
+        assertEquals(404, get("/profiles?url=" + URLEncoder.encode(CODED_TEXT_URL + "X", "UTF-8")).getResponseCode());
+        HttpURLConnection connection = get("/logical-profile?class=CODED_TEXT");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(CODED_TEXT_URL, fhirContext.newJsonParser().parseResource(StructureDefinition.class, read(connection.getInputStream())).getUrl());
+    }
+
+    @Test
+    public void oversizedRequestsAreRejected() throws IOException {
+        StringBuilder body = new StringBuilder("{\"cimiType\": \"CODED_TEXT\", \"code\": \"");
+        for (int i = 0; i < 300; i++) {
+            body.append('x');
+        }
+        body.append("\"}");
+        assertEquals(413, post("/translate", body.toString()).getResponseCode());
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+    }
+
+    private HttpURLConnection post(String path, String body) throws IOException {
+        HttpURLConnection connection = get(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.opencimi.transform.parser.TransformationDeserializer;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CimiToFhirServiceTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final CimiToFhirService service = new CimiToFhirService(fhirContext,
+            new TransformationDeserializer().loadFromClassPath("/mapping/ReferenceTransformations.xml"),
+            Collections.emptyList());
+
+    @Test
+    public void referencesResolveWithinTheBundle() {
+        Resource translated = service.translate("{\"cimiType\": \"MedicationOrderStatement\", \"encounter\": {\"cimiType\": \"Encounter\", \"language\": \"en\"}}");
+
+        //Resolved as a client would, after a round trip through JSON
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, fhirContext.newJsonParser().encodeResourceToString(translated));
+        assertEquals(2, bundle.getEntry().size());
+        MedicationRequest request = (MedicationRequest) bundle.getEntry().get(0).getResource();
+        String reference = request.getContext().getReference();
+        Bundle.BundleEntryComponent referenced = null;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (reference.equals(entry.getFullUrl())) {
+                referenced = entry;
+            }
+        }
+        assertNotNull("No entry for " + reference, referenced);
+        assertEquals("urn:uuid:" + referenced.getResource().getIdElement().getIdPart(), reference);
+        assertEquals("en", ((Encounter) referenced.getResource()).getLanguage());
+    }
+}
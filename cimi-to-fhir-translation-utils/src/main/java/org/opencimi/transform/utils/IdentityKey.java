@@ -0,0 +1,53 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils;
+
+/**
+ * Map key comparing the wrapped instance by identity, for caches keyed by
+ * model objects whose equals and hashCode are either not defined or more
+ * expensive than the cached computation.
+ * 
+ * @param <T> 
+ */
+public final class IdentityKey<T> {
+
+    private final T instance;
+    private final int hash;
+
+    public IdentityKey(T instance) {
+        this.instance = instance;
+        this.hash = System.identityHashCode(instance);
+    }
+
+    public T get() {
+        return instance;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof IdentityKey && ((IdentityKey<?>) other).instance == instance;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -20,55 +20,120 @@
  */
 package org.opencimi.transform.utils.fhir;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.hl7.fhir.r4.model.StructureDefinition;
 import org.openehr.bmm.core.BmmClass;
-import org.openehr.bmm.core.BmmContainerType;
-import org.openehr.bmm.core.BmmGenericType;
-import org.openehr.bmm.core.BmmOpenType;
 import org.openehr.bmm.core.BmmType;
 
 /**
- *
+ * Maps CIMI types to FHIR types and indexes the logical profiles generated
+ * for CIMI classes.
+ * 
+ * Profiles are referenced through {@link LogicalProfileSummary summaries},
+ * which is all profile generation needs about other profiles. The profiles
+ * themselves are never kept.
+ * 
+ * The core type mappings are read from
+ * <code>cimi-to-fhir-type-mappings.properties</code>; additional mappings can
+ * be loaded from a file of the same format with
+ * {@link #loadTypeMappings(java.nio.file.Path)}. The type name of a
+ * {@link BmmType} instance is computed once and cached by identity; looking
+ * up a cached name, or checking whether a class name is excluded, does not
+ * allocate.
+ * 
  * @author esteban
  */
 public class CimiToFhirTypeIndex {
     
-    private final Map<String, String> cimiToFhirMappings = new HashMap<>();
-    private final Map<String, String> fhirToCimiMappings = new HashMap<>();
-    private final Map<String, StructureDefinition> cimiToStructureDefinitionMappings = new LinkedHashMap<>();
+    public static final String DEFAULT_TYPE_MAPPINGS = "/cimi-to-fhir-type-mappings.properties";
+    
+    //Compared ignoring case, so class names don't need to be lower cased
+    private static final Set<String> EXCLUDED_CLASSES = Collections.unmodifiableSet(caseInsensitiveSet(
+        "any",
+        "array",
+        "list",
+        "byte",
+        "integer",
+        "unsigned_integer_count",
+        "character",
+        "boolean",
+        "date",
+        "positive_integer_count",
+        "instant",
+        "real",
+        "string",
+        "count",
+        "date_time",
+        "time",
+        "uri_value",
+        "uri"
+    ));
+    
+    private final Map<String, String> cimiToFhirMappings = new ConcurrentHashMap<>();
+    private final Map<String, String> fhirToCimiMappings = new ConcurrentHashMap<>();
+    //Written concurrently when logical profiles are generated in parallel
+    private final Map<String, LogicalProfileSummary> cimiToProfileSummaries = new ConcurrentHashMap<>();
+    //Copied on write and never modified once published, so lookups need no lock
+    private volatile Map<BmmType, String> typeNames = new IdentityHashMap<>();
 
     public CimiToFhirTypeIndex() {
-        
-        //Primitive Types
-        addCoreTypeMapping("Any", "Element");
-        addCoreTypeMapping("Boolean", "boolean");
-        addCoreTypeMapping("Byte", "integer"); //TDB
-        addCoreTypeMapping("Character", "integer");
-        addCoreTypeMapping("Count", "integer");
-        addCoreTypeMapping("DATE", "date");
-        addCoreTypeMapping("DATE_TIME", "dateTime");
-        addCoreTypeMapping("INSTANT", "instant");
-        addCoreTypeMapping("Integer", "integer");
-        addCoreTypeMapping("POSITIVE_INTEGER_COUNT", "positiveInt");
-        addCoreTypeMapping("Real", "decimal");
-        addCoreTypeMapping("String", "string");
-        addCoreTypeMapping("TIME", "time");
-        addCoreTypeMapping("UNSIGNED_INTEGER_COUNT", "integer");
-        addCoreTypeMapping("URI", "uri");
-        addCoreTypeMapping("URI_VALUE", "uri");
-        
-        //Generic types
-        addCoreTypeMapping("INTERVAL_VALUE<DATE>", "Period");
-        addCoreTypeMapping("INTERVAL_VALUE<DATE_TIME>", "Period");
-        addCoreTypeMapping("INTERVAL_VALUE<QUANTITY>", "Range");
-        
-        //Complex Types
-        addCoreTypeMapping("CODED_TEXT", "CodeableConcept");
+        try (InputStream in = CimiToFhirTypeIndex.class.getResourceAsStream(DEFAULT_TYPE_MAPPINGS)) {
+            if (in == null) {
+                throw new IllegalStateException("Type mappings not found: " + DEFAULT_TYPE_MAPPINGS);
+            }
+            loadTypeMappings(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error loading type mappings " + DEFAULT_TYPE_MAPPINGS, e);
+        }
+    }
+    
+    /**
+     * Adds the mappings of the file, in file order, to the mappings already
+     * known by this index. Each non-empty line that does not start with
+     * <code>#</code> holds a <code>CIMI type = FHIR type</code> mapping.
+     * 
+     * @param file
+     * @throws IOException 
+     */
+    public void loadTypeMappings(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            loadTypeMappings(in);
+        }
+    }
+    
+    public void loadTypeMappings(InputStream in) throws IOException {
+        //java.util.Properties would lose the order of the mappings
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.indexOf('=');
+            if (separator <= 0 || separator == line.length() - 1) {
+                throw new IllegalArgumentException("Invalid type mapping at line " + lineNumber + ": " + line);
+            }
+            addCoreTypeMapping(line.substring(0, separator).trim().intern(), line.substring(separator + 1).trim().intern());
+        }
     }
     
     /**
@@ -88,7 +153,33 @@ public class CimiToFhirTypeIndex {
     }
     
     public String getFhirType(BmmType cimiType) {
-        return cimiToFhirMappings.get(cimiType.getTypeName());
+        return cimiToFhirMappings.get(getTypeName(cimiType));
+    }
+    
+    /**
+     * Returns the type name of the given type instance. The name is computed
+     * only the first time an instance is looked up; types are immutable once
+     * the model is created. A model has a bounded number of type instances,
+     * so the cache is copied when a new one is added and later lookups read
+     * it without locking or allocating.
+     * 
+     * @param cimiType
+     * @return 
+     */
+    public String getTypeName(BmmType cimiType) {
+        String typeName = typeNames.get(cimiType);
+        return typeName != null ? typeName : addTypeName(cimiType);
+    }
+    
+    private synchronized String addTypeName(BmmType cimiType) {
+        String typeName = typeNames.get(cimiType);
+        if (typeName == null) {
+            typeName = cimiType.getTypeName().intern();
+            Map<BmmType, String> names = new IdentityHashMap<>(typeNames);
+            names.put(cimiType, typeName);
+            typeNames = names;
+        }
+        return typeName;
     }
     
     public String getCimiType(String fhirType) {
@@ -96,20 +187,31 @@ public class CimiToFhirTypeIndex {
     }
     
     /**
-     * This method indexes CIMI Types to the corresponding 
-     * {@link StructureDefinition FHIR Structure Definition}.
-     * Use only for CIMI classes that have no equivalent in the FHIR primitive
-     * and complex types.
+     * Indexes the summary of the logical profile of a CIMI type, unless the
+     * type already has one.
      * 
      * @param cimiType
-     * @param definition 
+     * @param summary
+     * @return the summary already indexed for the type, or null if the given
+     * summary was indexed
      */
-    public void addStructureDefinitionIndex(String cimiType, StructureDefinition definition){
-        cimiToStructureDefinitionMappings.put(cimiType, definition);
+    public LogicalProfileSummary addProfileSummaryIfAbsent(String cimiType, LogicalProfileSummary summary){
+        return cimiToProfileSummaries.putIfAbsent(cimiType, summary);
+    }
+    
+    public LogicalProfileSummary getProfileSummary(String cimiType){
+        return cimiToProfileSummaries.get(cimiType);
+    }
+    
+    public void clearProfileSummaries(){
+        cimiToProfileSummaries.clear();
     }
     
-    public StructureDefinition getStructureDefinition(String cimiType){
-        return cimiToStructureDefinitionMappings.get(cimiType);
+    /**
+     * Forgets the type names cached for the types of a previous model.
+     */
+    public synchronized void clearTypeNameCache(){
+        typeNames = new IdentityHashMap<>();
     }
     
     public boolean isExcludedType(BmmType cimiType){
@@ -117,26 +219,17 @@ public class CimiToFhirTypeIndex {
     }
     
     public boolean isExcludedClass(BmmClass cimiClass){
-        return Arrays.asList(new String[]{
-            "any",
-            "array",
-            "list",
-            "byte",
-            "integer",
-            "unsigned_integer_count",
-            "character",
-            "boolean",
-            "date",
-            "positive_integer_count",
-            "instant",
-            "real",
-            "string",
-            "count",
-            "date_time",
-            "time",
-            "uri_value",
-            "uri"
-        }).contains(cimiClass.getName().toLowerCase());
+        return isExcludedClassName(cimiClass.getName());
+    }
+    
+    public boolean isExcludedClassName(String cimiClassName){
+        return EXCLUDED_CLASSES.contains(cimiClassName);
+    }
+    
+    private static Set<String> caseInsensitiveSet(String... values) {
+        Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(Arrays.asList(values));
+        return set;
     }
     
 }
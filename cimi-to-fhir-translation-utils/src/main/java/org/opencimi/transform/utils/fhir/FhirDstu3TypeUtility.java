@@ -25,6 +25,9 @@ import java.util.*;
 /**
  * Utility class for assessing whether a given FHIR type subsumes or is subsumed by another FHIR type.
  *
+ * Types known to the {@link FhirTypeSubsumptionIndex} of the FHIR core definitions are checked against it. The
+ * hand-written table below, closed transitively, is only used for the others.
+ *
  * Created by cnanjo on 10/25/16.
  * TODO Handle type using FHIR Type enumeration or better yet, HAPI FHIR
  */
@@ -35,6 +38,7 @@ public class FhirDstu3TypeUtility {
     static {
         subsumptionTable = new HashMap<>();
         initializeSubsumptionTable();
+        closeSubsumptionTable();
     }
 
     /**
@@ -46,6 +50,10 @@ public class FhirDstu3TypeUtility {
      * @throws RuntimeException Error thrown if descendant or ancestor are not valid FHIR types
      */
     public static boolean isSubsumedBy(String descendant, String ancestor) throws RuntimeException {
+        FhirTypeSubsumptionIndex index = FhirTypeSubsumptionIndex.getR4();
+        if (index.contains(descendant) && index.contains(ancestor)) {
+            return index.isSubsumedBy(descendant, ancestor);
+        }
         boolean isSubsumed = false;
         List<String> ancestors = subsumptionTable.get(descendant);
         if(ancestors == null) {
@@ -125,6 +133,24 @@ public class FhirDstu3TypeUtility {
         subsumptionTable.put("Money", getAsList("Quantity"));
     }
 
+    /**
+     * Adds the ancestors of the ancestors of every type, so Age, listed under Quantity, is also subsumed by element.
+     */
+    private static void closeSubsumptionTable() {
+        for (List<String> ancestors : subsumptionTable.values()) {
+            for (int i = 0; i < ancestors.size(); i++) {
+                List<String> inherited = subsumptionTable.get(ancestors.get(i));
+                if (inherited != null) {
+                    for (String ancestor : inherited) {
+                        if (!ancestors.contains(ancestor)) {
+                            ancestors.add(ancestor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Helper method to convert a string array to an ArrayList
      *
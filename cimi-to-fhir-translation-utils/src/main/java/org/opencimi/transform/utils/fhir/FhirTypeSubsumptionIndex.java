@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.hl7.fhir.r4.hapi.ctx.DefaultProfileValidationSupport;
+import org.hl7.fhir.r4.model.StructureDefinition;
+
+/**
+ * Subsumption relation between FHIR types, computed from the
+ * <code>baseDefinition</code> chains of their StructureDefinitions.
+ * 
+ * Every type gets an integer id and a bit set holding the ids of all its
+ * ancestors, so the transitive closure is computed once and subsumption
+ * checks are two map lookups and a bit test. Types are identified by the last
+ * segment of their canonical URL (<code>string</code>, <code>Quantity</code>,
+ * <code>SimpleQuantity</code>...). Names that do not match exactly are looked
+ * up ignoring case, as long as that is not ambiguous.
+ * 
+ * Instances are immutable and safe for concurrent use.
+ */
+public final class FhirTypeSubsumptionIndex {
+
+    private static final int UNKNOWN = -1;
+    private static final int AMBIGUOUS = -2;
+
+    private final Map<String, Integer> ids;
+    private final Map<String, Integer> caseInsensitiveIds;
+    private final String[] names;
+    private final int[] parents;
+    private final int[] depths;
+    private final BitSet[] ancestors;
+
+    private static class R4Holder {
+        static final FhirTypeSubsumptionIndex INSTANCE = create();
+
+        private static FhirTypeSubsumptionIndex create() {
+            FhirContext context = FhirContext.forR4();
+            return build(new DefaultProfileValidationSupport().fetchAllStructureDefinitions(context));
+        }
+    }
+
+    private FhirTypeSubsumptionIndex(Map<String, String> baseTypes) {
+        int size = baseTypes.size();
+        ids = new HashMap<>(size * 2);
+        names = new String[size];
+        for (String name : baseTypes.keySet()) {
+            names[ids.size()] = name;
+            ids.put(name, ids.size());
+        }
+
+        caseInsensitiveIds = new HashMap<>(size * 2);
+        for (String name : names) {
+            caseInsensitiveIds.merge(name.toLowerCase(Locale.ROOT), ids.get(name), (first, second) -> AMBIGUOUS);
+        }
+
+        parents = new int[size];
+        for (int i = 0; i < size; i++) {
+            Integer parent = ids.get(baseTypes.get(names[i]));
+            parents[i] = parent == null ? UNKNOWN : parent;
+        }
+
+        depths = new int[size];
+        ancestors = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            computeAncestors(i, new BitSet(size));
+        }
+    }
+
+    private BitSet computeAncestors(int id, BitSet visiting) {
+        if (ancestors[id] != null) {
+            return ancestors[id];
+        }
+        BitSet result = new BitSet(names.length);
+        int parent = parents[id];
+        //A cycle in the definitions ends the chain instead of recursing forever
+        if (parent != UNKNOWN && !visiting.get(parent) && parent != id) {
+            visiting.set(id);
+            result.or(computeAncestors(parent, visiting));
+            result.set(parent);
+            depths[id] = depths[parent] + 1;
+        }
+        ancestors[id] = result;
+        return result;
+    }
+
+    /**
+     * @return the index of the FHIR R4 core types, built the first time it is
+     * requested
+     */
+    public static FhirTypeSubsumptionIndex getR4() {
+        return R4Holder.INSTANCE;
+    }
+
+    /**
+     * Builds an index from the given definitions. Extension definitions and
+     * constraints on resources are ignored; every other definition is a type
+     * whose parent is its base definition.
+     * 
+     * @param structureDefinitions
+     * @return 
+     */
+    public static FhirTypeSubsumptionIndex build(Collection<StructureDefinition> structureDefinitions) {
+        Map<String, String> baseTypes = new HashMap<>();
+        for (StructureDefinition structureDefinition : structureDefinitions) {
+            if (!isType(structureDefinition)) {
+                continue;
+            }
+            String baseDefinition = structureDefinition.getBaseDefinition();
+            baseTypes.put(getTypeName(structureDefinition.getUrl()), baseDefinition == null ? null : getTypeName(baseDefinition));
+        }
+        return new FhirTypeSubsumptionIndex(baseTypes);
+    }
+
+    private static boolean isType(StructureDefinition structureDefinition) {
+        if (structureDefinition.getUrl() == null || structureDefinition.getKind() == null) {
+            return false;
+        }
+        if (structureDefinition.getDerivation() != StructureDefinition.TypeDerivationRule.CONSTRAINT) {
+            return true;
+        }
+        //Constrained data types such as Age or SimpleQuantity are types too
+        return structureDefinition.getKind() != StructureDefinition.StructureDefinitionKind.RESOURCE
+                && !"Extension".equals(structureDefinition.getType());
+    }
+
+    private static String getTypeName(String url) {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    private int getId(String type) {
+        if (type == null) {
+            return UNKNOWN;
+        }
+        Integer id = ids.get(type);
+        if (id == null) {
+            id = caseInsensitiveIds.get(type.toLowerCase(Locale.ROOT));
+        }
+        return id == null || id == AMBIGUOUS ? UNKNOWN : id;
+    }
+
+    public boolean contains(String type) {
+        return getId(type) != UNKNOWN;
+    }
+
+    /**
+     * @param descendant
+     * @param ancestor
+     * @return true if ancestor is a proper ancestor of descendant. A type is
+     * not subsumed by itself, and unknown types are not subsumed by anything.
+     */
+    public boolean isSubsumedBy(String descendant, String ancestor) {
+        int descendantId = getId(descendant);
+        int ancestorId = getId(ancestor);
+        return descendantId != UNKNOWN && ancestorId != UNKNOWN && ancestors[descendantId].get(ancestorId);
+    }
+
+    public boolean subsumes(String ancestor, String descendant) {
+        return isSubsumedBy(descendant, ancestor);
+    }
+
+    /**
+     * @param type
+     * @return the ancestors of the type, nearest first
+     */
+    public List<String> getAncestors(String type) {
+        int id = getId(type);
+        if (id == UNKNOWN) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(depths[id]);
+        for (int parent = parents[id]; parent != UNKNOWN && result.size() < depths[id]; parent = parents[parent]) {
+            result.add(names[parent]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the most specific type that is, or subsumes, every one of the
+     * given types. For <code>Age</code> and <code>Count</code> that is
+     * <code>Quantity</code>; for <code>code</code> and <code>string</code> it
+     * is <code>string</code>.
+     * 
+     * @param types
+     * @return the common ancestor, or null if any type is unknown or the
+     * types share no ancestor
+     */
+    public String getCommonAncestor(Collection<String> types) {
+        BitSet common = null;
+        for (String type : types) {
+            int id = getId(type);
+            if (id == UNKNOWN) {
+                return null;
+            }
+            BitSet lineage = (BitSet) ancestors[id].clone();
+            lineage.set(id);
+            if (common == null) {
+                common = lineage;
+            } else {
+                common.and(lineage);
+            }
+        }
+        if (common == null) {
+            return null;
+        }
+        int deepest = UNKNOWN;
+        for (int id = common.nextSetBit(0); id >= 0; id = common.nextSetBit(id + 1)) {
+            if (deepest == UNKNOWN || depths[id] > depths[deepest]) {
+                deepest = id;
+            }
+        }
+        return deepest == UNKNOWN ? null : names[deepest];
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.fhir;
+
+/**
+ * What other profiles need to know about the logical profile of a CIMI
+ * class: its name and canonical URL. Summaries are kept for the whole run
+ * while the profiles themselves can be released as soon as they are written.
+ */
+public final class LogicalProfileSummary {
+
+    private final String name;
+    private final String url;
+    private final boolean isAbstract;
+
+    public LogicalProfileSummary(String name, String url, boolean isAbstract) {
+        this.name = name;
+        this.url = url;
+        this.isAbstract = isAbstract;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isAbstract() {
+        return isAbstract;
+    }
+}
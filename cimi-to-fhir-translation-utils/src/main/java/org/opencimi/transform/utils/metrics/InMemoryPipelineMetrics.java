@@ -0,0 +1,318 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps every metric in memory and reports them as JSON or through JMX.
+ * 
+ * Allocations are sampled with the per-thread allocation counters of the
+ * HotSpot ThreadMXBean: every <code>allocationSampleRate</code>-th timing
+ * also records the bytes allocated by its thread between start and close.
+ * Work a stage hands over to other threads is not included in its sample.
+ * Distributions keep power-of-two buckets, so their percentiles are upper
+ * bounds within a factor of two.
+ */
+public class InMemoryPipelineMetrics implements PipelineMetrics, PipelineMetricsMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "org.opencimi.transform:type=PipelineMetrics";
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final ConcurrentMap<String, TimerStatistics> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Distribution> distributions = new ConcurrentHashMap<>();
+    private final int allocationSampleRate;
+    private final com.sun.management.ThreadMXBean allocationBean;
+    private final AtomicLong timingCount = new AtomicLong();
+    private ObjectName registeredName;
+
+    private static class TimerStatistics {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder allocatedBytes = new LongAdder();
+        final LongAdder allocationSamples = new LongAdder();
+    }
+
+    private static class Distribution {
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        final AtomicLongArray buckets = new AtomicLongArray(65);
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+            buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        long percentile(double fraction) {
+            long total = count.sum();
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1), max.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    public InMemoryPipelineMetrics() {
+        this(1);
+    }
+
+    /**
+     * @param allocationSampleRate sample the allocations of one timing out of
+     * this many, 0 to disable allocation sampling
+     */
+    public InMemoryPipelineMetrics(int allocationSampleRate) {
+        this.allocationSampleRate = allocationSampleRate;
+        this.allocationBean = allocationSampleRate > 0 ? getAllocationBean() : null;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        if (!allocationBean.isThreadAllocatedMemoryEnabled()) {
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return allocationBean;
+    }
+
+    @Override
+    public Timing time(String name) {
+        TimerStatistics statistics = timers.computeIfAbsent(name, key -> new TimerStatistics());
+        long threadId = Thread.currentThread().getId();
+        boolean sampled = allocationBean != null && timingCount.getAndIncrement() % allocationSampleRate == 0;
+        long startBytes = sampled ? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        return () -> {
+            record(statistics, System.nanoTime() - start);
+            if (sampled) {
+                statistics.allocatedBytes.add(allocationBean.getThreadAllocatedBytes(threadId) - startBytes);
+                statistics.allocationSamples.increment();
+            }
+        };
+    }
+
+    @Override
+    public void recordTime(String name, long nanos) {
+        record(timers.computeIfAbsent(name, key -> new TimerStatistics()), nanos);
+    }
+
+    private void record(TimerStatistics statistics, long nanos) {
+        statistics.count.increment();
+        statistics.totalNanos.add(nanos);
+        statistics.maxNanos.accumulate(nanos);
+    }
+
+    @Override
+    public void increment(String name, long amount) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    @Override
+    public void record(String name, long value) {
+        distributions.computeIfAbsent(name, key -> new Distribution()).record(value);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return collect(counters, LongAdder::sum);
+    }
+
+    @Override
+    public Map<String, Long> getTimerCounts() {
+        return collect(timers, statistics -> statistics.count.sum());
+    }
+
+    @Override
+    public Map<String, Double> getTimerTotalMillis() {
+        return collect(timers, statistics -> statistics.totalNanos.sum() / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getTimerMaxMillis() {
+        return collect(timers, statistics -> statistics.maxNanos.get() / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Long> getTimerAllocatedBytes() {
+        return collect(timers, statistics -> statistics.allocatedBytes.sum());
+    }
+
+    @Override
+    public Map<String, Double> getDistributionMeans() {
+        return collect(distributions, distribution -> mean(distribution.sum.sum(), distribution.count.sum()));
+    }
+
+    @Override
+    public void reset() {
+        timers.clear();
+        counters.clear();
+        distributions.clear();
+    }
+
+    private static <T, R> SortedMap<String, R> collect(Map<String, T> metrics, Function<T, R> value) {
+        SortedMap<String, R> result = new TreeMap<>();
+        metrics.forEach((name, metric) -> result.put(name, value.apply(metric)));
+        return result;
+    }
+
+    private static double mean(long sum, long count) {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return every metric as a JSON document, sorted by name
+     */
+    @Override
+    public String getReport() {
+        StringBuilder json = new StringBuilder("{\n  \"timers\": {");
+        String separator = "\n";
+        for (Map.Entry<String, TimerStatistics> entry : new TreeMap<>(timers).entrySet()) {
+            TimerStatistics statistics = entry.getValue();
+            long count = statistics.count.sum();
+            long samples = statistics.allocationSamples.sum();
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {")
+                .append("\"count\": ").append(count)
+                .append(", \"totalMillis\": ").append(format(statistics.totalNanos.sum() / NANOS_PER_MILLI))
+                .append(", \"meanMillis\": ").append(format(mean(statistics.totalNanos.sum(), count) / NANOS_PER_MILLI))
+                .append(", \"maxMillis\": ").append(format(statistics.maxNanos.get() / NANOS_PER_MILLI))
+                .append(", \"allocationSamples\": ").append(samples)
+                .append(", \"meanAllocatedBytes\": ").append(format(mean(statistics.allocatedBytes.sum(), samples)))
+                .append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"distributions\": {");
+        separator = "\n";
+        for (Map.Entry<String, Distribution> entry : new TreeMap<>(distributions).entrySet()) {
+            Distribution distribution = entry.getValue();
+            long count = distribution.count.sum();
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {")
+                .append("\"count\": ").append(count)
+                .append(", \"min\": ").append(count == 0 ? 0 : distribution.min.get())
+                .append(", \"max\": ").append(count == 0 ? 0 : distribution.max.get())
+                .append(", \"mean\": ").append(format(mean(distribution.sum.sum(), count)))
+                .append(", \"p50\": ").append(distribution.percentile(0.5))
+                .append(", \"p95\": ").append(distribution.percentile(0.95))
+                .append(", \"p99\": ").append(distribution.percentile(0.99))
+                .append('}');
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    public void writeReport(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(getReport());
+        }
+    }
+
+    /**
+     * Registers this instance in the platform MBean server.
+     * 
+     * @param objectName
+     * @throws JMException 
+     */
+    public synchronized void registerMBean(String objectName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        registeredName = name;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (registeredName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            registeredName = null;
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.metrics;
+
+/**
+ * Collects timings, counters and value distributions of the translation
+ * pipeline. Stages are identified by dotted names such as
+ * <code>logical.generate</code> or <code>analyse.MedicationOrderMap</code>.
+ * 
+ * Implementations must be thread-safe. {@link #NOOP} discards everything and
+ * is what every component uses unless a collecting implementation is set.
+ */
+public interface PipelineMetrics {
+
+    PipelineMetrics NOOP = new PipelineMetrics() {
+        @Override
+        public Timing time(String name) {
+            return Timing.NOOP;
+        }
+
+        @Override
+        public void recordTime(String name, long nanos) {
+        }
+
+        @Override
+        public void increment(String name, long amount) {
+        }
+
+        @Override
+        public void record(String name, long value) {
+        }
+    };
+
+    /**
+     * Starts timing a stage on the current thread. The returned timing is
+     * meant to be used in a try-with-resources block.
+     * 
+     * @param name
+     * @return 
+     */
+    Timing time(String name);
+
+    /**
+     * Records an already measured duration of a stage.
+     * 
+     * @param name
+     * @param nanos 
+     */
+    void recordTime(String name, long nanos);
+
+    default void increment(String name) {
+        increment(name, 1);
+    }
+
+    void increment(String name, long amount);
+
+    /**
+     * Adds a value to the distribution with the given name.
+     * 
+     * @param name
+     * @param value 
+     */
+    void record(String name, long value);
+}
@@ -0,0 +1,45 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of an {@link InMemoryPipelineMetrics}.
+ */
+public interface PipelineMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getTimerCounts();
+
+    Map<String, Double> getTimerTotalMillis();
+
+    Map<String, Double> getTimerMaxMillis();
+
+    Map<String, Long> getTimerAllocatedBytes();
+
+    Map<String, Double> getDistributionMeans();
+
+    String getReport();
+
+    void reset();
+}
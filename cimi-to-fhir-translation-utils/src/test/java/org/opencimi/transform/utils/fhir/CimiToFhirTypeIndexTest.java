@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.fhir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CimiToFhirTypeIndexTest {
+
+    @Test
+    public void loadsDefaultMappings() throws Exception {
+        CimiToFhirTypeIndex index = new CimiToFhirTypeIndex();
+        assertEquals("CodeableConcept", index.getFhirType("CODED_TEXT"));
+        assertEquals("Period", index.getFhirType("INTERVAL_VALUE<DATE>"));
+        //The last mapping to a FHIR type wins
+        assertEquals("UNSIGNED_INTEGER_COUNT", index.getCimiType("integer"));
+        assertEquals("URI_VALUE", index.getCimiType("uri"));
+    }
+
+    @Test
+    public void loadsAdditionalMappings() throws Exception {
+        CimiToFhirTypeIndex index = new CimiToFhirTypeIndex();
+        String mappings = "# extra mappings\n\nQUANTITY = Quantity\n  CODED_TEXT=Coding  \n";
+        index.loadTypeMappings(new ByteArrayInputStream(mappings.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("Quantity", index.getFhirType("QUANTITY"));
+        assertEquals("Coding", index.getFhirType("CODED_TEXT"));
+        assertEquals("string", index.getFhirType("String"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidMappings() throws Exception {
+        new CimiToFhirTypeIndex().loadTypeMappings(new ByteArrayInputStream("QUANTITY\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void excludesPrimitiveClasses() throws Exception {
+        CimiToFhirTypeIndex index = new CimiToFhirTypeIndex();
+        assertTrue(index.isExcludedClassName("DATE_TIME"));
+        assertTrue(index.isExcludedClassName("String"));
+        assertFalse(index.isExcludedClassName("CODED_TEXT"));
+    }
+}
@@ -46,4 +46,13 @@ public class FhirDstu3TypeUtilityTest {
 
     }
 
+    @Test
+    public void isSubsumedByIsTransitive() throws Exception {
+        assertTrue(FhirDstu3TypeUtility.isSubsumedBy("Age", "Quantity"));
+        assertTrue(FhirDstu3TypeUtility.isSubsumedBy("Age", "element"));
+        assertTrue(FhirDstu3TypeUtility.isSubsumedBy("Age", "Element"));
+        assertTrue(FhirDstu3TypeUtility.isSubsumedBy("positiveInt", "element"));
+        assertFalse(FhirDstu3TypeUtility.isSubsumedBy("element", "Age"));
+    }
+
 }
\ No newline at end of file
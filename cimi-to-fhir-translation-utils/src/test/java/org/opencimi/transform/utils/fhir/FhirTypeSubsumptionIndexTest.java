@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.fhir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FhirTypeSubsumptionIndexTest {
+
+    private static final String BASE = "http://hl7.org/fhir/StructureDefinition/";
+
+    @Test
+    public void computesTransitiveClosure() throws Exception {
+        FhirTypeSubsumptionIndex index = createIndex();
+        assertTrue(index.isSubsumedBy("Age", "Quantity"));
+        assertTrue(index.isSubsumedBy("Age", "Element"));
+        assertTrue(index.subsumes("string", "code"));
+        assertFalse(index.isSubsumedBy("Quantity", "Age"));
+        assertFalse(index.isSubsumedBy("Age", "Age"));
+        assertFalse(index.isSubsumedBy("Unknown", "Element"));
+        assertEquals(Arrays.asList("Quantity", "Element"), index.getAncestors("Age"));
+    }
+
+    @Test
+    public void ignoresCaseWhenNotAmbiguous() throws Exception {
+        FhirTypeSubsumptionIndex index = createIndex();
+        assertTrue(index.isSubsumedBy("code", "element"));
+        assertTrue(index.contains("quantity"));
+    }
+
+    @Test
+    public void findsCommonAncestor() throws Exception {
+        FhirTypeSubsumptionIndex index = createIndex();
+        assertEquals("Quantity", index.getCommonAncestor(Arrays.asList("Age", "Count")));
+        assertEquals("string", index.getCommonAncestor(Arrays.asList("code", "string")));
+        assertEquals("Element", index.getCommonAncestor(Arrays.asList("Age", "code")));
+        assertEquals("Age", index.getCommonAncestor(Arrays.asList("Age")));
+        assertNull(index.getCommonAncestor(Arrays.asList("Age", "Unknown")));
+    }
+
+    @Test
+    public void buildsFromCoreDefinitions() throws Exception {
+        FhirTypeSubsumptionIndex index = FhirTypeSubsumptionIndex.getR4();
+        assertTrue(index.isSubsumedBy("code", "string"));
+        assertTrue(index.isSubsumedBy("Count", "Quantity"));
+        assertTrue(index.isSubsumedBy("Age", "Element"));
+        assertFalse(index.isSubsumedBy("string", "code"));
+    }
+
+    private FhirTypeSubsumptionIndex createIndex() {
+        List<StructureDefinition> definitions = new ArrayList<>();
+        definitions.add(createType("Element", null, StructureDefinition.TypeDerivationRule.SPECIALIZATION));
+        definitions.add(createType("string", "Element", StructureDefinition.TypeDerivationRule.SPECIALIZATION));
+        definitions.add(createType("code", "string", StructureDefinition.TypeDerivationRule.SPECIALIZATION));
+        definitions.add(createType("Quantity", "Element", StructureDefinition.TypeDerivationRule.SPECIALIZATION));
+        definitions.add(createType("Age", "Quantity", StructureDefinition.TypeDerivationRule.CONSTRAINT));
+        definitions.add(createType("Count", "Quantity", StructureDefinition.TypeDerivationRule.CONSTRAINT));
+        return FhirTypeSubsumptionIndex.build(definitions);
+    }
+
+    private StructureDefinition createType(String name, String base, StructureDefinition.TypeDerivationRule derivation) {
+        StructureDefinition definition = new StructureDefinition();
+        definition.setUrl(BASE + name);
+        definition.setName(name);
+        definition.setKind(StructureDefinition.StructureDefinitionKind.COMPLEXTYPE);
+        definition.setDerivation(derivation);
+        if (base != null) {
+            definition.setBaseDefinition(BASE + base);
+        }
+        return definition;
+    }
+}
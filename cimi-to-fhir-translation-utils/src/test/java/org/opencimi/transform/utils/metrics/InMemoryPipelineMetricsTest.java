@@ -0,0 +1,56 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.utils.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InMemoryPipelineMetricsTest {
+
+    @Test
+    public void collectsTimersCountersAndDistributions() throws Exception {
+        InMemoryPipelineMetrics metrics = new InMemoryPipelineMetrics();
+        for (int i = 0; i < 3; i++) {
+            try (Timing timing = metrics.time("stage")) {
+                metrics.increment("profiles");
+                metrics.record("elements", 10 * (i + 1));
+            }
+        }
+
+        assertEquals(Long.valueOf(3), metrics.getTimerCounts().get("stage"));
+        assertEquals(Long.valueOf(3), metrics.getCounters().get("profiles"));
+        assertEquals(20d, metrics.getDistributionMeans().get("elements"), 0.001);
+
+        String report = metrics.getReport();
+        assertTrue(report.contains("\"stage\": {\"count\": 3"));
+        assertTrue(report.contains("\"profiles\": 3"));
+        assertTrue(report.contains("\"elements\": {\"count\": 3, \"min\": 10, \"max\": 30"));
+    }
+
+    @Test
+    public void noopDiscardsEverything() throws Exception {
+        try (Timing timing = PipelineMetrics.NOOP.time("stage")) {
+            PipelineMetrics.NOOP.increment("profiles");
+        }
+        assertSame(Timing.NOOP, PipelineMetrics.NOOP.time("stage"));
+    }
+}
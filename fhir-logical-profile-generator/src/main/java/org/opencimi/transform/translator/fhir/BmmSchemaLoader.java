@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.translator.fhir;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openehr.bmm.persistence.PersistedBmmSchema;
+import org.openehr.bmm.persistence.deserializer.BmmSchemaDeserializer;
+import org.openehr.odin.CompositeOdinObject;
+import org.openehr.odin.antlr.OdinVisitorImpl;
+import org.openehr.odin.loader.OdinLoaderImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses BMM schema files concurrently. Every schema is lexed, parsed and
+ * deserialized by its own loader and deserializer; the parsed schemas are
+ * returned in the order of the input so callers can merge them
+ * deterministically. The time spent on each schema of the last call is
+ * available through {@link #getTimings()}.
+ */
+public class BmmSchemaLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BmmSchemaLoader.class);
+
+    private final int parallelism;
+    private volatile Map<String, Long> timings = Collections.emptyMap();
+
+    public BmmSchemaLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism the maximum number of schemas parsed at the same
+     * time. A value of 1 or less parses them on the calling thread.
+     */
+    public BmmSchemaLoader(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public List<PersistedBmmSchema> parseStreams(List<InputStream> bmmSchemas) {
+        List<String> names = new ArrayList<>();
+        List<Callable<PersistedBmmSchema>> tasks = new ArrayList<>();
+        for (InputStream bmmSchema : bmmSchemas) {
+            names.add("schema[" + names.size() + "]");
+            tasks.add(() -> {
+                OdinLoaderImpl loader = new OdinLoaderImpl();
+                OdinVisitorImpl visitor = loader.loadOdinFile(bmmSchema);
+                CompositeOdinObject root = visitor.getAstRootNode();
+                return new BmmSchemaDeserializer().deserialize(root);
+            });
+        }
+        return parse(names, tasks);
+    }
+
+    public List<PersistedBmmSchema> parseFiles(List<String> bmmSchemaPaths) {
+        List<Callable<PersistedBmmSchema>> tasks = new ArrayList<>();
+        for (String bmmSchemaPath : bmmSchemaPaths) {
+            tasks.add(() -> new BmmSchemaDeserializer().deserialize(bmmSchemaPath));
+        }
+        return parse(bmmSchemaPaths, tasks);
+    }
+
+    /**
+     * @return the parse time in milliseconds of each schema of the last call,
+     * in input order
+     */
+    public Map<String, Long> getTimings() {
+        return timings;
+    }
+
+    private List<PersistedBmmSchema> parse(List<String> names, List<Callable<PersistedBmmSchema>> tasks) {
+        long[] elapsed = new long[tasks.size()];
+        List<Callable<PersistedBmmSchema>> timedTasks = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            int index = i;
+            timedTasks.add(() -> {
+                long start = System.nanoTime();
+                try {
+                    return tasks.get(index).call();
+                } finally {
+                    elapsed[index] = System.nanoTime() - start;
+                }
+            });
+        }
+
+        List<PersistedBmmSchema> result = new ArrayList<>();
+        int threads = Math.min(parallelism, tasks.size());
+        if (threads <= 1) {
+            for (int i = 0; i < timedTasks.size(); i++) {
+                try {
+                    result.add(timedTasks.get(i).call());
+                } catch (Exception e) {
+                    throw new IllegalStateException("Error parsing BMM schema " + names.get(i), e);
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<PersistedBmmSchema>> futures = executor.invokeAll(timedTasks);
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        result.add(futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Error parsing BMM schema " + names.get(i), e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while parsing BMM schemas", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        //invokeAll() and get() publish the elapsed times of the tasks
+        Map<String, Long> lastTimings = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(elapsed[i]);
+            lastTimings.put(names.get(i), millis);
+            LOG.info("Parsed BMM schema " + names.get(i) + " in " + millis + " ms");
+        }
+        timings = Collections.unmodifiableMap(lastTimings);
+        return result;
+    }
+}
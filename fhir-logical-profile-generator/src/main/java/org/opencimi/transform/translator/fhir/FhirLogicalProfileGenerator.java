@@ -20,23 +20,40 @@
  */
 package org.opencimi.transform.translator.fhir;
 
+import ca.uhn.fhir.context.FhirContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import static java.util.stream.Collectors.toList;
 
 import org.hl7.fhir.r4.model.ElementDefinition;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.StructureDefinition;
+import org.opencimi.transform.utils.ContentHash;
+import org.opencimi.transform.utils.IdentityKey;
 import org.opencimi.transform.utils.fhir.CimiToFhirTypeIndex;
+import org.opencimi.transform.utils.fhir.LogicalProfileSummary;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.opencimi.transform.utils.metrics.Timing;
 import org.openehr.bmm.core.*;
 import org.openehr.bmm.persistence.PersistedBmmSchema;
-import org.openehr.bmm.persistence.deserializer.BmmSchemaDeserializer;
-import org.openehr.odin.CompositeOdinObject;
-import org.openehr.odin.antlr.OdinVisitorImpl;
-import org.openehr.odin.loader.OdinLoaderImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,48 +65,281 @@ public class FhirLogicalProfileGenerator {
     private static final String GENERIC_PARAM_NAME = "T";
     
     private final String baseUrl;
-    private CimiToFhirTypeIndex cimiToFhirTypeIndex;
+    private final int parallelism;
+    private final CimiToFhirTypeIndex cimiToFhirTypeIndex;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private Path snapshotFile;
+    private BmmSchemaLoader schemaLoader = new BmmSchemaLoader();
+    private PipelineMetrics metrics = PipelineMetrics.NOOP;
+    
+    private final Map<IdentityKey<BmmType>, TypeConversionResult> resolvedTypes = new ConcurrentHashMap<>();
     
-    private class TypeConversionResult{
-        String bmmType;
-        String fhirType;
+    private static final class TypeConversionResult{
+        final String bmmType;
+        final String fhirType;
+
+        TypeConversionResult(String bmmType, String fhirType) {
+            this.bmmType = bmmType;
+            this.fhirType = fhirType;
+        }
     }
 
     public FhirLogicalProfileGenerator(String baseUrl) {
+        this(baseUrl, 1);
+    }
+
+    /**
+     * Creates a generator that converts the classes of a model using up to
+     * <code>parallelism</code> threads. A value of 1 or less keeps the
+     * conversion on the calling thread.
+     * 
+     * @param baseUrl
+     * @param parallelism 
+     */
+    public FhirLogicalProfileGenerator(String baseUrl, int parallelism) {
+        this(baseUrl, parallelism, new CimiToFhirTypeIndex());
+    }
+
+    /**
+     * @param baseUrl
+     * @param parallelism
+     * @param cimiToFhirTypeIndex the type mappings to use, for example with
+     * mappings loaded from an external file
+     */
+    public FhirLogicalProfileGenerator(String baseUrl, int parallelism, CimiToFhirTypeIndex cimiToFhirTypeIndex) {
         this.baseUrl = baseUrl;
-        cimiToFhirTypeIndex = new CimiToFhirTypeIndex();
+        this.parallelism = parallelism;
+        this.cimiToFhirTypeIndex = cimiToFhirTypeIndex;
     }
 
+    /**
+     * Generates the logical profiles of the given schemas. When a snapshot
+     * file is configured and it was created from the very same schemas, the
+     * profiles are read from the snapshot and the schemas are not parsed at
+     * all. Otherwise the profiles are generated straight into a new snapshot,
+     * so only the profiles the caller holds on to are kept in memory. Profiles
+     * read from a snapshot are decoded each time they are accessed.
+     * 
+     * @param bmmSchemas
+     * @return 
+     */
     public List<StructureDefinition> generateLogicalProfile(List<InputStream> bmmSchemas) {
-        PersistedBmmSchema bmm = deserializeSchemas(bmmSchemas);
-        bmm.createBmmSchema();
-        return generateLogicalProfile(bmm.getBmmModel());
+        if (snapshotFile == null){
+            PersistedBmmSchema bmm = deserializeSchemas(bmmSchemas);
+            bmm.createBmmSchema();
+            return generateLogicalProfile(bmm.getBmmModel());
+        }
+        
+        try {
+            List<byte[]> schemaContents = new ArrayList<>();
+            for (InputStream bmmSchema : bmmSchemas) {
+                schemaContents.add(readFully(bmmSchema));
+            }
+            FhirContext fhirContext = FhirContext.forR4();
+            String key = LogicalProfileSnapshot.computeKey(computeSnapshotKey(schemaContents), fhirContext);
+            List<StructureDefinition> snapshot = LogicalProfileSnapshot.read(snapshotFile, key, fhirContext);
+            if (snapshot != null){
+                LOG.debug("Using logical profile snapshot "+snapshotFile);
+                metrics.increment("logical.snapshot.hits");
+                return snapshot;
+            }
+            
+            List<InputStream> streams = schemaContents.stream()
+                .map(ByteArrayInputStream::new)
+                .collect(toList());
+            PersistedBmmSchema bmm = deserializeSchemas(streams);
+            bmm.createBmmSchema();
+            //Profiles go straight to the snapshot and are decoded again on demand
+            try (LogicalProfileSnapshot.Writer writer = new LogicalProfileSnapshot.Writer(snapshotFile, key, fhirContext)) {
+                generateLogicalProfile(bmm.getBmmModel(), writer);
+                writer.commit();
+            }
+            return LogicalProfileSnapshot.read(snapshotFile, key, fhirContext);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error using logical profile snapshot "+snapshotFile, e);
+        }
+    }
+    
+    private String computeSnapshotKey(List<byte[]> schemaContents) {
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(baseUrl.getBytes(StandardCharsets.UTF_8));
+        for (byte[] schemaContent : schemaContents) {
+            digest.update((byte) 0);
+            digest.update(ContentHash.of(schemaContent).getBytes(StandardCharsets.UTF_8));
+        }
+        return ContentHash.toHex(digest.digest());
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
     }
 
+    /**
+     * Generates a logical profile for every non-excluded class of the model.
+     * The returned list follows the iteration order of the model's class
+     * definitions, whether or not the generation runs in parallel.
+     * 
+     * @param bmmModel
+     * @return 
+     */
     public List<StructureDefinition> generateLogicalProfile(BmmModel bmmModel) {
-        return bmmModel.getClassDefinitions().values().stream()
+        List<StructureDefinition> result = new ArrayList<>();
+        generateLogicalProfile(bmmModel, result::add);
+        return result;
+    }
+
+    /**
+     * Generates a logical profile for every non-excluded class of the model
+     * and hands each one to the sink as soon as it is complete. The generator
+     * keeps no reference to the profiles it emits: other profiles refer to
+     * them through the {@link LogicalProfileSummary summaries} of the type
+     * index, so the sink decides how many profiles stay in memory.
+     * 
+     * The sink is called once per profile, in the iteration order of the
+     * model's class definitions, and never concurrently, whether or not the
+     * generation runs in parallel.
+     * 
+     * @param bmmModel
+     * @param sink 
+     */
+    public void generateLogicalProfile(BmmModel bmmModel, Consumer<StructureDefinition> sink) {
+        try (Timing timing = metrics.time("logical.generate")) {
+            generateAll(bmmModel, profile -> {
+                metrics.increment("logical.profiles");
+                sink.accept(profile);
+            });
+        }
+    }
+
+    private void generateAll(BmmModel bmmModel, Consumer<StructureDefinition> sink) {
+        //Summaries and resolved types are only valid for one model
+        cimiToFhirTypeIndex.clearProfileSummaries();
+        cimiToFhirTypeIndex.clearTypeNameCache();
+        resolvedTypes.clear();
+        cacheHits.reset();
+        cacheMisses.reset();
+        
+        List<BmmClass> classDefinitions = bmmModel.getClassDefinitions().values().stream()
             .filter(cd -> !cimiToFhirTypeIndex.isExcludedClass(cd))
-            .map(cd -> toStructureDefinition(bmmModel, cd))
             .collect(toList());
+        resolvePropertyTypes(bmmModel, classDefinitions);
+        
+        if (parallelism <= 1){
+            classDefinitions.forEach(cd -> sink.accept(toStructureDefinition(bmmModel, cd)));
+            logCacheStatistics();
+            return;
+        }
+        
+        LOG.debug("Generating "+classDefinitions.size()+" logical profiles using "+parallelism+" threads");
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            //forEachOrdered() on an ordered stream keeps the sequential order
+            pool.submit(() -> classDefinitions.parallelStream()
+                .map(cd -> toStructureDefinition(bmmModel, cd))
+                .forEachOrdered(sink)).get();
+            logCacheStatistics();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating logical profiles", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error generating logical profiles", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @param snapshotFile the file used to cache the profiles generated by
+     * {@link #generateLogicalProfile(java.util.List)}, or null to disable it
+     */
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public BmmSchemaLoader getSchemaLoader() {
+        return schemaLoader;
+    }
+
+    public void setSchemaLoader(BmmSchemaLoader schemaLoader) {
+        this.schemaLoader = schemaLoader;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CimiToFhirTypeIndex getCimiToFhirTypeIndex() {
+        return cimiToFhirTypeIndex;
+    }
+
+    /**
+     * @return the number of references to other profiles resolved from a
+     * summary that was already indexed during the last run. Profiles are
+     * never reused, only their summaries.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of profiles actually generated during the last run
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+    
+    private void logCacheStatistics() {
+        LOG.debug("Logical profile cache: "+getCacheMisses()+" profiles generated, "+getCacheHits()+" summary lookups reused");
     }
 
     public PersistedBmmSchema deserializeSchemas(List<InputStream> bmmSchemas) {
 
-        PersistedBmmSchema result = new PersistedBmmSchema();
+        try (Timing timing = metrics.time("bmm.parse")) {
+            PersistedBmmSchema result = new PersistedBmmSchema();
 
-        for (InputStream bmmSchema : bmmSchemas) {
-            OdinLoaderImpl loader = new OdinLoaderImpl();
-            OdinVisitorImpl visitor = loader.loadOdinFile(bmmSchema);
-            CompositeOdinObject root = visitor.getAstRootNode();
-            BmmSchemaDeserializer deserializer = new BmmSchemaDeserializer();
-            result.merge(deserializer.deserialize(root));
-        }
+            //Schemas are parsed concurrently but always merged in input order
+            for (PersistedBmmSchema bmmSchema : schemaLoader.parseStreams(bmmSchemas)) {
+                result.merge(bmmSchema);
+            }
+            schemaLoader.getTimings().forEach((schema, millis) -> metrics.recordTime("bmm.parse." + schema, TimeUnit.MILLISECONDS.toNanos(millis)));
 
-        return result;
+            return result;
+        }
     }
 
+    /**
+     * Creates the logical profile of the class. Properties typed with other
+     * classes refer to the profiles of those classes by URL, through their
+     * summaries, without generating them.
+     * 
+     * @param bmmModel
+     * @param classDefinition
+     * @return 
+     */
     public StructureDefinition toStructureDefinition(BmmModel bmmModel, BmmClass classDefinition) {
         LOG.debug("Creating StructureDefinition for "+classDefinition.getName());
+        LogicalProfileSummary summary = getProfileSummary(classDefinition);
+        cacheMisses.increment();
+        
         StructureDefinition logicalProfile = new StructureDefinition();
         logicalProfile.setKind(StructureDefinition.StructureDefinitionKind.LOGICAL);
 
@@ -97,11 +347,9 @@ public class FhirLogicalProfileGenerator {
         logicalProfile.setName(classDefinition.getName());
         logicalProfile.setDescription(classDefinition.getDocumentation());
         logicalProfile.setType(classDefinition.getName());
-        logicalProfile.setUrl(baseUrl+"/"+logicalProfile.getName());
+        logicalProfile.setUrl(summary.getUrl());
         logicalProfile.setStatus(Enumerations.PublicationStatus.DRAFT);
         logicalProfile.setAbstract(classDefinition.isAbstract());
-
-        cimiToFhirTypeIndex.addStructureDefinitionIndex(classDefinition.getName(), logicalProfile);
         
         //Base Definition
         if (classDefinition.getAncestors() != null && !classDefinition.getAncestors().isEmpty()){
@@ -121,11 +369,31 @@ public class FhirLogicalProfileGenerator {
             ElementDefinition elementDefinition = toElementDefinition(bmmModel, logicalProfile.getName(), property);
             logicalProfile.getSnapshot().addElement(elementDefinition);
         }
-        
+        metrics.increment("logical.elements", logicalProfile.getSnapshot().getElement().size());
+        metrics.record("logical.elementsPerProfile", logicalProfile.getSnapshot().getElement().size());
 
         return logicalProfile;
     }
 
+    private LogicalProfileSummary getProfileSummary(BmmModel bmmModel, String className) {
+        LogicalProfileSummary summary = cimiToFhirTypeIndex.getProfileSummary(className);
+        if (summary != null){
+            cacheHits.increment();
+            return summary;
+        }
+        BmmClass classDefinition = bmmModel.getClassDefinition(className);
+        if (classDefinition == null){
+            throw new IllegalStateException("Class "+className+" is not defined in the model");
+        }
+        return getProfileSummary(classDefinition);
+    }
+    
+    private LogicalProfileSummary getProfileSummary(BmmClass classDefinition) {
+        LogicalProfileSummary summary = new LogicalProfileSummary(classDefinition.getName(), baseUrl+"/"+classDefinition.getName(), classDefinition.isAbstract());
+        LogicalProfileSummary existing = cimiToFhirTypeIndex.addProfileSummaryIfAbsent(classDefinition.getName(), summary);
+        return existing != null ? existing : summary;
+    }
+
     private ElementDefinition createRootElementDefinition(BmmModel bmmModel, String parentName) {
         ElementDefinition element = new ElementDefinition();
         element.setLabel(parentName);
@@ -145,7 +413,7 @@ public class FhirLogicalProfileGenerator {
         int lowerBound = property.getMandatory() ? 1 : 0;
         String upperBound = "1";
         
-        TypeConversionResult typeConversionResult = calculateBmmConcreteType(bmmModel, property.getType());
+        TypeConversionResult typeConversionResult = resolveConcreteType(bmmModel, property.getType());
         
         if (property instanceof BmmContainerProperty){
             lowerBound = ((BmmContainerProperty)property).getCardinality().getLower();
@@ -161,13 +429,7 @@ public class FhirLogicalProfileGenerator {
         String fhirType = typeConversionResult.fhirType;
         if (fhirType == null){
             LOG.debug(typeConversionResult.bmmType+" doesn't seem to be a primitive nor complex type.");
-            StructureDefinition structureDefinition = cimiToFhirTypeIndex.getStructureDefinition(typeConversionResult.bmmType);
-            if (structureDefinition != null){
-                fhirType = structureDefinition.getUrl();
-            } else {
-                LOG.debug(typeConversionResult.bmmType+" has no associated StructureDefinition. About to generate it.");
-                fhirType = toStructureDefinition(bmmModel, bmmModel.getClassDefinition(typeConversionResult.bmmType)).getName();
-            }
+            fhirType = getProfileSummary(bmmModel, typeConversionResult.bmmType).getUrl();
         }
 
         if (fhirType != null){
@@ -182,6 +444,49 @@ public class FhirLogicalProfileGenerator {
         return element;
     }
     
+    /**
+     * Resolves the concrete type of every property of the classes up front.
+     * Properties share a small number of type instances, so profile
+     * generation afterwards only looks the resolved types up.
+     * 
+     * @param bmmModel
+     * @param classDefinitions 
+     */
+    private void resolvePropertyTypes(BmmModel bmmModel, List<BmmClass> classDefinitions) {
+        try (Timing timing = metrics.time("logical.resolveTypes")) {
+            for (BmmClass classDefinition : classDefinitions) {
+                for (BmmProperty property : classDefinition.getProperties().values()) {
+                    if (!cimiToFhirTypeIndex.isExcludedType(property.getType())){
+                        resolveConcreteType(bmmModel, property.getType());
+                    }
+                }
+            }
+            metrics.increment("logical.resolvedTypes", resolvedTypes.size());
+        }
+    }
+    
+    /**
+     * Returns the concrete type of the given type instance, resolving it
+     * only the first time the instance is seen during a run.
+     * 
+     * @param model
+     * @param type
+     * @return 
+     */
+    private TypeConversionResult resolveConcreteType(BmmModel model, BmmType type){
+        IdentityKey<BmmType> key = new IdentityKey<>(type);
+        TypeConversionResult result = resolvedTypes.get(key);
+        if (result == null){
+            //Not computeIfAbsent(): resolving a container resolves its base type
+            result = calculateBmmConcreteType(model, type);
+            TypeConversionResult previous = resolvedTypes.putIfAbsent(key, result);
+            if (previous != null){
+                result = previous;
+            }
+        }
+        return result;
+    }
+    
     private TypeConversionResult calculateBmmConcreteType(BmmModel model, BmmType type){
         
         BmmClass clazz = type.getBaseClass();
@@ -191,7 +496,7 @@ public class FhirLogicalProfileGenerator {
         boolean isGenericType = type instanceof BmmGenericType;
         
         if (isContainer){
-            return calculateBmmConcreteType(model, ((BmmContainerType)type).getBaseType());
+            return resolveConcreteType(model, ((BmmContainerType)type).getBaseType());
         } else if (isOpenType){
             BmmOpenType openType = (BmmOpenType)type;
             if (openType.getGenericConstraint() == null){
@@ -207,29 +512,37 @@ public class FhirLogicalProfileGenerator {
                     clazz = openType.getGenericConstraint().getConformsToType();
                 }
             }
-//        } else if (isGenericType){
-//            BmmGenericType genericType = (BmmGenericType) type;
-//            clazz = genericType.getBaseClass();
-//            genericType.getGenericParameters()
-//            
-//            1- Get the baseClass
-//            2- If the baseClass is INTERVAL_VALUE
-//                If genericParameter is DATE or DATE_TIME -> type = Period
-//                If genericParameter is QUANTITY -> type = Range
-//                else -> exception
-//            3- If the baseClass is RATIO        
         }
         
         if (clazz == null){
             throw new IllegalStateException("Couldn't determine the concrete type of "+type);
         }
 
-        TypeConversionResult result = new TypeConversionResult();
-        result.bmmType = calculateBmmConcreteType(model, clazz);
-        result.fhirType = cimiToFhirTypeIndex.getFhirType(type);
-        
-         
-        return result;
+        String fhirType = cimiToFhirTypeIndex.getFhirType(type);
+        if (fhirType == null && isGenericType){
+            fhirType = cimiToFhirTypeIndex.getFhirType(getGenericSignature(model, (BmmGenericType) type));
+        }
+        return new TypeConversionResult(calculateBmmConcreteType(model, clazz), fhirType);
+    }
+    
+    /**
+     * Returns the signature of a generic type with its parameters replaced by
+     * their concrete types, e.g. <code>INTERVAL_VALUE&lt;DATE_TIME&gt;</code>,
+     * so it can be looked up in the type mappings. Generic types without a
+     * mapping fall back to the logical profile of their generic class.
+     * 
+     * @param model
+     * @param genericType
+     * @return 
+     */
+    private String getGenericSignature(BmmModel model, BmmGenericType genericType){
+        StringBuilder signature = new StringBuilder(genericType.getBaseClass().getName()).append('<');
+        String separator = "";
+        for (BmmType parameter : genericType.getGenericParameters()) {
+            signature.append(separator).append(resolveConcreteType(model, parameter).bmmType);
+            separator = ",";
+        }
+        return signature.append('>').toString();
     }
     
     private String calculateBmmConcreteType(BmmModel model, BmmClass clazz){
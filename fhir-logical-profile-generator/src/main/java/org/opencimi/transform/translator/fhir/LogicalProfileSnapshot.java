@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Esteban Aliverti
+ */
+package org.opencimi.transform.translator.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.opencimi.transform.utils.ContentHash;
+
+/**
+ * Binary snapshot of the logical profiles generated from a set of BMM files.
+ * 
+ * The snapshot stores a key, normally {@link #computeKey computed} from
+ * everything the profiles were generated from, followed by an offset table
+ * and the compact JSON encoding of every profile. Reading it maps the file
+ * into memory and decodes a profile each time it is accessed, without
+ * keeping it. A snapshot whose key does not match, or that cannot be read,
+ * is treated as missing.
+ */
+public final class LogicalProfileSnapshot {
+    
+    private static final int MAGIC = 0x43494D49;
+    /**
+     * Must be incremented whenever the layout of the file changes, and
+     * whenever a change to the generator changes the profiles produced from
+     * the same BMM files, so that existing snapshots are never reused.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private LogicalProfileSnapshot() {
+    }
+
+    /**
+     * Computes the key of a snapshot from the hash of its inputs, the format
+     * version and the FHIR and HAPI versions the profiles are encoded with.
+     *
+     * @param contentHash hash of everything the profiles are generated from
+     * @param fhirContext
+     * @return
+     */
+    public static String computeKey(String contentHash, FhirContext fhirContext) {
+        return ContentHash.of(FORMAT_VERSION
+                + "|" + fhirContext.getVersion().getVersion().name()
+                + "|" + Objects.toString(FhirContext.class.getPackage().getImplementationVersion())
+                + "|" + contentHash);
+    }
+
+    public static void write(Path file, String key, List<StructureDefinition> profiles, FhirContext fhirContext) throws IOException {
+        try (Writer writer = new Writer(file, key, fhirContext)) {
+            profiles.forEach(writer);
+            writer.commit();
+        }
+    }
+
+    /**
+     * @param file
+     * @param key
+     * @param fhirContext
+     * @return the profiles of the snapshot, or null if there is no usable
+     * snapshot for the key
+     * @throws IOException 
+     */
+    public static List<StructureDefinition> read(Path file, String key, FhirContext fhirContext) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] storedKey = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(storedKey);
+            if (!key.equals(new String(storedKey, StandardCharsets.UTF_8))) {
+                return null;
+            }
+            long[] offsets = new long[buffer.getInt() + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getLong();
+            }
+            int dataStart = buffer.position();
+            if (dataStart + offsets[offsets.length - 1] != buffer.limit()) {
+                return null;
+            }
+            return new LazyProfileList(buffer, dataStart, offsets, fhirContext);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Writes a snapshot one profile at a time. Each profile is encoded as
+     * soon as it is accepted and only its offset is kept in memory; the
+     * snapshot replaces the target file when the writer is committed.
+     */
+    public static final class Writer implements Consumer<StructureDefinition>, Closeable {
+        
+        private final Path file;
+        private final String key;
+        private final IParser parser;
+        private final Path dataFile;
+        private final OutputStream data;
+        private final List<Long> offsets = new ArrayList<>();
+        private long offset;
+
+        public Writer(Path file, String key, FhirContext fhirContext) throws IOException {
+            this.file = file;
+            this.key = key;
+            this.parser = fhirContext.newJsonParser();
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            this.dataFile = Files.createTempFile(directory, file.getFileName().toString(), ".data");
+            this.data = new BufferedOutputStream(Files.newOutputStream(dataFile));
+        }
+
+        @Override
+        public void accept(StructureDefinition profile) {
+            byte[] encodedProfile = parser.encodeResourceToString(profile).getBytes(StandardCharsets.UTF_8);
+            try {
+                data.write(encodedProfile);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing logical profile snapshot "+file, e);
+            }
+            offsets.add(offset);
+            offset += encodedProfile.length;
+        }
+
+        /**
+         * Writes the snapshot with every profile accepted so far and moves it
+         * in place of the target file.
+         * 
+         * @throws IOException 
+         */
+        public void commit() throws IOException {
+            data.close();
+            Path temporaryFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeInt(offsets.size());
+                for (long profileOffset : offsets) {
+                    out.writeLong(profileOffset);
+                }
+                out.writeLong(offset);
+                Files.copy(dataFile, out);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporaryFile);
+                throw e;
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Releases the temporary data of the writer. A writer closed without
+         * being committed leaves the target file untouched.
+         * 
+         * @throws IOException 
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                data.close();
+            } finally {
+                Files.deleteIfExists(dataFile);
+            }
+        }
+    }
+    
+    /**
+     * Decodes a profile every time it is accessed and keeps none of them, so
+     * only the profiles the caller holds on to stay in memory. Callers that
+     * go through the profiles more than once should copy the list.
+     */
+    private static class LazyProfileList extends AbstractList<StructureDefinition> {
+        
+        private final ByteBuffer buffer;
+        private final int dataStart;
+        private final long[] offsets;
+        private final FhirContext fhirContext;
+
+        LazyProfileList(ByteBuffer buffer, int dataStart, long[] offsets, FhirContext fhirContext) {
+            this.buffer = buffer;
+            this.dataStart = dataStart;
+            this.offsets = offsets;
+            this.fhirContext = fhirContext;
+        }
+
+        @Override
+        public StructureDefinition get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            byte[] encodedProfile = new byte[(int) (offsets[index + 1] - offsets[index])];
+            ByteBuffer view = buffer.duplicate();
+            view.position(dataStart + (int) offsets[index]);
+            view.get(encodedProfile);
+            return fhirContext.newJsonParser().parseResource(StructureDefinition.class, new String(encodedProfile, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int size() {
+            return offsets.length - 1;
+        }
+    }
+}
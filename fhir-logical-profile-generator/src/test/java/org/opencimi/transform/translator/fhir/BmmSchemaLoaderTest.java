@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.translator.fhir;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.openehr.bmm.persistence.PersistedBmmSchema;
+
+import static org.junit.Assert.assertEquals;
+
+public class BmmSchemaLoaderTest {
+
+    @Test
+    public void testConcurrentParseKeepsSchemaOrder() {
+        BmmSchemaLoader sequentialLoader = new BmmSchemaLoader(1);
+        BmmSchemaLoader concurrentLoader = new BmmSchemaLoader(3);
+
+        List<PersistedBmmSchema> sequential = sequentialLoader.parseStreams(loadBallotSchemas());
+        List<PersistedBmmSchema> concurrent = concurrentLoader.parseStreams(loadBallotSchemas());
+
+        assertEquals(3, concurrent.size());
+        assertEquals(3, concurrentLoader.getTimings().size());
+        assertEquals(classNames(sequential), classNames(concurrent));
+    }
+
+    private List<String> classNames(List<PersistedBmmSchema> schemas) {
+        PersistedBmmSchema merged = new PersistedBmmSchema();
+        schemas.forEach(merged::merge);
+        merged.createBmmSchema();
+        return new ArrayList<>(merged.getBmmModel().getClassDefinitions().keySet());
+    }
+
+    private List<InputStream> loadBallotSchemas() {
+        List<InputStream> sources = new ArrayList<>();
+        sources.add(BmmSchemaLoaderTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_CORE.v.0.0.2.bmm"));
+        sources.add(BmmSchemaLoaderTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_FOUNDATION.v.0.0.2.bmm"));
+        sources.add(BmmSchemaLoaderTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_CLINICAL.v.0.0.2.bmm"));
+        return sources;
+    }
+}
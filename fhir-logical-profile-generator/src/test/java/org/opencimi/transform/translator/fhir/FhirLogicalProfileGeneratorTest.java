@@ -26,15 +26,27 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.FhirValidator;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.ElementDefinition;
 import org.hl7.fhir.r4.model.StructureDefinition;
+import org.openehr.bmm.persistence.PersistedBmmSchema;
+import org.opencimi.transform.utils.fhir.LogicalProfileSummary;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
@@ -43,6 +55,9 @@ import static org.junit.Assert.fail;
  */
 public class FhirLogicalProfileGeneratorTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private FhirLogicalProfileGenerator generator;
 
     @Before
@@ -86,4 +101,121 @@ public class FhirLogicalProfileGeneratorTest {
         }
         
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParallelLogicalProfileGenerationKeepsOrder() {
+        List<StructureDefinition> sequentialProfiles = generator.generateLogicalProfile(loadBallotSchemas());
+        FhirLogicalProfileGenerator parallelGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir", 4);
+        List<StructureDefinition> parallelProfiles = parallelGenerator.generateLogicalProfile(loadBallotSchemas());
+
+        assertEquals(sequentialProfiles.stream().map(StructureDefinition::getUrl).collect(toList()),
+                parallelProfiles.stream().map(StructureDefinition::getUrl).collect(toList()));
+        IParser jsonParser = FhirContext.forR4().newJsonParser();
+        for (int i = 0; i < sequentialProfiles.size(); i++) {
+            assertEquals(jsonParser.encodeResourceToString(sequentialProfiles.get(i)),
+                    jsonParser.encodeResourceToString(parallelProfiles.get(i)));
+        }
+    }
+
+    @Test
+    public void testEachClassIsGeneratedOnce() {
+        List<StructureDefinition> logicalProfiles = generator.generateLogicalProfile(loadBallotSchemas());
+
+        assertEquals(logicalProfiles.size(), logicalProfiles.stream().map(StructureDefinition::getUrl).distinct().count());
+        assertEquals(logicalProfiles.size(), generator.getCacheMisses());
+        assertTrue(generator.getCacheHits() > 0);
+        for (StructureDefinition logicalProfile : logicalProfiles) {
+            LogicalProfileSummary summary = generator.getCimiToFhirTypeIndex().getProfileSummary(logicalProfile.getName());
+            assertEquals(logicalProfile.getUrl(), summary.getUrl());
+            assertEquals(logicalProfile.getAbstract(), summary.isAbstract());
+        }
+    }
+
+    @Test
+    public void testLogicalProfilesAreStreamedInModelOrder() {
+        PersistedBmmSchema bmm = generator.deserializeSchemas(loadBallotSchemas());
+        bmm.createBmmSchema();
+        List<StructureDefinition> expected = generator.generateLogicalProfile(bmm.getBmmModel());
+
+        FhirLogicalProfileGenerator parallelGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir", 4);
+        List<String> streamedUrls = new ArrayList<>();
+        Set<String> referencedUrls = new HashSet<>();
+        parallelGenerator.generateLogicalProfile(bmm.getBmmModel(), profile -> {
+            streamedUrls.add(profile.getUrl());
+            profile.getSnapshot().getElement().stream()
+                .flatMap(element -> element.getType().stream())
+                .map(type -> type.getCode())
+                .filter(code -> code != null && code.startsWith("http://opencimi.org/logical-model/fhir/"))
+                .forEach(referencedUrls::add);
+        });
+
+        assertEquals(expected.stream().map(StructureDefinition::getUrl).collect(toList()), streamedUrls);
+        //Every cross-reference points to a profile that was emitted
+        assertTrue(streamedUrls.containsAll(referencedUrls));
+    }
+
+    @Test
+    public void testLogicalProfileSnapshotIsReused() throws Exception {
+        Path snapshotFile = folder.getRoot().toPath().resolve("logical-profiles.snapshot");
+        generator.setSnapshotFile(snapshotFile);
+        List<StructureDefinition> generated = generator.generateLogicalProfile(loadBallotSchemas());
+
+        FhirLogicalProfileGenerator snapshotGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir");
+        snapshotGenerator.setSnapshotFile(snapshotFile);
+        List<StructureDefinition> loaded = snapshotGenerator.generateLogicalProfile(loadBallotSchemas());
+
+        //Nothing was generated, the profiles come from the snapshot
+        assertEquals(0, snapshotGenerator.getCacheMisses());
+        assertEquals(generated.size(), loaded.size());
+        IParser jsonParser = FhirContext.forR4().newJsonParser();
+        for (int i = 0; i < generated.size(); i++) {
+            assertEquals(jsonParser.encodeResourceToString(generated.get(i)), jsonParser.encodeResourceToString(loaded.get(i)));
+        }
+
+        assertNull(LogicalProfileSnapshot.read(snapshotFile, "another-key", FhirContext.forR4()));
+    }
+
+    @Test
+    public void testGenericTypesAreMappedByTheirConcreteSignature() {
+        List<StructureDefinition> logicalProfiles = generator.generateLogicalProfile(loadBallotSchemas());
+
+        //INTERVAL_VALUE<DATE>
+        ElementDefinition validityPeriod = findElement(logicalProfiles, "Accreditation", "Accreditation.validityPeriod");
+        assertEquals(1, validityPeriod.getType().size());
+        assertEquals("Period", validityPeriod.getType().get(0).getCode());
+    }
+
+    @Test
+    public void testContainerAndOpenTypesAreResolved() {
+        List<StructureDefinition> logicalProfiles = generator.generateLogicalProfile(loadBallotSchemas());
+
+        //List<CODED_TEXT> resolves to the type of its elements
+        ElementDefinition dayOfWeek = findElement(logicalProfiles, "TimingRepeat", "TimingRepeat.dayOfWeek");
+        assertEquals("CodeableConcept", dayOfWeek.getType().get(0).getCode());
+        assertEquals(0, dayOfWeek.getMin());
+        assertEquals("*", dayOfWeek.getMax());
+
+        //T resolves to the class it conforms to
+        ElementDefinition lower = findElement(logicalProfiles, "INTERVAL_VALUE", "INTERVAL_VALUE.lower");
+        assertEquals("http://opencimi.org/logical-model/fhir/ORDERED_VALUE", lower.getType().get(0).getCode());
+    }
+
+    private ElementDefinition findElement(List<StructureDefinition> logicalProfiles, String profileName, String path) {
+        StructureDefinition logicalProfile = logicalProfiles.stream()
+            .filter(profile -> profileName.equals(profile.getName()))
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No logical profile "+profileName));
+        return logicalProfile.getSnapshot().getElement().stream()
+            .filter(element -> path.equals(element.getPath()))
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No element "+path+" in "+profileName));
+    }
+
+    private List<InputStream> loadBallotSchemas() {
+        List<InputStream> sources = new ArrayList<>();
+        sources.add(FhirLogicalProfileGeneratorTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_CORE.v.0.0.2.bmm"));
+        sources.add(FhirLogicalProfileGeneratorTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_FOUNDATION.v.0.0.2.bmm"));
+        sources.add(FhirLogicalProfileGeneratorTest.class.getResourceAsStream("/bmm/ballot_may_2017/CIMI_RM_CLINICAL.v.0.0.2.bmm"));
+        return sources;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.cda;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.elementmodel.Element;
+import org.hl7.fhir.r4.elementmodel.Property;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.StructureDefinition;
+
+/**
+ * Reads CDA documents into the FHIR element model with a StAX pull parser,
+ * so no DOM is built. Elements and attributes are matched against the
+ * properties of the CDA logical model; those the model does not define are
+ * skipped, as are narrative (xhtml) blocks, which the maps do not use.
+ * Readers are stateless and can be shared between threads.
+ */
+public class CdaDocumentReader {
+
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private final IWorkerContext context;
+    private final StructureDefinition documentDefinition;
+
+    /**
+     * @param context
+     * @param documentDefinition the logical model of the document root, such
+     * as ClinicalDocument
+     */
+    public CdaDocumentReader(IWorkerContext context, StructureDefinition documentDefinition) {
+        this.context = context;
+        this.documentDefinition = documentDefinition;
+    }
+
+    public Element read(InputStream in) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = INPUT_FACTORY.createXMLStreamReader(in);
+            reader.nextTag();
+            ElementDefinition rootDefinition = documentDefinition.getSnapshot().getElementFirstRep();
+            if (!rootDefinition.getPath().equals(reader.getLocalName())) {
+                throw new IllegalArgumentException("Expected a " + rootDefinition.getPath() + " document, found " + reader.getLocalName());
+            }
+            Element document = new Element(reader.getLocalName(), new Property(context, rootDefinition, documentDefinition));
+            readChildren(reader, document);
+            document.numberChildren();
+            return document;
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid CDA document: " + e.getMessage(), e);
+        } catch (FHIRException e) {
+            throw new IllegalArgumentException("Unable to read CDA document: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    //Nothing left to read
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes and content of the element the reader is on, up
+     * to and including its end tag.
+     */
+    private void readChildren(XMLStreamReader reader, Element element) throws XMLStreamException, FHIRException {
+        List<Property> properties = element.getProperty().getChildProperties(element.getName(), getXsiType(reader));
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (XSI_NAMESPACE.equals(reader.getAttributeNamespace(i))) {
+                continue;
+            }
+            String name = reader.getAttributeLocalName(i);
+            Property property = findProperty(properties, name);
+            if (property != null) {
+                element.getChildren().add(new Element(name, property, property.getType(name), reader.getAttributeValue(i)));
+            }
+        }
+        Property textProperty = findTextProperty(properties);
+        StringBuilder text = null;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                Property property = findProperty(properties, name);
+                String type = property == null ? null : getType(reader, property, name);
+                if (property == null || "xhtml".equals(type)) {
+                    skipElement(reader);
+                } else if (property.isPrimitive(type)) {
+                    element.getChildren().add(new Element(name, property, type, reader.getElementText()));
+                } else {
+                    Element child = new Element(name, property, type, null);
+                    element.getChildren().add(child);
+                    readChildren(reader, child);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (textProperty != null && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                if (text == null) {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getText());
+            }
+        }
+        if (text != null && !text.toString().trim().isEmpty()) {
+            element.getChildren().add(new Element(textProperty.getName(), textProperty, textProperty.getType(), text.toString().trim()));
+        }
+    }
+
+    private static Property findProperty(List<Property> properties, String name) {
+        for (Property property : properties) {
+            String propertyName = property.getName();
+            if (propertyName.equals(name)) {
+                return property;
+            }
+            if (propertyName.endsWith("[x]") && name.startsWith(propertyName.substring(0, propertyName.length() - 3))) {
+                return property;
+            }
+        }
+        return null;
+    }
+
+    private static Property findTextProperty(List<Property> properties) {
+        for (Property property : properties) {
+            if (property.getDefinition().hasRepresentation(ElementDefinition.PropertyRepresentation.XMLTEXT)) {
+                return property;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The xsi:type of an element whose type is stated in the instance, such
+     * as an observation value, takes precedence: the property cannot choose
+     * among its types from the element name alone.
+     */
+    private static String getType(XMLStreamReader reader, Property property, String name) {
+        String xsiType = getXsiType(reader);
+        if (xsiType != null && property.getDefinition().hasRepresentation(ElementDefinition.PropertyRepresentation.TYPEATTR)) {
+            return xsiType;
+        }
+        return property.getType(name);
+    }
+
+    private static String getXsiType(XMLStreamReader reader) {
+        String type = reader.getAttributeValue(XSI_NAMESPACE, "type");
+        return type == null ? null : type.substring(type.indexOf(':') + 1);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.cda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r4.utils.StructureMapUtilities;
+
+/**
+ * The CDA to FHIR maps bundled under <code>/mapping/maps</code>, parsed
+ * once. The parsed maps are never modified and can be shared by any number
+ * of transformations.
+ */
+public final class CdaStructureMaps {
+
+    public static final String CDA_MAP_URL = "http://hl7.org/fhir/StructureMap/cda";
+    public static final List<String> MAP_RESOURCES = Collections.unmodifiableList(Arrays.asList(
+            "cda.map", "ad.map", "any.map", "bl.map", "cd.map", "ed.map", "en.map", "ii.map", "ivl-ts.map", "pq.map"));
+
+    private static final String MAP_DIRECTORY = "/mapping/maps/";
+
+    private final Map<String, StructureMap> maps;
+
+    private CdaStructureMaps(Map<String, StructureMap> maps) {
+        this.maps = maps;
+    }
+
+    public static CdaStructureMaps load(IWorkerContext context) {
+        Map<String, StructureMap> maps = new LinkedHashMap<>();
+        StructureMapUtilities utilities = new StructureMapUtilities(context, maps, null, null);
+        for (String resource : MAP_RESOURCES) {
+            try {
+                StructureMap map = utilities.parse(readResource(MAP_DIRECTORY + resource));
+                maps.put(map.getUrl(), map);
+            } catch (FHIRException e) {
+                throw new IllegalArgumentException("Unable to parse " + resource + ": " + e.getMessage(), e);
+            }
+        }
+        return new CdaStructureMaps(Collections.unmodifiableMap(maps));
+    }
+
+    /**
+     * @return the maps by URL
+     */
+    public Map<String, StructureMap> getMaps() {
+        return maps;
+    }
+
+    public StructureMap getMap(String url) {
+        return maps.get(url);
+    }
+
+    /**
+     * @return the imported maps that are not bundled. Their groups fail only
+     * when a rule actually calls them.
+     */
+    public Set<String> getUnresolvedImports() {
+        Set<String> unresolved = new LinkedHashSet<>();
+        for (StructureMap map : maps.values()) {
+            for (PrimitiveType<?> imported : map.getImport()) {
+                if (!maps.containsKey(imported.getValueAsString())) {
+                    unresolved.add(imported.getValueAsString());
+                }
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * @return the URLs of the logical models the maps read from
+     */
+    public List<String> getSourceDefinitions() {
+        Set<String> urls = new LinkedHashSet<>();
+        for (StructureMap map : maps.values()) {
+            for (StructureMap.StructureMapStructureComponent structure : map.getStructure()) {
+                if (structure.getMode() == StructureMap.StructureMapModelMode.SOURCE) {
+                    urls.add(structure.getUrl());
+                }
+            }
+        }
+        return new ArrayList<>(urls);
+    }
+
+    private static String readResource(String resource) {
+        try (InputStream in = CdaStructureMaps.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing map " + resource);
+            }
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                text.write(buffer, 0, read);
+            }
+            return new String(text.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.cda;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.elementmodel.Element;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r4.utils.StructureMapUtilities;
+import org.opencimi.transform.fhir.CoreDefinitionCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transforms CDA documents into FHIR bundles with the bundled
+ * <code>cda.map</code> and its imports.
+ * <p>
+ * The maps are parsed and the worker context is configured once, in the
+ * constructor; each document is then read with {@link CdaDocumentReader}
+ * and run through the maps. A transformer can be used from any number of
+ * threads: each thread gets its own {@link StructureMapUtilities} over the
+ * shared, read-only maps.
+ * <p>
+ * The CDA logical model (ClinicalDocument and the V3 data types the maps
+ * read from) is not bundled with the translator. Its structure definitions
+ * must be provided, and the constructor fails listing the missing ones.
+ */
+public class CdaToFhirTransformer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CdaToFhirTransformer.class);
+
+    private final HapiWorkerContext workerContext;
+    private final CdaStructureMaps maps;
+    private final StructureMap documentMap;
+    private final CdaDocumentReader reader;
+    private final ThreadLocal<StructureMapUtilities> utilities;
+
+    public CdaToFhirTransformer(FhirContext fhirContext, Collection<StructureDefinition> cdaDefinitions) {
+        PrePopulatedValidationSupport validationSupport = new PrePopulatedValidationSupport();
+        for (StructureDefinition sd : CoreDefinitionCache.getStructureDefinitions(fhirContext)) {
+            validationSupport.addStructureDefinition(sd);
+        }
+        cdaDefinitions.forEach(validationSupport::addStructureDefinition);
+        this.workerContext = new HapiWorkerContext(fhirContext, validationSupport);
+        this.maps = CdaStructureMaps.load(workerContext);
+
+        List<String> missing = new ArrayList<>();
+        for (String url : maps.getSourceDefinitions()) {
+            if (workerContext.fetchResource(StructureDefinition.class, url) == null) {
+                missing.add(url);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Missing CDA logical model definitions " + missing);
+        }
+        Set<String> unresolvedImports = maps.getUnresolvedImports();
+        if (!unresolvedImports.isEmpty()) {
+            LOG.warn("Maps imported by the CDA maps are not bundled, rules calling their groups will fail: " + unresolvedImports);
+        }
+
+        this.documentMap = maps.getMap(CdaStructureMaps.CDA_MAP_URL);
+        StructureDefinition documentDefinition = null;
+        for (StructureMap.StructureMapStructureComponent structure : documentMap.getStructure()) {
+            if (structure.getMode() == StructureMap.StructureMapModelMode.SOURCE) {
+                documentDefinition = workerContext.fetchResource(StructureDefinition.class, structure.getUrl());
+            }
+        }
+        this.reader = new CdaDocumentReader(workerContext, documentDefinition);
+        this.utilities = ThreadLocal.withInitial(() -> new StructureMapUtilities(workerContext, maps.getMaps(), null, null));
+    }
+
+    /**
+     * Reads the structure definitions of a directory, in XML or JSON.
+     *
+     * @param directory
+     * @param fhirContext
+     * @return
+     * @throws IOException
+     */
+    public static List<StructureDefinition> loadDefinitions(Path directory, FhirContext fhirContext) throws IOException {
+        List<StructureDefinition> definitions = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            IParser parser = name.endsWith(".xml") ? fhirContext.newXmlParser() : name.endsWith(".json") ? fhirContext.newJsonParser() : null;
+            if (parser != null) {
+                try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    definitions.add(parser.parseResource(StructureDefinition.class, in));
+                }
+            }
+        }
+        return definitions;
+    }
+
+    public CdaStructureMaps getMaps() {
+        return maps;
+    }
+
+    /**
+     * @param document a CDA document
+     * @return the bundle built by <code>cda.map</code>
+     * @throws IOException if the document cannot be read
+     * @throws IllegalArgumentException if it cannot be transformed
+     */
+    public Bundle transform(InputStream document) throws IOException {
+        Element source = reader.read(document);
+        Bundle bundle = new Bundle();
+        try {
+            utilities.get().transform(null, source, documentMap, bundle);
+        } catch (FHIRException e) {
+            throw new IllegalArgumentException("Error transforming CDA document: " + e.getMessage(), e);
+        }
+        return bundle;
+    }
+}
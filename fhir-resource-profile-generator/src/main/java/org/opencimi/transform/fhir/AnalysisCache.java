@@ -0,0 +1,192 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.opencimi.transform.utils.ContentHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of the profiles produced by analysing a StructureMap.
+ *
+ * Entries are keyed by {@link #computeKey a hash} of the map, of the maps it
+ * depends on and of the StructureDefinitions the analysis reads, so the
+ * cache never needs to be invalidated: any change to the inputs produces a
+ * different key. Each entry is a JSON Bundle of the profiles stored in its
+ * own file of the cache directory. Entries that cannot be read are treated
+ * as missing.
+ */
+public class AnalysisCache {
+
+    public static final String DIRECTORY_NAME = ".analysis-cache";
+
+    private static final Logger LOG = LoggerFactory.getLogger(AnalysisCache.class);
+    /**
+     * Must be incremented whenever a change to the code changes the profiles
+     * produced by analysing the same inputs, for instance a change to the
+     * conversion handlers, the StructureMap factory or the way entries are
+     * encoded. Changes to HAPI are already part of the key.
+     */
+    private static final String FORMAT_VERSION = "2";
+
+    private final FhirContext fhirContext;
+    private final Path directory;
+
+    public AnalysisCache(FhirContext fhirContext, Path directory) {
+        this.fhirContext = fhirContext;
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the key of an analysis. The order of the dependencies and of
+     * the inputs does not matter.
+     *
+     * @param map the analysed map
+     * @param dependencies every map the analysis depends on, directly or not
+     * @param inputs every StructureDefinition the analysis reads that is not
+     * part of the core FHIR definitions
+     * @return
+     */
+    public String computeKey(StructureMap map, Collection<StructureMap> dependencies, Collection<StructureDefinition> inputs) {
+        IParser parser = fhirContext.newJsonParser();
+        Map<String, String> inputHashes = new HashMap<>();
+        for (StructureDefinition input : inputs) {
+            inputHashes.put(Objects.toString(input.getUrl()), ContentHash.of(parser.encodeResourceToString(input)));
+        }
+        return computeKey(map, dependencies, inputHashes);
+    }
+
+    /**
+     * Computes the key of an analysis from the content hashes of its inputs,
+     * as given by a {@link LogicalProfileIndex}, so the inputs do not need to
+     * be in memory.
+     *
+     * @param map the analysed map
+     * @param dependencies every map the analysis depends on, directly or not
+     * @param inputHashes the hash of the JSON encoding of every
+     * StructureDefinition the analysis reads, by URL
+     * @return
+     */
+    public String computeKey(StructureMap map, Collection<StructureMap> dependencies, Map<String, String> inputHashes) {
+        IParser parser = fhirContext.newJsonParser();
+        MessageDigest digest = ContentHash.newDigest();
+        update(digest, FORMAT_VERSION);
+        update(digest, fhirContext.getVersion().getVersion().name());
+        update(digest, Objects.toString(FhirContext.class.getPackage().getImplementationVersion()));
+        update(digest, parser.encodeResourceToString(map));
+        for (StructureMap dependency : sortByUrl(dependencies, StructureMap::getUrl)) {
+            update(digest, parser.encodeResourceToString(dependency));
+        }
+        for (Map.Entry<String, String> inputHash : new TreeMap<>(inputHashes).entrySet()) {
+            update(digest, inputHash.getKey());
+            update(digest, inputHash.getValue());
+        }
+        return ContentHash.toHex(digest.digest());
+    }
+
+    /**
+     * @param key
+     * @return the cached profiles, or null if there is no usable entry for
+     * the key
+     */
+    public List<StructureDefinition> get(String key) {
+        Path file = getFile(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, reader);
+            List<StructureDefinition> profiles = new ArrayList<>();
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                Resource resource = entry.getResource();
+                if (!(resource instanceof StructureDefinition)) {
+                    return null;
+                }
+                profiles.add((StructureDefinition) resource);
+            }
+            return profiles;
+        } catch (IOException | DataFormatException e) {
+            LOG.warn("Ignoring unreadable analysis cache entry " + file, e);
+            return null;
+        }
+    }
+
+    public void put(String key, List<StructureDefinition> profiles) throws IOException {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        profiles.forEach(profile -> bundle.addEntry().setResource(profile));
+
+        Files.createDirectories(directory);
+        Path file = getFile(key);
+        Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+                fhirContext.newJsonParser().encodeResourceToWriter(bundle, writer);
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private Path getFile(String key) {
+        return directory.resolve(key + ".json");
+    }
+
+    private static <T> List<T> sortByUrl(Collection<T> resources, Function<T, String> url) {
+        List<T> sorted = new ArrayList<>(resources);
+        sorted.sort(Comparator.comparing(url, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return sorted;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
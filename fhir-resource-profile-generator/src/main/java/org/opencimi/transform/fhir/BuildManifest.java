@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Content hashes recorded by the last build in an output directory: the
+ * version of the generator that made the build, one per logical profile
+ * (that is, per BMM class), one per transformation, the profile files each
+ * transformation emitted and one per emitted file.
+ */
+public class BuildManifest {
+
+    public static final String FILE_NAME = ".cimi-build-manifest.properties";
+
+    private static final String GENERATOR_VERSION = "generator.version";
+    private static final String CLASS_PREFIX = "class.";
+    //Distinct prefixes, so no transformation name can collide with another key
+    private static final String TRANSFORM_HASH_PREFIX = "transform.hash.";
+    private static final String TRANSFORM_PROFILES_PREFIX = "transform.profiles.";
+    private static final String PROFILE_PREFIX = "profile.";
+
+    private final Properties entries = new Properties();
+
+    /**
+     * Loads the manifest of the given output directory. The manifest is
+     * empty if the directory was never built incrementally.
+     *
+     * @param outputDirectory
+     * @return
+     * @throws IOException
+     */
+    public static BuildManifest load(Path outputDirectory) throws IOException {
+        BuildManifest manifest = new BuildManifest();
+        Path file = outputDirectory.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                manifest.entries.load(in);
+            }
+        }
+        return manifest;
+    }
+
+    public void save(Path outputDirectory) throws IOException {
+        Path temporaryFile = Files.createTempFile(outputDirectory, FILE_NAME, ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+            entries.store(out, "CIMI to FHIR incremental build manifest");
+        }
+        Files.move(temporaryFile, outputDirectory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public String getGeneratorVersion() {
+        return entries.getProperty(GENERATOR_VERSION);
+    }
+
+    public void setGeneratorVersion(String version) {
+        entries.setProperty(GENERATOR_VERSION, version);
+    }
+
+    public String getClassHash(String className) {
+        return entries.getProperty(CLASS_PREFIX + className);
+    }
+
+    public void setClassHash(String className, String hash) {
+        entries.setProperty(CLASS_PREFIX + className, hash);
+    }
+
+    public String getTransformHash(String transformName) {
+        return entries.getProperty(TRANSFORM_HASH_PREFIX + transformName);
+    }
+
+    public void setTransformHash(String transformName, String hash) {
+        entries.setProperty(TRANSFORM_HASH_PREFIX + transformName, hash);
+    }
+
+    /**
+     * @param transformName
+     * @return the profile files emitted by the transformation, or null if the
+     * transformation was never built
+     */
+    public List<String> getTransformProfiles(String transformName) {
+        String profiles = entries.getProperty(TRANSFORM_PROFILES_PREFIX + transformName);
+        if (profiles == null) {
+            return null;
+        }
+        return profiles.isEmpty() ? new ArrayList<>() : Arrays.asList(profiles.split(","));
+    }
+
+    public void setTransformProfiles(String transformName, List<String> profileFiles) {
+        entries.setProperty(TRANSFORM_PROFILES_PREFIX + transformName, String.join(",", profileFiles));
+    }
+
+    /**
+     * @return every profile file emitted by any transformation of the build
+     */
+    public Set<String> getAllTransformProfiles() {
+        Set<String> profileFiles = new HashSet<>();
+        for (String key : entries.stringPropertyNames()) {
+            if (key.startsWith(TRANSFORM_PROFILES_PREFIX)) {
+                profileFiles.addAll(getTransformProfiles(key.substring(TRANSFORM_PROFILES_PREFIX.length())));
+            }
+        }
+        return profileFiles;
+    }
+
+    public String getProfileHash(String profileFile) {
+        return entries.getProperty(PROFILE_PREFIX + profileFile);
+    }
+
+    public void setProfileHash(String profileFile, String hash) {
+        entries.setProperty(PROFILE_PREFIX + profileFile, hash);
+    }
+}
@@ -20,11 +20,12 @@
  */
 package org.opencimi.transform.fhir;
 
-import ca.uhn.fhir.parser.IParser;
-import java.io.File;
-import java.io.FileWriter;
+import ca.uhn.fhir.context.FhirContext;
 import java.io.IOException;
-import org.hl7.fhir.r4.hapi.ctx.DefaultProfileValidationSupport;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
 import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
 import org.hl7.fhir.r4.model.StructureDefinition;
@@ -35,13 +36,26 @@ import org.hl7.fhir.r4.utils.transform.serializer.StructureMapSerializer;
 import org.opencimi.transform.ModelTransform;
 import org.opencimi.transform.parser.TransformationDeserializer;
 import org.opencimi.transform.tools.CimiTransformHelper;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.opencimi.transform.utils.metrics.Timing;
 import org.opencimi.transform.translator.fhir.*;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import org.apache.commons.io.IOUtils;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Load all BMM modules (DONE see CIMI Helper) Flatten specified clinical
@@ -51,66 +65,345 @@ import org.apache.commons.io.IOUtils;
  */
 public class CimiToFhirTranslator {
 
+    private static final Logger LOG = LoggerFactory.getLogger(CimiToFhirTranslator.class);
+    private static final String SNAPSHOT_FILE_NAME = ".cimi-logical-profiles.snapshot";
+    private static final String TEMPORARY_SNAPSHOT_KEY = "temporary";
+
     private CimiTransformHelper helper;
     private FhirLogicalProfileGenerator logicalProfileGenerator;
-    private List<StructureDefinition> logicalProfiles = new ArrayList<>();
+    private LogicalProfileIndex logicalProfiles;
+    //Holds the logical profiles of this run when snapshots are disabled
+    private Path temporarySnapshotFile;
     private List<ModelTransform> transformations;
     private Map<String, StructureMap> resourceProfileMaps = new HashMap<>();
+    //Owned by the translator so its maps are dropped with the job
+    private final StructureMapFactory structureMapFactory = new StructureMapFactory(ConversionHandlerRegistry.createDefault());
     private List<StructureDefinition> resourceProfiles = new ArrayList<>();
+    private FhirTransformationEngine transformationEngine;
+    private PipelineMetrics metrics = PipelineMetrics.NOOP;
+    //Set for the duration of generateFhirResourceProfiles() when enabled
+    private AnalysisCache analysisCache;
+    private Map<String, String> analysisKeys = Collections.emptyMap();
 
     public CimiToFhirTranslator(CimiTransformHelper helper, FhirLogicalProfileGenerator logicalProfileGenerator) {
         this.helper = helper;
         this.logicalProfileGenerator = logicalProfileGenerator;
     }
 
-    public void initialize() {
+    public void initialize() throws IOException {
         helper.initialize();
-        this.logicalProfiles = logicalProfileGenerator.generateLogicalProfile(helper.getBmmModel());
-        TransformationDeserializer deserializer = new TransformationDeserializer();
-        this.transformations = deserializer.loadFromClassPath("/mapping/maps/CimiTransformations.xml");//TODO pass through configuration file
+        this.logicalProfiles = loadLogicalProfiles();
+        try (Timing timing = metrics.time("transformations.load")) {
+            TransformationDeserializer deserializer = new TransformationDeserializer();
+            this.transformations = deserializer.loadFromClassPath("/mapping/maps/CimiTransformations.xml");//TODO pass through configuration file
+        }
+        //The engine was configured with the previous logical profiles
+        this.transformationEngine = null;
     }
 
-    public void generateFhirResourceProfiles() throws IOException {
-        IParser parser = helper.getFhirContext().newJsonParser();
-        parser.setPrettyPrint(true);
+    /**
+     * Indexes the logical profiles of the configured model. The profiles are
+     * streamed into a snapshot as they are generated and decoded from it
+     * whenever they are needed, so none of them is kept for the run. When
+     * snapshots or incremental builds are enabled the snapshot is kept in the
+     * output directory and reused as long as none of the BMM files nor the
+     * clinical statements changed, so an unchanged model is not parsed at all.
+     * Otherwise the snapshot is a temporary file.
+     */
+    private LogicalProfileIndex loadLogicalProfiles() throws IOException {
+        deleteTemporarySnapshot();
+        if (helper.getConfig().isSnapshot() || helper.getConfig().isIncremental()) {
+            Path snapshotFile = Paths.get(helper.getConfig().getOutputDirectory(), SNAPSHOT_FILE_NAME);
+            try {
+                String key = LogicalProfileSnapshot.computeKey(helper.computeModelHash() + "|" + logicalProfileGenerator.getBaseUrl(), helper.getFhirContext());
+                List<StructureDefinition> snapshot = LogicalProfileSnapshot.read(snapshotFile, key, helper.getFhirContext());
+                if (snapshot != null) {
+                    LOG.info("Using logical profile snapshot " + snapshotFile);
+                    metrics.increment("logical.snapshot.hits");
+                    return LogicalProfileIndex.of(helper.getFhirContext(), snapshot);
+                }
+                return generateLogicalProfiles(snapshotFile, key);
+            } catch (IOException | UncheckedIOException e) {
+                LOG.warn("Unable to use logical profile snapshot " + snapshotFile, e);
+            }
+        }
+        temporarySnapshotFile = Files.createTempFile("cimi-logical-profiles", ".snapshot");
+        temporarySnapshotFile.toFile().deleteOnExit();
+        return generateLogicalProfiles(temporarySnapshotFile, TEMPORARY_SNAPSHOT_KEY);
+    }
 
+    private LogicalProfileIndex generateLogicalProfiles(Path snapshotFile, String key) throws IOException {
+        LogicalProfileIndex.Builder index = new LogicalProfileIndex.Builder(helper.getFhirContext());
+        try (LogicalProfileSnapshot.Writer writer = new LogicalProfileSnapshot.Writer(snapshotFile, key, helper.getFhirContext())) {
+            logicalProfileGenerator.generateLogicalProfile(helper.getBmmModel(), writer.andThen(index));
+            writer.commit();
+        }
+        List<StructureDefinition> snapshot = LogicalProfileSnapshot.read(snapshotFile, key, helper.getFhirContext());
+        if (snapshot == null) {
+            throw new IOException("Unable to read back logical profile snapshot " + snapshotFile);
+        }
+        return index.build(snapshot);
+    }
+
+    private void deleteTemporarySnapshot() throws IOException {
+        if (temporarySnapshotFile != null) {
+            Files.deleteIfExists(temporarySnapshotFile);
+            temporarySnapshotFile = null;
+        }
+    }
+
+    public void generateFhirResourceProfiles() throws IOException {
         StructureMapSerializer serializer = new StructureMapSerializer();
-        PrePopulatedValidationSupport validationSupport = new PrePopulatedValidationSupport();
-        List<StructureDefinition> result = new ArrayList<>();
-        BatchContext context = new BatchContext();
-        context.setBaseGeneratedProfileUrl("http://opencimi.org/logical-model/fhir/");
+        List<StructureMap> maps = new ArrayList<>();
         for (ModelTransform transform : transformations) {
-            StructureMap map = StructureMapFactory.build(transform);
+            StructureMap map = structureMapFactory.toStructureMap(transform, metrics);
+            //The engines resolve maps through this same instance
             resourceProfileMaps.put(map.getUrl(), map);
-            System.out.println(serializer.render(map));
-            logicalProfiles.forEach(logicalProfile -> {
-                validationSupport.addStructureDefinition(logicalProfile);
-            });
-            FhirTransformationEngine transformationEngine = configureTransformationEngine(helper, resourceProfileMaps, validationSupport);
-            List<StructureDefinition> profiles;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(serializer.render(map));
+            }
+            maps.add(map);
+        }
+
+        resourceProfiles.clear();
+        Path outputDirectory = Paths.get(helper.getConfig().getOutputDirectory());
+        TransformationScheduler scheduler = new TransformationScheduler(logicalProfiles);
+        IncrementalBuild incrementalBuild = null;
+        if (helper.getConfig().isIncremental()) {
+            incrementalBuild = new IncrementalBuild(helper.getFhirContext(), outputDirectory, logicalProfiles, transformations);
+            incrementalBuild.plan(maps, scheduler);
+        }
+
+        if (helper.getConfig().isAnalysisCache()) {
+            analysisCache = new AnalysisCache(helper.getFhirContext(), outputDirectory.resolve(AnalysisCache.DIRECTORY_NAME));
+            analysisKeys = computeAnalysisKeys(maps, scheduler);
+        } else {
+            analysisCache = null;
+            analysisKeys = Collections.emptyMap();
+        }
+
+        int parallelism = helper.getConfig().getParallelism();
+        try (Timing timing = metrics.time("resource.generate");
+                ProfileOutputWriter writer = new ProfileOutputWriter(helper.getFhirContext(), outputDirectory)) {
+            writer.setMetrics(metrics);
+            if (parallelism <= 1) {
+                //Same inputs as the concurrent analysis, so the number of
+                //threads never changes the profiles: each map only sees the
+                //profiles published by the previous levels
+                for (List<StructureMap> level : scheduler.schedule(maps)) {
+                    List<StructureDefinition> publishedProfiles = new ArrayList<>(resourceProfiles);
+                    for (StructureMap map : level) {
+                        List<StructureDefinition> profiles = isUpToDate(incrementalBuild, map)
+                                ? incrementalBuild.loadProfiles(map)
+                                : analyse(this::getTransformationEngine, createBatchContext(publishedProfiles), map);
+                        publish(map, profiles, writer, incrementalBuild);
+                    }
+                }
+            } else {
+                generateFhirResourceProfilesConcurrently(maps, scheduler, parallelism, writer, incrementalBuild);
+            }
+        }
+        if (incrementalBuild != null) {
+            incrementalBuild.save();
+        }
+    }
+
+    /**
+     * Analyses the maps level by level, as given by the
+     * {@link TransformationScheduler}. The maps of a level are independent
+     * from each other and run on a pool of <code>parallelism</code> threads.
+     * Each pool thread owns its own engine, and each analysis gets its own
+     * BatchContext holding the profiles published by the previous levels.
+     * Profiles are published in the original transformation order once the
+     * whole level is done.
+     */
+    private void generateFhirResourceProfilesConcurrently(List<StructureMap> maps, TransformationScheduler scheduler, int parallelism,
+            ProfileOutputWriter writer, IncrementalBuild incrementalBuild) throws IOException {
+        List<List<StructureMap>> levels = scheduler.schedule(maps);
+        ThreadLocal<FhirTransformationEngine> engines = ThreadLocal.withInitial(this::createTransformationEngine);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (List<StructureMap> level : levels) {
+                List<StructureDefinition> publishedProfiles = new ArrayList<>(resourceProfiles);
+                List<Future<List<StructureDefinition>>> analyses = new ArrayList<>();
+                for (StructureMap map : level) {
+                    analyses.add(executor.submit(() -> isUpToDate(incrementalBuild, map)
+                            ? incrementalBuild.loadProfiles(map)
+                            : analyse(engines::get, createBatchContext(publishedProfiles), map)));
+                }
+                for (int i = 0; i < level.size(); i++) {
+                    publish(level.get(i), analyses.get(i).get(), writer, incrementalBuild);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating resource profiles", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Analyses the map, unless the analysis cache already holds its
+     * profiles. The engine is only requested when the map is analysed.
+     */
+    private List<StructureDefinition> analyse(Supplier<FhirTransformationEngine> engine, BatchContext context, StructureMap map) {
+        String key = analysisKeys.get(map.getUrl());
+        if (analysisCache != null && key != null) {
+            List<StructureDefinition> cachedProfiles = analysisCache.get(key);
+            if (cachedProfiles != null) {
+                LOG.debug("Using cached analysis of " + map.getName());
+                metrics.increment("analyse.cache.hits");
+                return cachedProfiles;
+            }
+        }
+
+        FhirTransformationEngine analysisEngine = engine.get();
+        List<StructureDefinition> profiles;
+        try (Timing timing = metrics.time("analyse"); Timing mapTiming = metrics.time("analyse." + map.getName())) {
+            profiles = analysisEngine.analyse(context, null, map).getProfiles();
+            metrics.record("analyse.profilesPerMap", profiles.size());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        if (analysisCache != null && key != null) {
             try {
-                profiles = transformationEngine.analyse(context,null, map).getProfiles();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                analysisCache.put(key, profiles);
+            } catch (IOException e) {
+                LOG.warn("Unable to cache the analysis of " + map.getName(), e);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Computes the analysis cache key of every map. A map's analysis reads
+     * its own logical profiles and the profiles published by the maps it
+     * depends on, which in turn are determined by their own maps and logical
+     * profiles, so the key covers the map, every map it transitively depends
+     * on, and the logical profiles reachable from its source.
+     */
+    private Map<String, String> computeAnalysisKeys(List<StructureMap> maps, TransformationScheduler scheduler) {
+        Map<StructureMap, Set<StructureMap>> directDependencies = new HashMap<>();
+        for (StructureMap map : maps) {
+            directDependencies.put(map, scheduler.findDependencies(map, maps));
+        }
+
+        Map<String, String> keys = new HashMap<>();
+        for (StructureMap map : maps) {
+            Set<StructureMap> dependencies = new LinkedHashSet<>();
+            Deque<StructureMap> toVisit = new ArrayDeque<>(directDependencies.get(map));
+            while (!toVisit.isEmpty()) {
+                StructureMap dependency = toVisit.pop();
+                if (dependency != map && dependencies.add(dependency)) {
+                    toVisit.addAll(directDependencies.get(dependency));
+                }
+            }
+
+            String sourceUrl = TransformationScheduler.getSourceUrl(map);
+            Set<String> inputUrls = new LinkedHashSet<>(scheduler.getReferencedProfiles(sourceUrl));
+            inputUrls.add(sourceUrl);
+            Map<String, String> inputHashes = new HashMap<>();
+            for (String inputUrl : inputUrls) {
+                if (logicalProfiles.contains(inputUrl)) {
+                    inputHashes.put(inputUrl, logicalProfiles.getHash(inputUrl));
+                }
             }
-            result.addAll(profiles);
+            keys.put(map.getUrl(), analysisCache.computeKey(map, dependencies, inputHashes));
+        }
+        return keys;
+    }
+
+    private BatchContext createBatchContext(List<StructureDefinition> publishedProfiles) {
+        BatchContext context = new BatchContext();
+        context.setBaseGeneratedProfileUrl("http://opencimi.org/logical-model/fhir/");
+        publishedProfiles.forEach(context::addStructureDefinition);
+        return context;
+    }
+
+    private boolean isUpToDate(IncrementalBuild incrementalBuild, StructureMap map) {
+        return incrementalBuild != null && incrementalBuild.isUpToDate(map);
+    }
+
+    private void publish(StructureMap map, List<StructureDefinition> profiles, ProfileOutputWriter writer, IncrementalBuild incrementalBuild) throws IOException {
+        resourceProfiles.addAll(profiles);
+        metrics.increment("resource.profiles", profiles.size());
+        if (!isUpToDate(incrementalBuild, map)) {
             for (StructureDefinition profile : profiles) {
-                context.addStructureDefinition(profile);
-                String json = parser.encodeResourceToString(profile);
-                
-                FileWriter fw = new FileWriter(new File(helper.getConfig().getOutputDirectory(), profile.getName() + ".json"));
-                IOUtils.write(json, fw);
-                fw.close();
+                writer.write(profile);
             }
         }
+        if (incrementalBuild != null) {
+            incrementalBuild.recordProfiles(map, profiles);
+        }
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics of this translator and of its helper and logical
+     * profile generator.
+     *
+     * @param metrics
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+        helper.setMetrics(metrics);
+        logicalProfileGenerator.setMetrics(metrics);
+    }
+
+    public List<StructureDefinition> getResourceProfiles() {
+        return resourceProfiles;
+    }
+
+    /**
+     * @return the index of the logical profiles, which decodes a profile
+     * each time it is requested
+     */
+    public LogicalProfileIndex getLogicalProfiles() {
+        return logicalProfiles;
+    }
+
+    public List<ModelTransform> getTransformations() {
+        return transformations;
+    }
+
+    /**
+     * Returns the engine shared by all the transformations of this translator.
+     * It is configured once with the cached core definitions and resolves the
+     * current logical profiles through their index; it is rebuilt only after {@link #initialize()} changes
+     * those profiles.
+     *
+     * @return
+     */
+    public FhirTransformationEngine getTransformationEngine() {
+        if (transformationEngine == null) {
+            transformationEngine = createTransformationEngine();
+        }
+        return transformationEngine;
+    }
+
+    private FhirTransformationEngine createTransformationEngine() {
+        return configureTransformationEngine(helper, resourceProfileMaps, new LogicalProfileValidationSupport(logicalProfiles));
     }
 
     public static FhirTransformationEngine configureTransformationEngine(CimiTransformHelper helper, Map<String, StructureMap> maps, PrePopulatedValidationSupport validationSupport) {
-        DefaultProfileValidationSupport validation = new DefaultProfileValidationSupport();
-        for (StructureDefinition sd : new DefaultProfileValidationSupport().fetchAllStructureDefinitions(helper.getFhirContext())) {
+        return configureTransformationEngine(helper.getFhirContext(), maps, validationSupport);
+    }
+
+    public static FhirTransformationEngine configureTransformationEngine(FhirContext fhirContext, Map<String, StructureMap> maps, PrePopulatedValidationSupport validationSupport) {
+        for (StructureDefinition sd : CoreDefinitionCache.getStructureDefinitions(fhirContext)) {
             validationSupport.addStructureDefinition(sd);
         }
-        HapiWorkerContext hapiContext = new HapiWorkerContext(helper.getFhirContext(), validationSupport);
+        HapiWorkerContext hapiContext = new HapiWorkerContext(fhirContext, validationSupport);
         return new FhirTransformationEngine(hapiContext, maps, null, null);
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.opencimi.transform.OperationParameter;
+import org.opencimi.transform.Rule;
+import org.opencimi.transform.TypeConversion;
+
+/**
+ * Immutable form of a transformation {@link Rule}: the source and target
+ * elements, the conversion with its handler already resolved and the
+ * conversion arguments indexed by name.
+ */
+public final class CompiledRule {
+
+    private final String name;
+    private final String sourceElement;
+    private final String targetElement;
+    private final String conversionType;
+    private final ConversionHandler handler;
+    private final Map<String, String> parameters;
+
+    private CompiledRule(String sourceElement, String targetElement, String conversionType, ConversionHandler handler, Map<String, String> parameters) {
+        this.name = sourceElement + "Rule";
+        this.sourceElement = sourceElement;
+        this.targetElement = targetElement;
+        this.conversionType = conversionType;
+        this.handler = handler;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Compiles the first source and target of the rule, which are the only
+     * ones a StructureMap rule is built from.
+     *
+     * @param rule
+     * @param registry
+     * @return
+     */
+    static CompiledRule compile(Rule rule, ConversionHandlerRegistry registry) {
+        String sourceElement = rule.getSources().get(0).getAttributeList().get(0).getName();
+        String targetElement = rule.getTargets().get(0).getAttributeList().get(0).getName();
+        TypeConversion typeConversion = rule.getTargets().get(0).getTypeConversion();
+        if (typeConversion == null) {
+            return new CompiledRule(sourceElement, targetElement, null, null, Collections.emptyMap());
+        }
+
+        String type = typeConversion.getType();
+        ConversionHandler handler = registry.getHandler(type);
+        if (handler == null) {
+            throw new IllegalArgumentException("Unssupported conversion type '" + type + "'");
+        }
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (OperationParameter parameter : typeConversion.getOperationParameterList()) {
+            //The first argument with a given name wins
+            parameters.putIfAbsent(parameter.getName(), parameter.getValue());
+        }
+        return new CompiledRule(sourceElement, targetElement, type, handler, Collections.unmodifiableMap(parameters));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSourceElement() {
+        return sourceElement;
+    }
+
+    public String getTargetElement() {
+        return targetElement;
+    }
+
+    /**
+     * @return the conversion type without its namespace, or null if the rule
+     * has no conversion
+     */
+    public String getConversionType() {
+        return conversionType;
+    }
+
+    public ConversionHandler getHandler() {
+        return handler;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * @param name
+     * @return the value of the argument
+     * @throws RuntimeException if the rule has no such argument
+     */
+    public String getRequiredParameter(String name) {
+        String value = parameters.get(name);
+        if (value == null && !parameters.containsKey(name)) {
+            throw new RuntimeException("'" + name + "' argument was not specified");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.Rule;
+import org.opencimi.transform.RuleGroup;
+import org.opencimi.transform.serializer.TransformationSerializer;
+import org.opencimi.transform.utils.ContentHash;
+
+/**
+ * Immutable intermediate representation of a {@link ModelTransform}, with
+ * every conversion resolved against a {@link ConversionHandlerRegistry}.
+ * Instances can be shared freely between threads.
+ *
+ * The content hash covers the whole transform, so two transforms with the
+ * same hash compile to the same representation.
+ */
+public final class CompiledTransform {
+
+    private final String name;
+    private final String contentHash;
+    private final String sourceClass;
+    private final String sourceConstraint;
+    private final String targetClass;
+    private final String targetConstraint;
+    private final List<List<CompiledRule>> groups;
+
+    private CompiledTransform(ModelTransform transform, String contentHash, List<List<CompiledRule>> groups) {
+        this.name = transform.getName();
+        this.contentHash = contentHash;
+        this.sourceClass = transform.getSource().getClassName();
+        this.sourceConstraint = transform.getSource().getContraintIdentifier();
+        this.targetClass = transform.getTarget().getClassName();
+        this.targetConstraint = transform.getTarget().getContraintIdentifier();
+        this.groups = groups;
+    }
+
+    public static CompiledTransform compile(ModelTransform transform, ConversionHandlerRegistry registry) {
+        return compile(transform, contentHash(transform), registry);
+    }
+
+    static CompiledTransform compile(ModelTransform transform, String contentHash, ConversionHandlerRegistry registry) {
+        List<List<CompiledRule>> groups = new ArrayList<>();
+        for (RuleGroup ruleGroup : transform.getRuleGroupList()) {
+            List<CompiledRule> rules = new ArrayList<>();
+            for (Rule rule : ruleGroup.getRules()) {
+                rules.add(CompiledRule.compile(rule, registry));
+            }
+            groups.add(Collections.unmodifiableList(rules));
+        }
+        return new CompiledTransform(transform, contentHash, Collections.unmodifiableList(groups));
+    }
+
+    /**
+     * @param transform
+     * @return a hash of the serialized form of the transform
+     */
+    public static String contentHash(ModelTransform transform) {
+        return ContentHash.of(new TransformationSerializer().serialize(transform));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getSourceClass() {
+        return sourceClass;
+    }
+
+    public String getSourceConstraint() {
+        return sourceConstraint;
+    }
+
+    public String getTargetClass() {
+        return targetClass;
+    }
+
+    public String getTargetConstraint() {
+        return targetConstraint;
+    }
+
+    /**
+     * @return the rules of each rule group, in the order of the transform
+     */
+    public List<List<CompiledRule>> getGroups() {
+        return groups;
+    }
+}
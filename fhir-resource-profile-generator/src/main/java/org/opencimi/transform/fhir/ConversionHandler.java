@@ -0,0 +1,40 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import org.hl7.fhir.r4.model.StructureMap;
+
+/**
+ * Turns the conversion of a transformation rule into StructureMap
+ * transforms. Handlers are registered by conversion type in a
+ * {@link ConversionHandlerRegistry}.
+ */
+@FunctionalInterface
+public interface ConversionHandler {
+
+    /**
+     * @param rule the StructureMap rule being built
+     * @param target the target already created for the rule's target element.
+     * Handlers may add further targets to the rule.
+     * @param compiledRule the rule being converted, with its arguments
+     */
+    void apply(StructureMap.StructureMapGroupRuleComponent rule, StructureMap.StructureMapGroupRuleTargetComponent target, CompiledRule compiledRule);
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.StructureMap;
+
+/**
+ * The {@link ConversionHandler}s available to transformations, by conversion
+ * type (the local part of <code>fhir:copy</code>, <code>fhir:cast</code>,
+ * ...). New conversion types are supported by registering a handler.
+ */
+public class ConversionHandlerRegistry {
+
+    private final Map<String, ConversionHandler> handlers = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @return a registry with the handlers for the copy, reference, cast, c
+     * and extension conversions
+     */
+    public static ConversionHandlerRegistry createDefault() {
+        ConversionHandlerRegistry registry = new ConversionHandlerRegistry();
+        registry.register("copy", ConversionHandlerRegistry::copy);
+        registry.register("reference", ConversionHandlerRegistry::reference);
+        registry.register("cast", ConversionHandlerRegistry::cast);
+        registry.register("c", ConversionHandlerRegistry::c);
+        registry.register("extension", (rule, target, compiledRule) -> target.setTransform(StructureMap.StructureMapTransform.EXTENSION));
+        return registry;
+    }
+
+    /**
+     * Registers a handler, replacing the one registered for the type, if any.
+     *
+     * @param conversionType
+     * @param handler
+     */
+    public void register(String conversionType, ConversionHandler handler) {
+        handlers.put(conversionType, handler);
+        version.incrementAndGet();
+    }
+
+    public ConversionHandler getHandler(String conversionType) {
+        return conversionType == null ? null : handlers.get(conversionType);
+    }
+
+    /**
+     * @return a number that changes every time a handler is registered, so
+     * whatever was built with previous handlers can be told apart
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    private static void copy(StructureMap.StructureMapGroupRuleComponent rule, StructureMap.StructureMapGroupRuleTargetComponent target, CompiledRule compiledRule) {
+        target.setTransform(StructureMap.StructureMapTransform.COPY);
+        target.addParameter().setValue(new IdType("a"));
+    }
+
+    private static void reference(StructureMap.StructureMapGroupRuleComponent rule, StructureMap.StructureMapGroupRuleTargetComponent target, CompiledRule compiledRule) {
+        String referent = compiledRule.getRequiredParameter("referent");
+        compiledRule.getRequiredParameter("constraintIdentifier");
+
+        target.setTransform(StructureMap.StructureMapTransform.CREATE);
+        target.setContext("");
+        target.addParameter().setValue(new StringType(referent));
+        target.setVariable("b");
+
+        StructureMap.StructureMapGroupRuleTargetComponent targetDeleteMe = rule.addTarget().setContext("target").setElement(compiledRule.getTargetElement());
+        targetDeleteMe.setTransform(StructureMap.StructureMapTransform.CREATE);
+        targetDeleteMe.setContext("");
+        targetDeleteMe.addParameter().setValue(new StringType(referent));
+        targetDeleteMe.setVariable("c");
+
+        StructureMap.StructureMapGroupRuleTargetComponent target2 = rule.addTarget().setContext("target").setElement(compiledRule.getTargetElement());
+        target2.setTransform(StructureMap.StructureMapTransform.REFERENCE);
+        target2.addParameter().setValue(new IdType("b"));
+    }
+
+    private static void cast(StructureMap.StructureMapGroupRuleComponent rule, StructureMap.StructureMapGroupRuleTargetComponent target, CompiledRule compiledRule) {
+        String targetType = compiledRule.getRequiredParameter("targetType");
+
+        target.setTransform(StructureMap.StructureMapTransform.CAST);
+        target.addParameter().setValue(new IdType("a"));
+        target.addParameter().setValue(new StringType(targetType));
+    }
+
+    private static void c(StructureMap.StructureMapGroupRuleComponent rule, StructureMap.StructureMapGroupRuleTargetComponent target, CompiledRule compiledRule) {
+        target.setTransform(StructureMap.StructureMapTransform.C);
+        target.addParameter().setValue(new IdType("a"));
+    }
+}
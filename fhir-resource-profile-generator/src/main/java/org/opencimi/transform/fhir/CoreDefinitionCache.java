@@ -0,0 +1,52 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.r4.hapi.ctx.DefaultProfileValidationSupport;
+import org.hl7.fhir.r4.model.StructureDefinition;
+
+/**
+ * Process-wide cache of the core FHIR StructureDefinitions shipped with HAPI.
+ * The definitions are read from the validation resources once per FHIR version
+ * and shared by every transformation engine afterwards. They only change
+ * with the HAPI libraries, so the cache is never invalidated.
+ *
+ * Callers must treat the returned definitions as read-only.
+ */
+public final class CoreDefinitionCache {
+
+    private static final Map<FhirVersionEnum, List<StructureDefinition>> coreDefinitions = new ConcurrentHashMap<>();
+
+    private CoreDefinitionCache() {
+    }
+
+    public static List<StructureDefinition> getStructureDefinitions(FhirContext context) {
+        return coreDefinitions.computeIfAbsent(context.getVersion().getVersion(),
+                version -> Collections.unmodifiableList(new ArrayList<>(new DefaultProfileValidationSupport().fetchAllStructureDefinitions(context))));
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.serializer.TransformationSerializer;
+import org.opencimi.transform.utils.ContentHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which transformations of a run must be analysed again, by comparing
+ * the current inputs with the {@link BuildManifest} of the previous build.
+ *
+ * A transformation is outdated when any of the following holds:
+ * <ul>
+ * <li>the previous build was made by another version of the generator or of
+ * HAPI</li>
+ * <li>its definition changed</li>
+ * <li>the logical profile of its source class, or of any class reachable
+ * from it through ancestors and element types, changed</li>
+ * <li>a profile file it emitted was deleted or modified</li>
+ * <li>a transformation it depends on is outdated</li>
+ * </ul>
+ * Up-to-date transformations reuse the profiles already in the output
+ * directory, which are neither analysed nor rewritten. Profile files of the
+ * previous build that no transformation emitted again are deleted.
+ */
+public class IncrementalBuild {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalBuild.class);
+    /**
+     * Must be changed, like {@link AnalysisCache}'s format version, whenever
+     * a change to the code changes the profiles generated from the same
+     * inputs, so that existing output directories are fully rebuilt.
+     */
+    static final String BUILD_VERSION = "2";
+
+    private final FhirContext fhirContext;
+    private final Path outputDirectory;
+    private final BuildManifest previousManifest;
+    private final BuildManifest manifest = new BuildManifest();
+    private final Map<String, String> classHashesByUrl = new HashMap<>();
+    private final Map<String, String> classNamesByUrl = new HashMap<>();
+    private final Map<String, String> transformHashes = new HashMap<>();
+    private final Set<String> outdatedTransforms = new HashSet<>();
+    private final List<String> writtenProfiles = new ArrayList<>();
+    private final Set<String> emittedProfiles = new HashSet<>();
+    private final boolean generatorChanged;
+
+    public IncrementalBuild(FhirContext fhirContext, Path outputDirectory, LogicalProfileIndex logicalProfiles, List<ModelTransform> transforms) throws IOException {
+        this.fhirContext = fhirContext;
+        this.outputDirectory = outputDirectory;
+        this.previousManifest = BuildManifest.load(outputDirectory);
+        String generatorVersion = BUILD_VERSION + "|" + fhirContext.getVersion().getVersion().name()
+                + "|" + FhirContext.class.getPackage().getImplementationVersion();
+        this.generatorChanged = !generatorVersion.equals(previousManifest.getGeneratorVersion());
+        manifest.setGeneratorVersion(generatorVersion);
+
+        for (String url : logicalProfiles.getUrls()) {
+            String hash = logicalProfiles.getHash(url);
+            classHashesByUrl.put(url, hash);
+            classNamesByUrl.put(url, logicalProfiles.getName(url));
+            manifest.setClassHash(logicalProfiles.getName(url), hash);
+        }
+        TransformationSerializer serializer = new TransformationSerializer();
+        for (ModelTransform transform : transforms) {
+            String hash = ContentHash.of(serializer.serialize(transform));
+            transformHashes.put(transform.getName(), hash);
+            manifest.setTransformHash(transform.getName(), hash);
+        }
+    }
+
+    /**
+     * Computes the set of outdated transformations.
+     *
+     * @param maps the maps built from the transformations of this run
+     * @param scheduler
+     * @throws IOException
+     */
+    public void plan(List<StructureMap> maps, TransformationScheduler scheduler) throws IOException {
+        outdatedTransforms.clear();
+        for (StructureMap map : maps) {
+            if (isOutdated(map, scheduler)) {
+                outdatedTransforms.add(map.getName());
+            }
+        }
+
+        Map<StructureMap, Set<StructureMap>> dependencies = new HashMap<>();
+        for (StructureMap map : maps) {
+            dependencies.put(map, scheduler.findDependencies(map, maps));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (StructureMap map : maps) {
+                if (outdatedTransforms.contains(map.getName())) {
+                    continue;
+                }
+                for (StructureMap dependency : dependencies.get(map)) {
+                    if (outdatedTransforms.contains(dependency.getName())) {
+                        outdatedTransforms.add(map.getName());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        LOG.info(outdatedTransforms.size() + " of " + maps.size() + " transformations are outdated");
+    }
+
+    public boolean isUpToDate(StructureMap map) {
+        return !outdatedTransforms.contains(map.getName());
+    }
+
+    /**
+     * Reads the profiles an up-to-date transformation emitted in the previous
+     * build.
+     *
+     * @param map
+     * @return
+     * @throws IOException
+     */
+    public List<StructureDefinition> loadProfiles(StructureMap map) throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        List<StructureDefinition> profiles = new ArrayList<>();
+        for (String profileFile : previousManifest.getTransformProfiles(map.getName())) {
+            try (Reader reader = Files.newBufferedReader(outputDirectory.resolve(profileFile), StandardCharsets.UTF_8)) {
+                profiles.add(parser.parseResource(StructureDefinition.class, reader));
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Records the profiles the transformation produced in this run.
+     *
+     * @param map
+     * @param profiles
+     */
+    public void recordProfiles(StructureMap map, List<StructureDefinition> profiles) {
+        List<String> profileFiles = new ArrayList<>();
+        for (StructureDefinition profile : profiles) {
+            String profileFile = ProfileOutputWriter.getFileName(profile);
+            profileFiles.add(profileFile);
+            emittedProfiles.add(profileFile);
+            if (isUpToDate(map)) {
+                manifest.setProfileHash(profileFile, previousManifest.getProfileHash(profileFile));
+            } else {
+                writtenProfiles.add(profileFile);
+            }
+        }
+        manifest.setTransformProfiles(map.getName(), profileFiles);
+    }
+
+    /**
+     * Deletes the profile files of the previous build that were not emitted
+     * again, then saves the manifest of this run. Must be called once every
+     * profile has been written to the output directory.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        for (String profileFile : previousManifest.getAllTransformProfiles()) {
+            if (!emittedProfiles.contains(profileFile) && Files.deleteIfExists(outputDirectory.resolve(profileFile))) {
+                LOG.debug("Deleted " + profileFile + ", which is no longer emitted");
+            }
+        }
+        for (String profileFile : writtenProfiles) {
+            manifest.setProfileHash(profileFile, ContentHash.of(outputDirectory.resolve(profileFile)));
+        }
+        manifest.save(outputDirectory);
+    }
+
+    private boolean isOutdated(StructureMap map, TransformationScheduler scheduler) throws IOException {
+        String name = map.getName();
+        if (generatorChanged) {
+            return true;
+        }
+        if (!Objects.equals(transformHashes.get(name), previousManifest.getTransformHash(name))) {
+            LOG.debug(name + " changed");
+            return true;
+        }
+
+        List<String> profileFiles = previousManifest.getTransformProfiles(name);
+        if (profileFiles == null) {
+            return true;
+        }
+        for (String profileFile : profileFiles) {
+            Path file = outputDirectory.resolve(profileFile);
+            if (!Files.exists(file) || !ContentHash.of(file).equals(previousManifest.getProfileHash(profileFile))) {
+                LOG.debug(name + " emitted " + profileFile + ", which was modified or deleted");
+                return true;
+            }
+        }
+
+        String sourceUrl = TransformationScheduler.getSourceUrl(map);
+        Set<String> classUrls = new HashSet<>(scheduler.getReferencedProfiles(sourceUrl));
+        classUrls.add(sourceUrl);
+        for (String classUrl : classUrls) {
+            String className = classNamesByUrl.get(classUrl);
+            if (className != null && !classHashesByUrl.get(classUrl).equals(previousManifest.getClassHash(className))) {
+                LOG.debug(name + " depends on " + className + ", which changed");
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.opencimi.transform.utils.ContentHash;
+
+/**
+ * What the translator needs to know about the logical profiles of a run
+ * without holding them: the name, content hash and referenced URLs of every
+ * profile, by URL, in model order.
+ *
+ * The profiles themselves stay in a backing list, normally the lazy list of
+ * a {@link org.opencimi.transform.translator.fhir.LogicalProfileSnapshot},
+ * which decodes a profile each time it is accessed. The index is filled by
+ * a {@link Builder}, which is fed the profiles one at a time and keeps none
+ * of them.
+ */
+public final class LogicalProfileIndex {
+
+    private final Map<String, Entry> entries;
+    private final Map<String, String> urlsByName;
+    private final List<StructureDefinition> profiles;
+
+    private static final class Entry {
+        final int position;
+        final String name;
+        final String hash;
+        final Set<String> references;
+
+        Entry(int position, String name, String hash, Set<String> references) {
+            this.position = position;
+            this.name = name;
+            this.hash = hash;
+            this.references = references;
+        }
+    }
+
+    private LogicalProfileIndex(Map<String, Entry> entries, Map<String, String> urlsByName, List<StructureDefinition> profiles) {
+        this.entries = entries;
+        this.urlsByName = urlsByName;
+        this.profiles = profiles;
+    }
+
+    /**
+     * Indexes profiles that are already in memory, or decoded on access.
+     *
+     * @param fhirContext
+     * @param profiles
+     * @return
+     */
+    public static LogicalProfileIndex of(FhirContext fhirContext, List<StructureDefinition> profiles) {
+        Builder builder = new Builder(fhirContext);
+        profiles.forEach(builder);
+        return builder.build(profiles);
+    }
+
+    /**
+     * @return the URLs of the profiles, in model order
+     */
+    public Collection<String> getUrls() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(String url) {
+        return entries.containsKey(url);
+    }
+
+    public String getName(String url) {
+        Entry entry = entries.get(url);
+        return entry == null ? null : entry.name;
+    }
+
+    public String getUrl(String name) {
+        return urlsByName.get(name);
+    }
+
+    /**
+     * @param url
+     * @return the hash of the JSON encoding of the profile, or null
+     */
+    public String getHash(String url) {
+        Entry entry = entries.get(url);
+        return entry == null ? null : entry.hash;
+    }
+
+    /**
+     * @param url
+     * @return the base definition and element types of the profile, which
+     * may or may not be logical profiles of this index
+     */
+    public Set<String> getReferences(String url) {
+        Entry entry = entries.get(url);
+        return entry == null ? Collections.emptySet() : entry.references;
+    }
+
+    /**
+     * @param url
+     * @return the profile, decoded again on every call when the backing list
+     * is lazy, or null
+     */
+    public StructureDefinition getProfile(String url) {
+        Entry entry = entries.get(url);
+        return entry == null ? null : profiles.get(entry.position);
+    }
+
+    /**
+     * @return the backing list, in model order
+     */
+    public List<StructureDefinition> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Indexes the profiles it accepts, in order, and keeps none of them.
+     */
+    public static final class Builder implements Consumer<StructureDefinition> {
+
+        private final IParser parser;
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+        private final Map<String, String> urlsByName = new HashMap<>();
+        private int count;
+
+        public Builder(FhirContext fhirContext) {
+            this.parser = fhirContext.newJsonParser();
+        }
+
+        @Override
+        public void accept(StructureDefinition profile) {
+            Set<String> references = new LinkedHashSet<>();
+            if (profile.getBaseDefinition() != null) {
+                references.add(profile.getBaseDefinition());
+            }
+            for (ElementDefinition element : profile.getSnapshot().getElement()) {
+                element.getType().forEach(type -> references.add(type.getCode()));
+            }
+            references.remove(profile.getUrl());
+            String hash = ContentHash.of(parser.encodeResourceToString(profile));
+            entries.put(profile.getUrl(), new Entry(count++, profile.getName(),
+                    hash, Collections.unmodifiableSet(new LinkedHashSet<>(references))));
+            urlsByName.put(profile.getName(), profile.getUrl());
+        }
+
+        /**
+         * @param profiles the accepted profiles, in the order they were
+         * accepted
+         * @return
+         */
+        public LogicalProfileIndex build(List<StructureDefinition> profiles) {
+            if (profiles.size() != count) {
+                throw new IllegalArgumentException("Indexed " + count + " profiles, got " + profiles.size());
+            }
+            return new LogicalProfileIndex(new LinkedHashMap<>(entries), new HashMap<>(urlsByName), profiles);
+        }
+    }
+}
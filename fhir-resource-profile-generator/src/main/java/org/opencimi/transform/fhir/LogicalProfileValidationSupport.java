@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
+import org.hl7.fhir.r4.model.StructureDefinition;
+
+/**
+ * Validation support that resolves the logical profiles of a
+ * {@link LogicalProfileIndex} when they are requested, rather than holding
+ * all of them. The most recently used profiles are kept decoded, so an
+ * analysis that reads the same profiles repeatedly decodes them once.
+ * Everything added through {@link #addStructureDefinition}, such as the core
+ * definitions, is served as before.
+ */
+public class LogicalProfileValidationSupport extends PrePopulatedValidationSupport {
+
+    private static final int DECODED_PROFILES = 64;
+
+    private final LogicalProfileIndex logicalProfiles;
+    private final Map<String, StructureDefinition> decodedProfiles = Collections.synchronizedMap(
+            new LinkedHashMap<String, StructureDefinition>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, StructureDefinition> eldest) {
+                    return size() > DECODED_PROFILES;
+                }
+            });
+
+    public LogicalProfileValidationSupport(LogicalProfileIndex logicalProfiles) {
+        this.logicalProfiles = logicalProfiles;
+    }
+
+    @Override
+    public StructureDefinition fetchStructureDefinition(FhirContext theContext, String theUrl) {
+        StructureDefinition logicalProfile = fetchLogicalProfile(theUrl);
+        return logicalProfile != null ? logicalProfile : super.fetchStructureDefinition(theContext, theUrl);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends IBaseResource> T fetchResource(FhirContext theContext, Class<T> theClass, String theUri) {
+        if (StructureDefinition.class.equals(theClass)) {
+            StructureDefinition logicalProfile = fetchLogicalProfile(theUri);
+            if (logicalProfile != null) {
+                return (T) logicalProfile;
+            }
+        }
+        return super.fetchResource(theContext, theClass, theUri);
+    }
+
+    /**
+     * Decodes every logical profile: only meant for the rare callers that
+     * need all the definitions at once.
+     */
+    @Override
+    public List<StructureDefinition> fetchAllStructureDefinitions(FhirContext theContext) {
+        List<StructureDefinition> definitions = new ArrayList<>(super.fetchAllStructureDefinitions(theContext));
+        definitions.addAll(logicalProfiles.getProfiles());
+        return definitions;
+    }
+
+    private StructureDefinition fetchLogicalProfile(String url) {
+        if (url == null || !logicalProfiles.contains(url)) {
+            return null;
+        }
+        return decodedProfiles.computeIfAbsent(url, logicalProfiles::getProfile);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.opencimi.transform.utils.metrics.Timing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes profiles to the output directory as pretty-printed JSON without
+ * blocking the caller on disk I/O.
+ *
+ * Profiles are encoded by a pool of writer threads straight into temporary
+ * files next to their final location. A single committer thread then takes
+ * the encoded files in submission order. Every <code>batchSize</code> files,
+ * or when no more profiles arrive, it syncs them to disk, renames them into
+ * place and syncs the directory once. Readers of the output directory never
+ * see a partially written profile, and when two profiles share a file name
+ * the last one submitted wins.
+ *
+ * The number of profiles waiting to be written is bounded: {@link #write}
+ * blocks when the queue is full.
+ *
+ * Temporary files are created owner-only. On POSIX file systems they are
+ * given the permissions of the file they replace, or
+ * {@link #FILE_PERMISSIONS} for new files, before being renamed into place.
+ */
+public class ProfileOutputWriter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProfileOutputWriter.class);
+
+    /**
+     * Permissions of new profile files, those of a plain file created under
+     * the usual 022 umask.
+     */
+    public static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+    private static final long LINGER_MILLIS = 50;
+    private static final PendingWrite END_OF_STREAM = new PendingWrite(null, null);
+
+    private final Path outputDirectory;
+    private final int batchSize;
+    private final boolean sync;
+    private final boolean posix;
+    private final ThreadLocal<IParser> parsers;
+    private final BlockingQueue<PendingWrite> pendingWrites;
+    private final ExecutorService encoders;
+    private final Thread committer;
+    private volatile IOException failure;
+    private volatile PipelineMetrics metrics = PipelineMetrics.NOOP;
+    private boolean closed;
+
+    private static class PendingWrite {
+        final FutureTask<Path> encoding;
+        final Path target;
+        Path temporaryFile;
+
+        PendingWrite(FutureTask<Path> encoding, Path target) {
+            this.encoding = encoding;
+            this.target = target;
+        }
+    }
+
+    public ProfileOutputWriter(FhirContext fhirContext, Path outputDirectory) {
+        this(fhirContext, outputDirectory, 2, 64, 32, true);
+    }
+
+    /**
+     * @param fhirContext
+     * @param outputDirectory
+     * @param writerThreads number of threads encoding profiles
+     * @param queueCapacity maximum number of profiles waiting to be committed
+     * @param batchSize maximum number of files committed together
+     * @param sync whether committed files are forced to the storage device
+     */
+    public ProfileOutputWriter(FhirContext fhirContext, Path outputDirectory, int writerThreads, int queueCapacity, int batchSize, boolean sync) {
+        this.outputDirectory = outputDirectory;
+        this.batchSize = batchSize;
+        this.sync = sync;
+        this.posix = outputDirectory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        this.parsers = ThreadLocal.withInitial(() -> fhirContext.newJsonParser().setPrettyPrint(true));
+        this.pendingWrites = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.encoders = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "profile-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.committer = new Thread(this::commitPendingWrites, "profile-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Queues the profile to be written to <code>[name].json</code>.
+     *
+     * @param profile
+     * @throws IOException if a previous write failed
+     */
+    public void write(StructureDefinition profile) throws IOException {
+        checkFailure();
+        Path target = outputDirectory.resolve(getFileName(profile));
+        FutureTask<Path> encoding = new FutureTask<>(() -> encode(profile, target));
+        try {
+            pendingWrites.put(new PendingWrite(encoding, target));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing " + target);
+        }
+        encoders.execute(encoding);
+    }
+
+    /**
+     * @param metrics times the encoding of every profile as
+     * <code>output.encode</code> and every batch commit as
+     * <code>output.commit</code>
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public static String getFileName(StructureDefinition profile) {
+        return profile.getName() + ".json";
+    }
+
+    /**
+     * Waits until every queued profile has been committed.
+     *
+     * @throws IOException if any write failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            pendingWrites.put(END_OF_STREAM);
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing profiles to " + outputDirectory);
+        } finally {
+            encoders.shutdownNow();
+        }
+        checkFailure();
+    }
+
+    private Path encode(StructureDefinition profile, Path target) throws IOException {
+        Path temporaryFile = Files.createTempFile(outputDirectory, "." + target.getFileName(), ".tmp");
+        try (Timing timing = metrics.time("output.encode");
+                Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            parsers.get().encodeResourceToWriter(profile, writer);
+            if (posix) {
+                Files.setPosixFilePermissions(temporaryFile, getPermissions(target));
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        return temporaryFile;
+    }
+
+    private static Set<PosixFilePermission> getPermissions(Path target) throws IOException {
+        try {
+            return Files.getPosixFilePermissions(target);
+        } catch (NoSuchFileException e) {
+            return FILE_PERMISSIONS;
+        }
+    }
+
+    private void commitPendingWrites() {
+        List<PendingWrite> batch = new ArrayList<>();
+        try {
+            while (true) {
+                PendingWrite next = batch.isEmpty()
+                        ? pendingWrites.take()
+                        : pendingWrites.poll(LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    commit(batch);
+                } else if (next == END_OF_STREAM) {
+                    commit(batch);
+                    return;
+                } else {
+                    awaitEncoding(next);
+                    if (next.temporaryFile != null) {
+                        batch.add(next);
+                    }
+                    if (batch.size() >= batchSize) {
+                        commit(batch);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Interrupted while committing profiles"));
+            discard(batch);
+        }
+    }
+
+    private void awaitEncoding(PendingWrite write) throws InterruptedException {
+        try {
+            write.temporaryFile = write.encoding.get();
+        } catch (ExecutionException e) {
+            fail(e.getCause());
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (Timing timing = metrics.time("output.commit")) {
+            if (failure == null) {
+                metrics.record("output.batchSize", batch.size());
+                if (sync) {
+                    for (PendingWrite write : batch) {
+                        force(write.temporaryFile);
+                    }
+                }
+                for (PendingWrite write : batch) {
+                    move(write.temporaryFile, write.target);
+                }
+                if (sync) {
+                    forceDirectory();
+                }
+                LOG.debug("Committed " + batch.size() + " profiles to " + outputDirectory);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            discard(batch);
+        }
+    }
+
+    private void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private void forceDirectory() {
+        //Not every platform allows opening a directory as a channel
+        try (FileChannel channel = FileChannel.open(outputDirectory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Could not sync directory " + outputDirectory + ": " + e.getMessage());
+        }
+    }
+
+    private void discard(List<PendingWrite> batch) {
+        for (PendingWrite write : batch) {
+            try {
+                Files.deleteIfExists(write.temporaryFile);
+            } catch (IOException e) {
+                LOG.warn("Could not delete temporary file " + write.temporaryFile, e);
+            }
+        }
+        batch.clear();
+    }
+
+    private void fail(Throwable cause) {
+        if (failure == null) {
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Error writing profiles to " + outputDirectory, failure);
+        }
+    }
+}
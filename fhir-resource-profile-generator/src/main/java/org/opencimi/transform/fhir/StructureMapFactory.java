@@ -20,89 +20,184 @@
  */
 package org.opencimi.transform.fhir;
 
-import java.util.Optional;
-import org.hl7.fhir.r4.model.IdType;
-import org.hl7.fhir.r4.model.StringType;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.hl7.fhir.r4.model.StructureMap;
 import org.opencimi.transform.ModelTransform;
-import org.opencimi.transform.OperationParameter;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.opencimi.transform.utils.metrics.Timing;
 
+/**
+ * Builds the StructureMap of a {@link ModelTransform} in two stages: the
+ * transform is first compiled into a {@link CompiledTransform}, which
+ * resolves every conversion to its {@link ConversionHandler}, and the map is
+ * then generated from it.
+ *
+ * Both stages are cached under the content hash of the transform, so an
+ * unchanged transform is only compiled and built once while it stays in the
+ * cache. Cached maps are never handed out: callers get a copy they are free
+ * to modify.
+ *
+ * The caches only live in the memory of this factory and are never
+ * persisted; each holds at most {@link #DEFAULT_CACHE_SIZE} entries, or the
+ * size given to the constructor, and evicts the least recently used one
+ * beyond that. Reuse across runs is left to the incremental build and the
+ * analysis cache, which work from the output directory.
+ */
 public class StructureMapFactory {
 
     public static final String STRUCTURE_MAP_URI_BASE = "http://hl7.org/cimi/fhir/transformation/";
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static final StructureMapFactory DEFAULT = new StructureMapFactory(ConversionHandlerRegistry.createDefault());
+
+    private final ConversionHandlerRegistry registry;
+    private final Map<String, CompiledTransform> compiledTransforms;
+    private final Map<String, StructureMap> structureMaps;
+
+    public StructureMapFactory(ConversionHandlerRegistry registry) {
+        this(registry, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param registry
+     * @param cacheSize the maximum number of compiled transforms and of maps
+     * kept by this factory
+     */
+    public StructureMapFactory(ConversionHandlerRegistry registry, int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + cacheSize);
+        }
+        this.registry = registry;
+        this.compiledTransforms = createCache(cacheSize);
+        this.structureMaps = createCache(cacheSize);
+    }
+
+    private static <V> Map<String, V> createCache(int cacheSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * @return the factory used by the static build methods, with the default
+     * conversion handlers. It is shared by the whole process, so jobs that
+     * should not keep each other's maps create their own factory.
+     */
+    public static StructureMapFactory getDefault() {
+        return DEFAULT;
+    }
 
     public static StructureMap build(ModelTransform transform) {
+        return build(transform, PipelineMetrics.NOOP);
+    }
+
+    /**
+     * Builds the map, timing it as <code>structuremap.build</code> and
+     * counting its rules.
+     *
+     * @param transform
+     * @param metrics
+     * @return
+     */
+    public static StructureMap build(ModelTransform transform, PipelineMetrics metrics) {
+        return DEFAULT.toStructureMap(transform, metrics);
+    }
+
+    public ConversionHandlerRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @param transform
+     * @return the compiled form of the transform, shared with every other
+     * caller compiling an identical transform
+     */
+    public CompiledTransform compile(ModelTransform transform) {
+        String contentHash = CompiledTransform.contentHash(transform);
+        return compile(transform, contentHash);
+    }
+
+    private CompiledTransform compile(ModelTransform transform, String contentHash) {
+        //Compiled outside the lock of the cache, concurrent callers keep the
+        //first compiled form
+        String key = cacheKey(contentHash);
+        CompiledTransform compiled = compiledTransforms.get(key);
+        if (compiled == null) {
+            compiled = CompiledTransform.compile(transform, contentHash, registry);
+            CompiledTransform existing = compiledTransforms.putIfAbsent(key, compiled);
+            if (existing != null) {
+                compiled = existing;
+            }
+        }
+        return compiled;
+    }
+
+    public StructureMap toStructureMap(ModelTransform transform, PipelineMetrics metrics) {
+        try (Timing timing = metrics.time("structuremap.build")) {
+            String contentHash = CompiledTransform.contentHash(transform);
+            String key = cacheKey(contentHash);
+            StructureMap map = structureMaps.get(key);
+            if (map != null) {
+                metrics.increment("structuremap.cache.hits");
+                return map.copy();
+            }
+
+            map = createStructureMap(compile(transform, contentHash));
+            metrics.increment("structuremap.maps");
+            map.getGroup().forEach(group -> metrics.increment("structuremap.rules", group.getRule().size()));
+            StructureMap existing = structureMaps.putIfAbsent(key, map);
+            return (existing != null ? existing : map).copy();
+        }
+    }
+
+    /**
+     * Forgets every compiled transform and map built so far.
+     */
+    public void clearCache() {
+        compiledTransforms.clear();
+        structureMaps.clear();
+    }
+
+    /**
+     * Maps built with handlers that were replaced since are not reused.
+     */
+    private String cacheKey(String contentHash) {
+        return registry.getVersion() + ":" + contentHash;
+    }
+
+    private static StructureMap createStructureMap(CompiledTransform transform) {
         StructureMap map = new StructureMap();
         map.setName(transform.getName());
         map.setUrl(STRUCTURE_MAP_URI_BASE + map.getName().toLowerCase());
-        map.addStructure().setUrl(transform.getSource().getContraintIdentifier())
-            .setAlias(transform.getSource().getClassName())
+        map.addStructure().setUrl(transform.getSourceConstraint())
+            .setAlias(transform.getSourceClass())
             .setMode(StructureMap.StructureMapModelMode.SOURCE)
             .setDocumentation("Source model");
-        map.addStructure().setUrl(transform.getTarget().getContraintIdentifier())
-            .setAlias(transform.getTarget().getClassName())
+        map.addStructure().setUrl(transform.getTargetConstraint())
+            .setAlias(transform.getTargetClass())
             .setMode(StructureMap.StructureMapModelMode.TARGET)
             .setDocumentation("Target model");
-        transform.getRuleGroupList().forEach(ruleGroup -> {
+        for (List<CompiledRule> rules : transform.getGroups()) {
             StructureMap.StructureMapGroupComponent group = map.addGroup().setName("mainGroup");
-            group.addInput().setName("source").setType(transform.getSource().getClassName()).setMode(StructureMap.StructureMapInputMode.SOURCE);
-            group.addInput().setName("target").setType(transform.getTarget().getClassName()).setMode(StructureMap.StructureMapInputMode.TARGET);
+            group.addInput().setName("source").setType(transform.getSourceClass()).setMode(StructureMap.StructureMapInputMode.SOURCE);
+            group.addInput().setName("target").setType(transform.getTargetClass()).setMode(StructureMap.StructureMapInputMode.TARGET);
             group.setTypeMode(StructureMap.StructureMapGroupTypeMode.TYPEANDTYPES);
-            ruleGroup.getRules().forEach(rule -> {
+            for (CompiledRule rule : rules) {
                 StructureMap.StructureMapGroupRuleComponent transformRule = group.addRule();
-                transformRule.setName(rule.getSources().get(0).getAttributeList().get(0).getName() + "Rule");
-                StructureMap.StructureMapGroupRuleSourceComponent source = transformRule.addSource().setContext("source").setElement(rule.getSources().get(0).getAttributeList().get(0).getName()).setVariable("a");
-                StructureMap.StructureMapGroupRuleTargetComponent target = transformRule.addTarget().setContext("target").setElement(rule.getTargets().get(0).getAttributeList().get(0).getName());
-                if (rule.getTargets().get(0).getTypeConversion() != null) { //.setTransform(StructureMap.StructureMapTransform.EXTENSION);
-                    String type = rule.getTargets().get(0).getTypeConversion().getType();
-                    switch (type) {
-                        case "copy":
-                            target.setTransform(StructureMap.StructureMapTransform.COPY);
-                            target.addParameter().setValue(new IdType("a"));
-                            break;
-                        case "reference":
-                            OperationParameter referent = rule.getTargets().get(0).getTypeConversion().getOperationParameterList().stream().filter(p -> "referent".equals(p.getName())).findFirst().orElseThrow(() -> new RuntimeException("'referent' argument was not specified"));
-                            OperationParameter constraint = rule.getTargets().get(0).getTypeConversion().getOperationParameterList().stream().filter(p -> "constraintIdentifier".equals(p.getName())).findFirst().orElseThrow(() -> new RuntimeException("'constraintIdentifier' argument was not specified"));
-
-                            target.setTransform(StructureMap.StructureMapTransform.CREATE);
-                            target.setContext("");
-                            target.addParameter().setValue(new StringType(referent.getValue()));
-                            target.setVariable("b");
-                            
-                            StructureMap.StructureMapGroupRuleTargetComponent targetDeleteMe = transformRule.addTarget().setContext("target").setElement(rule.getTargets().get(0).getAttributeList().get(0).getName());
-                            targetDeleteMe.setTransform(StructureMap.StructureMapTransform.CREATE);
-                            targetDeleteMe.setContext("");
-                            targetDeleteMe.addParameter().setValue(new StringType(referent.getValue()));
-                            targetDeleteMe.setVariable("c");
-
-                            StructureMap.StructureMapGroupRuleTargetComponent target2 = transformRule.addTarget().setContext("target").setElement(rule.getTargets().get(0).getAttributeList().get(0).getName());
-                            target2.setTransform(StructureMap.StructureMapTransform.REFERENCE);
-                            target2.addParameter().setValue(new IdType("b"));
-
-                            break;
-                        case "cast":
-                            OperationParameter targetType = rule.getTargets().get(0).getTypeConversion().getOperationParameterList().stream().filter(p -> "targetType".equals(p.getName())).findFirst().orElseThrow(() -> new RuntimeException("'targetType' argument was not specified"));
-                            
-                            target.setTransform(StructureMap.StructureMapTransform.CAST);
-                            target.addParameter().setValue(new IdType("a"));
-                            target.addParameter().setValue(new StringType(targetType.getValue()));
-
-                            break;
-                        case "c":
-                            target.setTransform(StructureMap.StructureMapTransform.C);
-                            target.addParameter().setValue(new IdType("a"));
-
-                            break;
-                        case "extension":
-                            target.setTransform(StructureMap.StructureMapTransform.EXTENSION);
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Unssupported conversion type '" + type + "'");
-                    }
+                transformRule.setName(rule.getName());
+                transformRule.addSource().setContext("source").setElement(rule.getSourceElement()).setVariable("a");
+                StructureMap.StructureMapGroupRuleTargetComponent target = transformRule.addTarget().setContext("target").setElement(rule.getTargetElement());
+                if (rule.getHandler() != null) {
+                    rule.getHandler().apply(transformRule, target, rule);
                 }
-
-            });
-        });
+            }
+        }
         return map;
     }
 
@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.hl7.fhir.r4.model.UriType;
+
+/**
+ * Orders StructureMaps so that independent maps can be analysed concurrently.
+ *
+ * A map depends on another map when it imports it, or when the logical
+ * profile of its source structure references, directly or transitively through
+ * element types and base definitions, the source structure of the other map.
+ * The maps are grouped into levels: every map only depends on maps of earlier
+ * levels. Within a level the original order of the maps is kept.
+ */
+public class TransformationScheduler {
+
+    private final LogicalProfileIndex logicalProfiles;
+
+    public TransformationScheduler(LogicalProfileIndex logicalProfiles) {
+        this.logicalProfiles = logicalProfiles;
+    }
+
+    public List<List<StructureMap>> schedule(List<StructureMap> maps) {
+        Map<StructureMap, Set<StructureMap>> dependencies = new HashMap<>();
+        for (StructureMap map : maps) {
+            dependencies.put(map, findDependencies(map, maps));
+        }
+
+        List<List<StructureMap>> levels = new ArrayList<>();
+        Set<StructureMap> scheduled = new HashSet<>();
+        List<StructureMap> pending = new ArrayList<>(maps);
+        while (!pending.isEmpty()) {
+            List<StructureMap> level = new ArrayList<>();
+            for (StructureMap map : pending) {
+                if (scheduled.containsAll(dependencies.get(map))) {
+                    level.add(map);
+                }
+            }
+            if (level.isEmpty()) {
+                //Cyclic dependencies: fall back to the original order for the rest
+                pending.forEach(map -> levels.add(singletonLevel(map)));
+                break;
+            }
+            levels.add(level);
+            scheduled.addAll(level);
+            pending.removeAll(level);
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the maps of the given list the map depends on.
+     *
+     * @param map
+     * @param maps
+     * @return
+     */
+    public Set<StructureMap> findDependencies(StructureMap map, List<StructureMap> maps) {
+        Set<String> imports = new HashSet<>();
+        for (UriType imported : map.getImport()) {
+            imports.add(imported.getValue());
+        }
+        Set<String> referencedProfiles = getReferencedProfiles(getSourceUrl(map));
+
+        Set<StructureMap> result = new LinkedHashSet<>();
+        for (StructureMap candidate : maps) {
+            if (candidate == map) {
+                continue;
+            }
+            if (imports.contains(candidate.getUrl()) || referencedProfiles.contains(getSourceUrl(candidate))) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the URLs of all the logical profiles reachable from the given
+     * profile through element types and base definitions, excluding the
+     * profile itself.
+     *
+     * @param profileUrl
+     * @return
+     */
+    public Set<String> getReferencedProfiles(String profileUrl) {
+        Set<String> visited = new LinkedHashSet<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.push(profileUrl);
+        while (!toVisit.isEmpty()) {
+            for (String reference : logicalProfiles.getReferences(toVisit.pop())) {
+                if (logicalProfiles.contains(reference) && !reference.equals(profileUrl) && visited.add(reference)) {
+                    toVisit.push(reference);
+                }
+            }
+        }
+        return visited;
+    }
+
+    public static String getSourceUrl(StructureMap map) {
+        for (StructureMap.StructureMapStructureComponent structure : map.getStructure()) {
+            if (structure.getMode() == StructureMap.StructureMapModelMode.SOURCE) {
+                return structure.getUrl();
+            }
+        }
+        return null;
+    }
+
+    private List<StructureMap> singletonLevel(StructureMap map) {
+        List<StructureMap> level = new ArrayList<>();
+        level.add(map);
+        return level;
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.parser;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.opencimi.transform.ModelAttribute;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.OperationParameter;
+import org.opencimi.transform.Rule;
+import org.opencimi.transform.RuleGroup;
+import org.opencimi.transform.RuleSource;
+import org.opencimi.transform.RuleTarget;
+import org.opencimi.transform.TransformInput;
+import org.opencimi.transform.TypeConversion;
+
+/**
+ * Reads transformation files with a StAX pull parser. The file is read in a
+ * single pass without building a DOM, one <code>transformation</code>
+ * element at a time, so {@link #streamFromFilePath(String)} can go through
+ * files of any size while only holding the current transformation. Files
+ * whose name ends with <code>.gz</code> are decompressed on the fly.
+ */
+public class TransformationDeserializer {
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    public List<ModelTransform> loadFromClassPath(String path) {
+        InputStream in = getClass().getResourceAsStream(path);
+        if (in == null) {
+            throw new IllegalArgumentException("Transformation file " + path + " not found in the classpath");
+        }
+        return load(in, path);
+    }
+
+    public List<ModelTransform> loadFromFilePath(String path) {
+        try {
+            return load(openFile(path), path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading transformation file " + path, e);
+        }
+    }
+
+    /**
+     * Reads every transformation of the stream and closes it.
+     * 
+     * @param in
+     * @param systemId name of the stream used in error messages
+     * @return 
+     */
+    public List<ModelTransform> load(InputStream in, String systemId) {
+        List<ModelTransform> transforms = new ArrayList<>();
+        try (TransformationIterator iterator = iterate(in, systemId)) {
+            iterator.forEachRemaining(transforms::add);
+        }
+        return transforms;
+    }
+
+    /**
+     * Returns the transformations of the file as they are parsed. The stream
+     * must be closed to release the file.
+     * 
+     * @param path
+     * @return 
+     */
+    public Stream<ModelTransform> streamFromFilePath(String path) {
+        TransformationIterator iterator;
+        try {
+            iterator = iterate(openFile(path), path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading transformation file " + path, e);
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    /**
+     * @param in
+     * @param systemId name of the stream used in error messages
+     * @return an iterator over the transformations of the stream. Closing the
+     * iterator closes the stream.
+     */
+    public TransformationIterator iterate(InputStream in, String systemId) {
+        try {
+            return new TransformationIterator(INPUT_FACTORY.createXMLStreamReader(systemId, in), in, systemId);
+        } catch (XMLStreamException e) {
+            closeQuietly(in);
+            throw new IllegalArgumentException("Error parsing transformation file " + systemId, e);
+        }
+    }
+
+    /**
+     * Iterator parsing the next <code>transformation</code> element on
+     * demand.
+     */
+    public static final class TransformationIterator implements Iterator<ModelTransform>, Closeable {
+
+        private final XMLStreamReader reader;
+        private final InputStream in;
+        private final String systemId;
+        private ModelTransform next;
+        private boolean insideRoot;
+        private boolean finished;
+
+        private TransformationIterator(XMLStreamReader reader, InputStream in, String systemId) {
+            this.reader = reader;
+            this.in = in;
+            this.systemId = systemId;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                next = readNextTransformation();
+                if (next == null) {
+                    finished = true;
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public ModelTransform next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ModelTransform result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                //the input stream is closed below anyway
+            }
+            closeQuietly(in);
+        }
+
+        private ModelTransform readNextTransformation() {
+            try {
+                //Transformations are the children of the root element
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    if (!insideRoot) {
+                        insideRoot = true;
+                    } else if ("transformation".equals(reader.getLocalName())) {
+                        return readTransformation(reader);
+                    } else {
+                        skipElement(reader);
+                    }
+                }
+                return null;
+            } catch (XMLStreamException e) {
+                close();
+                throw new IllegalArgumentException("Error parsing transformation file " + systemId, e);
+            }
+        }
+    }
+
+    private static ModelTransform readTransformation(XMLStreamReader reader) throws XMLStreamException {
+        ModelTransform transform = new ModelTransform(reader.getAttributeValue(null, "name"));
+        while (nextChildElement(reader)) {
+            switch (reader.getLocalName()) {
+                case "source":
+                    transform.setSource(readTransformInput(reader));
+                    break;
+                case "target":
+                    transform.setTarget(readTransformInput(reader));
+                    break;
+                case "ruleGroup":
+                    transform.addRuleGroup(readRuleGroup(reader));
+                    break;
+                default:
+                    skipElement(reader);
+            }
+        }
+        return transform;
+    }
+
+    private static TransformInput readTransformInput(XMLStreamReader reader) throws XMLStreamException {
+        TransformInput input = new TransformInput(reader.getAttributeValue(null, "model"), reader.getAttributeValue(null, "class"), reader.getAttributeValue(null, "constraint"));
+        skipElement(reader);
+        return input;
+    }
+
+    private static RuleGroup readRuleGroup(XMLStreamReader reader) throws XMLStreamException {
+        RuleGroup ruleGroup = new RuleGroup();
+        while (nextChildElement(reader)) {
+            if ("rule".equals(reader.getLocalName())) {
+                ruleGroup.addRule(readRule(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return ruleGroup;
+    }
+
+    private static Rule readRule(XMLStreamReader reader) throws XMLStreamException {
+        Rule rule = new Rule();
+        while (nextChildElement(reader)) {
+            switch (reader.getLocalName()) {
+                case "source":
+                    RuleSource ruleSource = new RuleSource();
+                    rule.addSource(ruleSource);
+                    while (nextChildElement(reader)) {
+                        readAttribute(reader, ruleSource.getAttributeList());
+                    }
+                    break;
+                case "target":
+                    rule.addTarget(readRuleTarget(reader));
+                    break;
+                default:
+                    skipElement(reader);
+            }
+        }
+        return rule;
+    }
+
+    private static RuleTarget readRuleTarget(XMLStreamReader reader) throws XMLStreamException {
+        RuleTarget ruleTarget = new RuleTarget(null);
+        while (nextChildElement(reader)) {
+            if ("typeConversion".equals(reader.getLocalName())) {
+                ruleTarget.setTypeConversion(readTypeConversion(reader));
+            } else {
+                readAttribute(reader, ruleTarget.getAttributeList());
+            }
+        }
+        return ruleTarget;
+    }
+
+    private static void readAttribute(XMLStreamReader reader, List<ModelAttribute> attributes) throws XMLStreamException {
+        if ("attribute".equals(reader.getLocalName())) {
+            attributes.add(new ModelAttribute(reader.getAttributeValue(null, "name")));
+        }
+        skipElement(reader);
+    }
+
+    private static TypeConversion readTypeConversion(XMLStreamReader reader) throws XMLStreamException {
+        TypeConversion typeConversion = new TypeConversion();
+        String type = reader.getAttributeValue(null, "type");
+        if (type != null && type.contains(":")) {
+            String[] qname = type.split(":");
+            typeConversion.setNamespace(qname[0]);
+            typeConversion.setType(qname[1]);
+        } else {
+            typeConversion.setType(type);
+        }
+        while (nextChildElement(reader)) {
+            if (!"arguments".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            while (nextChildElement(reader)) {
+                if (!"argument".equals(reader.getLocalName())) {
+                    skipElement(reader);
+                    continue;
+                }
+                OperationParameter parameter = new OperationParameter();
+                parameter.setName(reader.getAttributeValue(null, "name"));
+                parameter.setValue(readText(reader));
+                typeConversion.addOperationParameter(parameter);
+            }
+        }
+        return typeConversion;
+    }
+
+    /**
+     * Moves to the next child element of the current element.
+     * 
+     * @param reader
+     * @return false once the end of the current element is reached
+     * @throws XMLStreamException 
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                default:
+                    //text, comments and processing instructions are ignored
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the current element, including its children, leaving the reader
+     * on its end tag.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the trimmed text directly contained by the current element,
+     * leaving the reader on its end tag
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString().trim();
+    }
+
+    /**
+     * Opens a transformation file, decompressing it if its name ends with
+     * <code>.gz</code>.
+     */
+    private static InputStream openFile(String path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(path)));
+        if (path.endsWith(".gz")) {
+            try {
+                return new GZIPInputStream(in);
+            } catch (IOException e) {
+                closeQuietly(in);
+                throw e;
+            }
+        }
+        return in;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        //Transformation files never need a DTD nor external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            //nothing else to release
+        }
+    }
+}
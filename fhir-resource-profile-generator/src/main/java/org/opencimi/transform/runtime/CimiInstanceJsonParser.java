@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads CIMI instances from JSON. Every object carries its CIMI class in a
+ * <code>cimiType</code> member; the other members are its attributes:
+ * <pre>
+ * {"cimiType": "CODED_TEXT", "code": "1049630", "term": "..."}
+ * </pre>
+ * Strings and numbers are kept as text, booleans as {@link Boolean}, arrays
+ * as lists and null members are ignored. Instances are built directly from
+ * the token stream, without an intermediate tree.
+ */
+public class CimiInstanceJsonParser {
+
+    public static final String TYPE_MEMBER = "cimiType";
+
+    public CimiInstance parse(String json) {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            return readInstance(reader);
+        } catch (IOException | IllegalStateException e) {
+            throw new IllegalArgumentException("Invalid CIMI instance: " + e.getMessage(), e);
+        }
+    }
+
+    public CimiInstance readInstance(JsonReader reader) throws IOException {
+        reader.beginObject();
+        String className = null;
+        List<String> names = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (TYPE_MEMBER.equals(name)) {
+                className = reader.nextString();
+            } else {
+                Object value = readValue(reader);
+                if (value != null) {
+                    names.add(name);
+                    values.add(value);
+                }
+            }
+        }
+        reader.endObject();
+        if (className == null) {
+            throw new IllegalArgumentException("Object without a " + TYPE_MEMBER + " member at " + reader.getPath());
+        }
+        CimiInstance instance = new CimiInstance(className);
+        for (int i = 0; i < names.size(); i++) {
+            instance.set(names.get(i), values.get(i));
+        }
+        return instance;
+    }
+
+    private Object readValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readInstance(reader);
+            case BEGIN_ARRAY:
+                List<Object> items = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Object item = readValue(reader);
+                    if (item != null) {
+                        items.add(item);
+                    }
+                }
+                reader.endArray();
+                return items;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Base;
+import org.opencimi.transform.fhir.StructureMapFactory;
+import org.opencimi.transform.ModelTransform;
+
+/**
+ * Transforms in-memory CIMI instances into FHIR resources.
+ * <p>
+ * Every {@link ModelTransform} is compiled once into a
+ * {@link TransformationPlan}: conversion types, arguments and FHIR types
+ * are resolved up front, so transforming an instance only walks its
+ * attributes and populates the target. Nested instances are transformed
+ * with the plan registered for their CIMI class. A transformer is immutable
+ * once created and can be used from any number of threads.
+ */
+public class CimiToFhirTransformer {
+
+    private final FhirContext fhirContext;
+    private final Map<String, TargetFactory> targetFactories = new HashMap<>();
+    private final Map<String, TransformationPlan> plans = new HashMap<>();
+
+    public CimiToFhirTransformer(FhirContext fhirContext, Collection<ModelTransform> transforms) {
+        this(fhirContext, transforms, StructureMapFactory.getDefault(), RuntimeConversionRegistry.createDefault());
+    }
+
+    public CimiToFhirTransformer(FhirContext fhirContext, Collection<ModelTransform> transforms, StructureMapFactory factory, RuntimeConversionRegistry registry) {
+        this.fhirContext = fhirContext;
+        for (ModelTransform transform : transforms) {
+            TransformationPlan plan = TransformationPlan.compile(factory.compile(transform), this, registry);
+            if (plans.putIfAbsent(plan.getSourceClass(), plan) != null) {
+                throw new IllegalArgumentException("More than one transformation for CIMI class " + plan.getSourceClass());
+            }
+        }
+    }
+
+    /**
+     * @param instance
+     * @return the element the instance was transformed into, and the
+     * resources created for its references
+     * @throws IllegalStateException if no transformation was registered for
+     * the instance's class
+     */
+    public TransformationResult transform(CimiInstance instance) {
+        TransformationContext context = new TransformationContext();
+        Base target = getPlan(instance.getClassName()).transform(instance, context);
+        return new TransformationResult(target, context.getResources());
+    }
+
+    public TransformationPlan findPlan(String cimiClass) {
+        return plans.get(cimiClass);
+    }
+
+    public TransformationPlan getPlan(String cimiClass) {
+        TransformationPlan plan = plans.get(cimiClass);
+        if (plan == null) {
+            throw new IllegalStateException("No transformation for CIMI class " + cimiClass);
+        }
+        return plan;
+    }
+
+    public List<TransformationPlan> getPlans() {
+        return new ArrayList<>(plans.values());
+    }
+
+    /**
+     * Resolves a FHIR resource or data type name once. Only called while
+     * plans are compiled, from the constructor.
+     */
+    TargetFactory getTargetFactory(String fhirType) {
+        return targetFactories.computeIfAbsent(fhirType, type -> {
+            BaseRuntimeElementDefinition<?> definition = fhirContext.getElementDefinition(type);
+            if (definition == null) {
+                definition = fhirContext.getResourceDefinition(type);
+            }
+            BaseRuntimeElementDefinition<?> resolved = definition;
+            return () -> (Base) resolved.newInstance();
+        });
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+
+/**
+ * One compiled rule of a {@link TransformationPlan}, applied to every value
+ * of the rule's source attribute.
+ */
+@FunctionalInterface
+public interface RuleStep {
+
+    /**
+     * @param value a single, non null value of the source attribute
+     * @param target the FHIR element being populated
+     * @param context the state of the current transformation
+     * @throws FHIRException
+     */
+    void apply(Object value, Base target, TransformationContext context) throws FHIRException;
+}
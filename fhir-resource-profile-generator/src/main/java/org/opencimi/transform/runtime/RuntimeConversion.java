@@ -0,0 +1,35 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import org.opencimi.transform.fhir.CompiledRule;
+
+/**
+ * Runtime counterpart of a conversion type (<code>fhir:copy</code>,
+ * <code>fhir:cast</code>, ...). Everything that does not depend on the data,
+ * such as argument lookups and FHIR type resolution, is done once when the
+ * rule is compiled into a {@link RuleStep}.
+ */
+@FunctionalInterface
+public interface RuntimeConversion {
+
+    RuleStep compile(CompiledRule rule, CimiToFhirTransformer transformer);
+}
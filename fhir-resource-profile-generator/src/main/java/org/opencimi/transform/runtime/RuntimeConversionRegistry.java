@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.opencimi.transform.fhir.CompiledRule;
+
+/**
+ * The {@link RuntimeConversion}s available to {@link CimiToFhirTransformer},
+ * by conversion type. This is the runtime counterpart of
+ * {@link org.opencimi.transform.fhir.ConversionHandlerRegistry}.
+ */
+public class RuntimeConversionRegistry {
+
+    public static final String EXTENSION_URL_BASE = "http://hl7.org/cimi/fhir/extension/";
+
+    private final Map<String, RuntimeConversion> conversions = new ConcurrentHashMap<>();
+
+    /**
+     * @return a registry with the copy, reference, cast, c and extension
+     * conversions
+     */
+    public static RuntimeConversionRegistry createDefault() {
+        RuntimeConversionRegistry registry = new RuntimeConversionRegistry();
+        registry.register("copy", RuntimeConversionRegistry::copy);
+        registry.register("reference", RuntimeConversionRegistry::reference);
+        registry.register("cast", RuntimeConversionRegistry::cast);
+        registry.register("c", RuntimeConversionRegistry::c);
+        registry.register("extension", RuntimeConversionRegistry::extension);
+        return registry;
+    }
+
+    public void register(String conversionType, RuntimeConversion conversion) {
+        conversions.put(conversionType, conversion);
+    }
+
+    public RuntimeConversion getConversion(String conversionType) {
+        return conversionType == null ? null : conversions.get(conversionType);
+    }
+
+    private static RuleStep copy(CompiledRule rule, CimiToFhirTransformer transformer) {
+        String name = rule.getTargetElement();
+        int hash = name.hashCode();
+        return (value, target, context) -> assign(value, target.makeProperty(hash, name), transformer, context);
+    }
+
+    private static RuleStep cast(CompiledRule rule, CimiToFhirTransformer transformer) {
+        String name = rule.getTargetElement();
+        String targetType = rule.getRequiredParameter("targetType");
+        TargetFactory factory = transformer.getTargetFactory(targetType);
+        return (value, target, context) -> {
+            Base element = factory.create();
+            assign(value, element, transformer, context);
+            target.setProperty(name, element);
+        };
+    }
+
+    private static RuleStep c(CompiledRule rule, CimiToFhirTransformer transformer) {
+        String name = rule.getTargetElement();
+        int hash = name.hashCode();
+        return (value, target, context) -> {
+            Base element = target.makeProperty(hash, name);
+            if (value instanceof CimiInstance) {
+                assign(value, element, transformer, context);
+            } else if (element instanceof Coding) {
+                ((Coding) element).setCode(String.valueOf(value));
+            } else if (element instanceof CodeableConcept) {
+                ((CodeableConcept) element).addCoding().setCode(String.valueOf(value));
+            } else {
+                assign(value, element, transformer, context);
+            }
+        };
+    }
+
+    /**
+     * Creates the referenced resource with the transformation registered for
+     * the value's CIMI class, and points the target element at it. Values
+     * that are not CIMI instances, or whose transformation does not produce
+     * the referent type, are rejected rather than referenced as empty
+     * resources.
+     */
+    private static RuleStep reference(CompiledRule rule, CimiToFhirTransformer transformer) {
+        String name = rule.getTargetElement();
+        int hash = name.hashCode();
+        String referent = rule.getRequiredParameter("referent");
+        TargetFactory factory = transformer.getTargetFactory(referent);
+        return (value, target, context) -> {
+            if (!(value instanceof CimiInstance)) {
+                throw new IllegalArgumentException("Cannot reference '" + value + "' as a " + referent + ": only CIMI instances can be referenced");
+            }
+            TransformationPlan plan = transformer.getPlan(((CimiInstance) value).getClassName());
+            if (!referent.equals(plan.getTargetClass())) {
+                throw new IllegalStateException("Cannot reference a " + plan.getSourceClass() + " as a " + referent
+                        + ": its transformation " + plan.getName() + " produces a " + plan.getTargetClass());
+            }
+            Resource resource = (Resource) factory.create();
+            plan.apply((CimiInstance) value, resource, context);
+            String id = context.newId();
+            resource.setId(referent + "/" + id);
+            context.addResource(resource);
+            ((Reference) target.makeProperty(hash, name)).setReference(referent + "/" + id);
+        };
+    }
+
+    private static RuleStep extension(CompiledRule rule, CimiToFhirTransformer transformer) {
+        String url = rule.getParameter("extensionIdentifier");
+        if (url == null) {
+            url = EXTENSION_URL_BASE + rule.getTargetElement();
+        }
+        String extensionUrl = url;
+        return (value, target, context) -> {
+            Extension extension;
+            if (target instanceof Element) {
+                extension = ((Element) target).addExtension();
+            } else if (target instanceof DomainResource) {
+                extension = ((DomainResource) target).addExtension();
+            } else {
+                throw new IllegalArgumentException("Cannot add an extension to a " + target.fhirType());
+            }
+            Type extensionValue;
+            if (value instanceof CimiInstance) {
+                Base transformed = transformer.getPlan(((CimiInstance) value).getClassName()).transform((CimiInstance) value, context);
+                if (!(transformed instanceof Type)) {
+                    throw new IllegalArgumentException("Cannot use a " + transformed.fhirType() + " as an extension value");
+                }
+                extensionValue = (Type) transformed;
+            } else {
+                extensionValue = new StringType(String.valueOf(value));
+            }
+            extension.setUrl(extensionUrl).setValue(extensionValue);
+        };
+    }
+
+    /**
+     * Writes a value into an element: nested instances go through the
+     * transformation registered for their class, other values are set as
+     * the text of primitive elements.
+     */
+    static void assign(Object value, Base element, CimiToFhirTransformer transformer, TransformationContext context) throws FHIRException {
+        if (value instanceof CimiInstance) {
+            transformer.getPlan(((CimiInstance) value).getClassName()).apply((CimiInstance) value, element, context);
+        } else if (element instanceof PrimitiveType) {
+            ((PrimitiveType<?>) element).setValueAsString(String.valueOf(value));
+        } else {
+            throw new IllegalArgumentException("Cannot assign '" + value + "' to a " + element.fhirType());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * State of the transformation of one CIMI instance: the resources created
+ * along the way for the references of the main target.
+ */
+public class TransformationContext {
+
+    private final List<Resource> resources = new ArrayList<>();
+
+    public void addResource(Resource resource) {
+        resources.add(resource);
+    }
+
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    /**
+     * @return a new random id. Ids do not need to be cryptographically
+     * random, so they avoid the cost of {@link UUID#randomUUID()}.
+     */
+    public String newId() {
+        return randomId();
+    }
+
+    /**
+     * @return a new random id, for resources created outside of a
+     * transformation
+     * @see #newId()
+     */
+    public static String randomId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.opencimi.transform.fhir.CompiledRule;
+import org.opencimi.transform.fhir.CompiledTransform;
+
+/**
+ * A {@link CompiledTransform} turned into a flat list of steps that can be
+ * applied to any number of CIMI instances. Plans are immutable and can be
+ * shared between threads.
+ */
+public final class TransformationPlan {
+
+    private final String name;
+    private final String sourceClass;
+    private final String targetClass;
+    private final TargetFactory targetFactory;
+    private final List<Step> steps;
+
+    private TransformationPlan(String name, String sourceClass, String targetClass, TargetFactory targetFactory, List<Step> steps) {
+        this.name = name;
+        this.sourceClass = sourceClass;
+        this.targetClass = targetClass;
+        this.targetFactory = targetFactory;
+        this.steps = steps;
+    }
+
+    static TransformationPlan compile(CompiledTransform transform, CimiToFhirTransformer transformer, RuntimeConversionRegistry registry) {
+        List<Step> steps = new ArrayList<>();
+        for (List<CompiledRule> group : transform.getGroups()) {
+            for (CompiledRule rule : group) {
+                RuntimeConversion conversion = registry.getConversion(rule.getConversionType());
+                if (conversion == null) {
+                    throw new IllegalArgumentException("Unsupported conversion type " + rule.getConversionType() + " in rule " + rule.getName());
+                }
+                steps.add(new Step(rule.getName(), rule.getSourceElement(), conversion.compile(rule, transformer)));
+            }
+        }
+        return new TransformationPlan(transform.getName(), transform.getSourceClass(), transform.getTargetClass(),
+                transformer.getTargetFactory(transform.getTargetClass()), Collections.unmodifiableList(steps));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSourceClass() {
+        return sourceClass;
+    }
+
+    public String getTargetClass() {
+        return targetClass;
+    }
+
+    /**
+     * Transforms an instance into a new element of the target class.
+     */
+    public Base transform(CimiInstance instance, TransformationContext context) {
+        Base target = targetFactory.create();
+        apply(instance, target, context);
+        return target;
+    }
+
+    /**
+     * Populates an existing element from an instance. List values apply the
+     * rule once per item.
+     */
+    public void apply(CimiInstance instance, Base target, TransformationContext context) {
+        for (Step step : steps) {
+            Object value = instance.get(step.sourceElement);
+            if (value == null) {
+                continue;
+            }
+            try {
+                if (value instanceof List) {
+                    for (Object item : (List<?>) value) {
+                        if (item != null) {
+                            step.ruleStep.apply(item, target, context);
+                        }
+                    }
+                } else {
+                    step.ruleStep.apply(value, target, context);
+                }
+            } catch (FHIRException e) {
+                throw new IllegalArgumentException("Error applying rule " + step.name + " of transformation " + name, e);
+            }
+        }
+    }
+
+    private static final class Step {
+
+        private final String name;
+        private final String sourceElement;
+        private final RuleStep ruleStep;
+
+        private Step(String name, String sourceElement, RuleStep ruleStep) {
+            this.name = name;
+            this.sourceElement = sourceElement;
+            this.ruleStep = ruleStep;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import java.util.List;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The FHIR element a CIMI instance was transformed into, and the resources
+ * created for its references.
+ */
+public final class TransformationResult {
+
+    private final Base target;
+    private final List<Resource> referencedResources;
+
+    TransformationResult(Base target, List<Resource> referencedResources) {
+        this.target = target;
+        this.referencedResources = referencedResources;
+    }
+
+    public Base getTarget() {
+        return target;
+    }
+
+    public List<Resource> getReferencedResources() {
+        return referencedResources;
+    }
+}
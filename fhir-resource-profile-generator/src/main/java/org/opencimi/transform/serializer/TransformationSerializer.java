@@ -20,60 +20,248 @@
  */
 package org.opencimi.transform.serializer;
 
+import org.opencimi.transform.ModelAttribute;
 import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.OperationParameter;
+import org.opencimi.transform.Rule;
+import org.opencimi.transform.RuleGroup;
+import org.opencimi.transform.RuleSource;
+import org.opencimi.transform.RuleTarget;
 import org.opencimi.transform.TransformInput;
+import org.opencimi.transform.TypeConversion;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
+/**
+ * Writes transformations in the format read by
+ * {@link org.opencimi.transform.parser.TransformationDeserializer}.
+ * Transformations are written straight to the destination through an
+ * {@link XMLStreamWriter}, which takes care of escaping, so no intermediate
+ * document is built. Files whose name ends with <code>.gz</code> are
+ * compressed.
+ */
 public class TransformationSerializer {
 
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
     public String serialize(List<ModelTransform> transforms) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<transformations>");
-        transforms.forEach(transform -> {
-            builder.append(serialize(transform));
-        });
-        builder.append("</transformations>");
-        return builder.toString();
+        StringWriter out = new StringWriter();
+        try (TransformationWriter writer = open(out)) {
+            for (ModelTransform transform : transforms) {
+                writer.write(transform);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error serializing transformations", e);
+        }
+        return out.toString();
     }
 
     public String serialize(ModelTransform transform) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<transformation>");
-        TransformInput source = transform.getSource();
-        builder.append("<source model=\"").append(source.getModel()).append("\" class=\"").append(source.getClassName()).append("\" constraint=\"").append(source.getContraintIdentifier()).append("\"/>");
-        TransformInput target = transform.getTarget();
-        builder.append("<target model=\"").append(target.getModel()).append("\" class=\"").append(target.getClassName()).append("\" constraint=\"").append(target.getContraintIdentifier()).append("\"/>");
-        transform.getRuleGroupList().forEach(ruleGroup -> {
-            builder.append("<ruleGroup>");
-            ruleGroup.getRules().forEach(rule -> {
-                builder.append("<rule>");
-                rule.getSources().forEach(ruleSource -> {
-                    builder.append("<source>");
-                    ruleSource.getAttributeList().forEach(modelAttribute -> {
-                        builder.append("<attribute name=\"").append(modelAttribute.getName()).append("\"/>");
-                    });
-                    builder.append("</source>");
-                });
-                rule.getTargets().forEach(ruleTarget -> {
-                    builder.append("<target>");
-                    ruleTarget.getAttributeList().forEach(modelAttribute -> {
-                        builder.append("<attribute name=\"").append(modelAttribute.getName()).append("\"/>");
-                    });
+        StringWriter out = new StringWriter();
+        try {
+            XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+            writeTransformation(xml, transform);
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Error serializing transformation " + transform.getName(), e);
+        }
+        return out.toString();
+    }
+
+    public void write(List<ModelTransform> transforms, Path file) throws IOException {
+        try (TransformationWriter writer = open(file)) {
+            for (ModelTransform transform : transforms) {
+                writer.write(transform);
+            }
+        }
+    }
+
+    public void write(List<ModelTransform> transforms, OutputStream out) throws IOException {
+        try (TransformationWriter writer = open(out)) {
+            for (ModelTransform transform : transforms) {
+                writer.write(transform);
+            }
+        }
+    }
+
+    /**
+     * Opens a file for writing transformations one at a time. The file is
+     * compressed if its name ends with <code>.gz</code>.
+     * 
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public TransformationWriter open(Path file) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file));
+        if (file.getFileName().toString().endsWith(".gz")) {
+            out = new GZIPOutputStream(out);
+        }
+        return open(out);
+    }
+
+    /**
+     * Opens a UTF-8 encoded document on the stream. Closing the returned
+     * writer closes the stream.
+     * 
+     * @param out
+     * @return
+     * @throws IOException 
+     */
+    public TransformationWriter open(OutputStream out) throws IOException {
+        try {
+            XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+            xml.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            return new TransformationWriter(xml, out);
+        } catch (XMLStreamException e) {
+            out.close();
+            throw new IOException("Error opening transformation document", e);
+        }
+    }
+
+    /**
+     * Opens a document on the writer. Closing the returned writer closes the
+     * underlying one.
+     * 
+     * @param out
+     * @return
+     * @throws IOException 
+     */
+    public TransformationWriter open(Writer out) throws IOException {
+        try {
+            return new TransformationWriter(OUTPUT_FACTORY.createXMLStreamWriter(out), out);
+        } catch (XMLStreamException e) {
+            out.close();
+            throw new IOException("Error opening transformation document", e);
+        }
+    }
+
+    /**
+     * Writes the <code>transformations</code> document one transformation at
+     * a time. The document is completed when the writer is closed.
+     */
+    public static final class TransformationWriter implements Closeable {
+
+        private final XMLStreamWriter xml;
+        private final Closeable destination;
+        private boolean closed;
+
+        private TransformationWriter(XMLStreamWriter xml, Closeable destination) throws XMLStreamException {
+            this.xml = xml;
+            this.destination = destination;
+            xml.writeStartElement("transformations");
+        }
+
+        public void write(ModelTransform transform) throws IOException {
+            try {
+                writeTransformation(xml, transform);
+            } catch (XMLStreamException e) {
+                throw new IOException("Error writing transformation " + transform.getName(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                xml.writeEndElement();
+                xml.writeEndDocument();
+                xml.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("Error completing transformation document", e);
+            } finally {
+                destination.close();
+            }
+        }
+    }
+
+    private static void writeTransformation(XMLStreamWriter xml, ModelTransform transform) throws XMLStreamException {
+        xml.writeStartElement("transformation");
+        writeAttribute(xml, "name", transform.getName());
+        writeTransformInput(xml, "source", transform.getSource());
+        writeTransformInput(xml, "target", transform.getTarget());
+        for (RuleGroup ruleGroup : transform.getRuleGroupList()) {
+            xml.writeStartElement("ruleGroup");
+            for (Rule rule : ruleGroup.getRules()) {
+                xml.writeStartElement("rule");
+                for (RuleSource ruleSource : rule.getSources()) {
+                    xml.writeStartElement("source");
+                    writeModelAttributes(xml, ruleSource.getAttributeList());
+                    xml.writeEndElement();
+                }
+                for (RuleTarget ruleTarget : rule.getTargets()) {
+                    xml.writeStartElement("target");
+                    writeModelAttributes(xml, ruleTarget.getAttributeList());
                     if (ruleTarget.getTypeConversion() != null) {
-                        builder.append("<typeConversion type=\"").append(ruleTarget.getTypeConversion().getType()).append("\">");
-                        ruleTarget.getTypeConversion().getOperationParameterList().forEach(operationParameter -> {
-                            builder.append("<argument name=\"").append(operationParameter.getName()).append("\">").append(operationParameter.getValue()).append("</argument>");
-                        });
-                        builder.append("</typeConversion>");
+                        writeTypeConversion(xml, ruleTarget.getTypeConversion());
                     }
-                    builder.append("</target>");
-                });
-                builder.append("</rule>");
-            });
-            builder.append("</ruleGroup>");
-        });
-        builder.append("</transformation>");
-        return builder.toString();
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeTransformInput(XMLStreamWriter xml, String elementName, TransformInput input) throws XMLStreamException {
+        if (input == null) {
+            return;
+        }
+        xml.writeEmptyElement(elementName);
+        writeAttribute(xml, "model", input.getModel());
+        writeAttribute(xml, "class", input.getClassName());
+        writeAttribute(xml, "constraint", input.getContraintIdentifier());
+    }
+
+    private static void writeModelAttributes(XMLStreamWriter xml, List<ModelAttribute> attributes) throws XMLStreamException {
+        for (ModelAttribute attribute : attributes) {
+            xml.writeEmptyElement("attribute");
+            writeAttribute(xml, "name", attribute.getName());
+        }
+    }
+
+    private static void writeTypeConversion(XMLStreamWriter xml, TypeConversion typeConversion) throws XMLStreamException {
+        xml.writeStartElement("typeConversion");
+        if (typeConversion.getType() != null) {
+            String type = typeConversion.getNamespace() == null ? typeConversion.getType() : typeConversion.getNamespace() + ":" + typeConversion.getType();
+            xml.writeAttribute("type", type);
+        }
+        if (!typeConversion.getOperationParameterList().isEmpty()) {
+            xml.writeStartElement("arguments");
+            for (OperationParameter parameter : typeConversion.getOperationParameterList()) {
+                xml.writeStartElement("argument");
+                writeAttribute(xml, "name", parameter.getName());
+                if (parameter.getValue() != null) {
+                    xml.writeCharacters(parameter.getValue());
+                }
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeAttribute(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+        //Missing values are left out so they are read back as null
+        if (value != null) {
+            xml.writeAttribute(name, value);
+        }
     }
 }
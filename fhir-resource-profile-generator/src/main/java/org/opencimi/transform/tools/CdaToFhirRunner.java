@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.hl7.fhir.r4.model.Bundle;
+import org.opencimi.transform.cda.CdaToFhirTransformer;
+
+/**
+ * Transforms every CDA document (<code>.xml</code>) of a directory or zip
+ * archive into a FHIR bundle, written as <code>name.json</code> in the
+ * output directory. Documents are transformed in parallel with one
+ * {@link CdaToFhirTransformer}, so the maps are parsed only once. A document
+ * that fails is reported and does not stop the run.
+ */
+public class CdaToFhirRunner {
+
+    public static final String DEFINITIONS_OPTION = "--definitions";
+    public static final String THREADS_OPTION = "--threads";
+
+    private final CdaToFhirTransformer transformer;
+    private final int threads;
+    private final ThreadLocal<IParser> parsers;
+
+    public CdaToFhirRunner(FhirContext fhirContext, CdaToFhirTransformer transformer, int threads) {
+        this.transformer = transformer;
+        this.threads = threads;
+        this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    /**
+     * Usage: <code>&lt;directory|archive.zip&gt; &lt;outputDirectory&gt;
+     * --definitions dir [--threads n]</code>, where <code>dir</code> holds the
+     * structure definitions of the CDA logical model.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        String definitions = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (DEFINITIONS_OPTION.equals(args[i]) && i + 1 < args.length) {
+                definitions = args[++i];
+            } else if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        if (arguments.size() != 2 || definitions == null) {
+            System.out.println("Usage: <directory|archive.zip> <outputDirectory> " + DEFINITIONS_OPTION + " dir [" + THREADS_OPTION + " n]");
+            System.exit(1);
+        }
+        FhirContext fhirContext = FhirContext.forR4();
+        CdaToFhirTransformer transformer = new CdaToFhirTransformer(fhirContext, CdaToFhirTransformer.loadDefinitions(Paths.get(definitions), fhirContext));
+        int failures = new CdaToFhirRunner(fhirContext, transformer, threads).run(Paths.get(arguments.get(0)), Paths.get(arguments.get(1)), System.out);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * @param input a directory, searched recursively, or a zip archive
+     * @param outputDirectory
+     * @param out where progress and failures are reported
+     * @return the number of documents that failed
+     * @throws IOException
+     */
+    public int run(Path input, Path outputDirectory, PrintStream out) throws IOException {
+        Files.createDirectories(outputDirectory);
+        if (Files.isDirectory(input)) {
+            List<Path> documents;
+            try (Stream<Path> files = Files.walk(input)) {
+                documents = files.filter(file -> file.getFileName().toString().endsWith(".xml")).sorted().collect(Collectors.toList());
+            }
+            List<Document> tasks = new ArrayList<>();
+            for (Path document : documents) {
+                String name = input.relativize(document).toString();
+                tasks.add(new Document(name, () -> Files.newInputStream(document)));
+            }
+            return run(tasks, outputDirectory, out);
+        }
+        try (ZipFile archive = new ZipFile(input.toFile())) {
+            List<Document> tasks = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(".xml")) {
+                    tasks.add(new Document(entry.getName(), () -> archive.getInputStream(entry)));
+                }
+            }
+            return run(tasks, outputDirectory, out);
+        }
+    }
+
+    private int run(List<Document> documents, Path outputDirectory, PrintStream out) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int failures = 0;
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (Document document : documents) {
+                results.add(executor.submit(() -> transform(document, outputDirectory)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String error = results.get(i).get();
+                if (error != null) {
+                    out.println(documents.get(i).name + ": " + error);
+                    failures++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transforming CDA documents");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error transforming CDA documents", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        out.println(String.format("%d documents (%d failed) in %d ms, %.1f documents/s",
+                documents.size(), failures, millis, millis == 0 ? documents.size() : documents.size() * 1000.0 / millis));
+        return failures;
+    }
+
+    /**
+     * @return null when the document was transformed, the error otherwise
+     */
+    private String transform(Document document, Path outputDirectory) {
+        try {
+            Bundle bundle;
+            try (InputStream in = document.source.call()) {
+                bundle = transformer.transform(in);
+            }
+            String name = document.name.replace('/', '_').replace('\\', '_');
+            Path file = outputDirectory.resolve(name.substring(0, name.length() - ".xml".length()) + ".json");
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                parsers.get().encodeResourceToWriter(bundle, writer);
+            }
+            return null;
+        } catch (Exception e) {
+            return e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+    }
+
+    private static final class Document {
+
+        private final String name;
+        private final Callable<InputStream> source;
+
+        private Document(String name, Callable<InputStream> source) {
+            this.name = name;
+            this.source = source;
+        }
+    }
+}
@@ -21,11 +21,19 @@
 package org.opencimi.transform.tools;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.management.JMException;
 import org.opencimi.transform.fhir.CimiToFhirTranslator;
 import org.opencimi.transform.translator.fhir.FhirLogicalProfileGenerator;
+import org.opencimi.transform.utils.metrics.InMemoryPipelineMetrics;
 
 public class CimiToFhirBatchTransformationRunner {
 
+    public static final String METRICS_REPORT = "pipeline-metrics.json";
+    public static final String DAEMON_FLAG = "--daemon";
+
     /**
      * Routine converting the XMI representation of an AML model into its BMM equivalent.
      *
@@ -33,23 +41,64 @@ public class CimiToFhirBatchTransformationRunner {
      */
     public static void main(String[] args) throws IOException {
 
-        if (validArguments(args)) {
+        if (args.length > 0 && DAEMON_FLAG.equals(args[0])) {
+            Path portFile = args.length > 1 ? Paths.get(args[1]) : CimiToFhirDaemon.DEFAULT_PORT_FILE;
+            try (CimiToFhirDaemon daemon = new CimiToFhirDaemon(portFile)) {
+                daemon.run();
+            }
+        } else if (validArguments(args)) {
             String configFilePath = null;
             configFilePath = args[0];
             CimiTransformHelper helper = new CimiTransformHelper(configFilePath);
-            helper.initialize();
-            FhirLogicalProfileGenerator logicalProfileGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir");
-            CimiToFhirTranslator translator = new CimiToFhirTranslator(helper, logicalProfileGenerator);
-            translator.initialize();
-            translator.generateFhirResourceProfiles();
+            run(helper, null, System.out);
         } else {
 
         }
     }
 
+    /**
+     * Runs the whole translation for the configuration of the helper.
+     *
+     * @param helper
+     * @param metrics the metrics of the run. When null, metrics are only
+     * collected if the configuration enables them.
+     * @param out where progress messages are printed
+     * @throws IOException
+     */
+    public static void run(CimiTransformHelper helper, InMemoryPipelineMetrics metrics, PrintStream out) throws IOException {
+        helper.initialize();
+        FhirLogicalProfileGenerator logicalProfileGenerator = new FhirLogicalProfileGenerator("http://opencimi.org/logical-model/fhir", helper.getConfig().getParallelism(), helper.createTypeIndex());
+        CimiToFhirTranslator translator = new CimiToFhirTranslator(helper, logicalProfileGenerator);
+        if (metrics == null && helper.getConfig().isMetrics()) {
+            metrics = new InMemoryPipelineMetrics();
+            if (helper.getConfig().isMetricsJmx()) {
+                registerMBean(metrics, out);
+            }
+        }
+        if (metrics != null) {
+            translator.setMetrics(metrics);
+        }
+        translator.initialize();
+        translator.generateFhirResourceProfiles();
+        if (metrics != null && helper.getConfig().isMetrics()) {
+            Path report = Paths.get(helper.getConfig().getOutputDirectory(), METRICS_REPORT);
+            metrics.writeReport(report);
+            out.println("Pipeline metrics written to " + report);
+        }
+    }
+
+
+    private static void registerMBean(InMemoryPipelineMetrics metrics, PrintStream out) {
+        try {
+            metrics.registerMBean(InMemoryPipelineMetrics.DEFAULT_OBJECT_NAME);
+        } catch (JMException e) {
+            out.println("Unable to register the pipeline metrics MBean: " + e.getMessage());
+        }
+    }
 
     /**
      * Executable takes the following arguments:se {                                                                                                                       * <ul>//logger.error("You have entered an invalid number of arguments. Please enter the path to config.xml file");               * <li>The path to the config.xml file to run this routine. If this argument is omitted, application will look for a config.xml file at the top-level of the classpath</li>                                                                                                                           * <li>The output directory for the generated BMM files. This argument is required and must end with a file separator such as '/'</li>
+     * <li>Alternatively --daemon, optionally followed by the port file, to keep a warm process running that takes jobs from {@link CimiToFhirDaemonClient}</li>
      * </ul>
      *
      * @param args
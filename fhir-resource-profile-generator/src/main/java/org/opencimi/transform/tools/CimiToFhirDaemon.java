@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.opencimi.transform.utils.ContentHash;
+import org.opencimi.transform.utils.metrics.InMemoryPipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived process running translation jobs submitted by
+ * {@link CimiToFhirDaemonClient}. The FHIR context, the core definitions and
+ * one {@link CimiTransformHelper} per configuration file, with its parsed
+ * model, stay in memory between jobs, so only the first job of each
+ * configuration pays for the cold start.
+ *
+ * The daemon listens on a loopback port. The port and a random token are
+ * written to the port file, readable by the owner only, and every request
+ * must start with the token. A client has {@link #REQUEST_TIMEOUT_MILLIS}
+ * to send its request before the connection is closed.
+ *
+ * Requests are lines of text:
+ * <pre>
+ * token
+ * RUN | PING | SHUTDOWN
+ * config=/path/to/config.xml   (RUN only)
+ * reset=true                   (RUN only, optional: reload the model)
+ * (empty line)
+ * </pre>
+ * While a job runs, the daemon answers with <code>OUT</code> lines for its
+ * messages, then one <code>TIME name millis count</code> line per timer, and
+ * finally <code>DONE millis</code> or <code>ERROR message</code>.
+ */
+public class CimiToFhirDaemon implements Closeable {
+
+    public static final Path DEFAULT_PORT_FILE = Paths.get(System.getProperty("user.home"), ".cimi-to-fhir", "daemon.port");
+
+    public static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CimiToFhirDaemon.class);
+
+    private final Path portFile;
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Map<String, CimiTransformHelper> helpers = new ConcurrentHashMap<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cimi-to-fhir-daemon");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final String token;
+    private final byte[] tokenBytes;
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public CimiToFhirDaemon(Path portFile) {
+        this.portFile = portFile;
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        this.token = ContentHash.toHex(secret);
+        this.tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Binds the daemon to a free loopback port and publishes it in the port
+     * file.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        running = true;
+        writePortFile();
+        LOG.info("Daemon listening on port " + serverSocket.getLocalPort() + ", port file " + portFile);
+    }
+
+    /**
+     * Starts the daemon, if needed, and serves requests until it is shut
+     * down.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        if (serverSocket == null) {
+            start();
+        }
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            } catch (SocketException e) {
+                if (running) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        running = false;
+        connections.shutdown();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } finally {
+            Files.deleteIfExists(portFile);
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            //Clients that connect and send nothing don't hold a thread forever
+            connection.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            if (!isValidToken(in.readLine())) {
+                out.println("ERROR invalid token");
+                return;
+            }
+            String request = in.readLine();
+            String configFilePath = null;
+            boolean reset = false;
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+                if (line.startsWith("config=")) {
+                    configFilePath = line.substring("config=".length());
+                } else if (line.startsWith("reset=")) {
+                    reset = Boolean.parseBoolean(line.substring("reset=".length()));
+                }
+            }
+
+            if ("PING".equals(request)) {
+                out.println("DONE 0");
+            } else if ("SHUTDOWN".equals(request)) {
+                out.println("DONE 0");
+                close();
+            } else if ("RUN".equals(request) && configFilePath != null) {
+                runJob(configFilePath, reset, out);
+            } else {
+                out.println("ERROR invalid request " + request);
+            }
+        } catch (IOException e) {
+            LOG.warn("Error serving daemon request", e);
+        }
+    }
+
+    /**
+     * Compares the whole token whatever the first mismatch, so the time taken
+     * does not tell how much of it a client guessed.
+     */
+    private boolean isValidToken(String line) {
+        return line != null && MessageDigest.isEqual(tokenBytes, line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void runJob(String configFilePath, boolean reset, PrintWriter out) {
+        String key = Paths.get(configFilePath).toAbsolutePath().normalize().toString();
+        if (reset) {
+            helpers.remove(key);
+        }
+        CimiTransformHelper helper = helpers.computeIfAbsent(key, path -> new CimiTransformHelper(path, fhirContext));
+        InMemoryPipelineMetrics metrics = new InMemoryPipelineMetrics();
+        long start = System.nanoTime();
+        try (PrintStream jobOut = new PrintStream(new PrefixingOutputStream(out), true, StandardCharsets.UTF_8.name())) {
+            //Jobs of the same configuration share the helper and run one at a time
+            synchronized (helper) {
+                CimiToFhirBatchTransformationRunner.run(helper, metrics, jobOut);
+            }
+            jobOut.flush();
+            metrics.getTimerTotalMillis().forEach((name, millis) ->
+                    out.println("TIME " + name + " " + Math.round(millis) + " " + metrics.getTimerCounts().get(name)));
+            out.println("DONE " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            LOG.warn("Job for " + configFilePath + " failed", e);
+            //The next job reloads everything
+            helpers.remove(key);
+            out.println("ERROR " + String.valueOf(e.getMessage()).replace('\n', ' '));
+        }
+    }
+
+    private void writePortFile() throws IOException {
+        Path directory = portFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, portFile.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temporaryFile, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                //not a POSIX file system, the token is the only protection
+            }
+            Files.write(temporaryFile, (serverSocket.getLocalPort() + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, portFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Sends every line written by a job to the client as an
+     * <code>OUT</code> line.
+     */
+    private static final class PrefixingOutputStream extends OutputStream {
+
+        private final PrintWriter out;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        PrefixingOutputStream(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (line.size() > 0) {
+                flushLine();
+            }
+        }
+
+        private void flushLine() {
+            out.println("OUT " + new String(line.toByteArray(), StandardCharsets.UTF_8));
+            line.reset();
+        }
+    }
+}
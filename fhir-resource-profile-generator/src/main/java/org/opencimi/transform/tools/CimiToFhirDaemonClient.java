@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Thin client submitting jobs to a {@link CimiToFhirDaemon} and printing the
+ * output and timings of the job as they arrive.
+ */
+public class CimiToFhirDaemonClient {
+
+    private final Path portFile;
+
+    public CimiToFhirDaemonClient(Path portFile) {
+        this.portFile = portFile;
+    }
+
+    /**
+     * Runs the translation of a configuration file in the daemon.
+     *
+     * @param configFilePath
+     * @param reset whether the daemon must reload the model even if it did
+     * not change
+     * @param out where the output of the job is printed
+     * @return true if the job succeeded
+     * @throws IOException if the daemon cannot be reached
+     */
+    public boolean run(String configFilePath, boolean reset, PrintStream out) throws IOException {
+        String absolutePath = Paths.get(configFilePath).toAbsolutePath().toString();
+        return send(out, "RUN", "config=" + absolutePath, "reset=" + reset);
+    }
+
+    public boolean ping(PrintStream out) throws IOException {
+        return send(out, "PING");
+    }
+
+    public boolean shutdown(PrintStream out) throws IOException {
+        return send(out, "SHUTDOWN");
+    }
+
+    private boolean send(PrintStream out, String request, String... options) throws IOException {
+        List<String> portFileLines = Files.readAllLines(portFile, StandardCharsets.UTF_8);
+        if (portFileLines.size() < 2) {
+            throw new IOException("Invalid daemon port file " + portFile);
+        }
+        int port = Integer.parseInt(portFileLines.get(0).trim());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                PrintWriter requestWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            requestWriter.println(portFileLines.get(1).trim());
+            requestWriter.println(request);
+            for (String option : options) {
+                requestWriter.println(option);
+            }
+            requestWriter.println();
+
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith("OUT ")) {
+                    out.println(line.substring("OUT ".length()));
+                } else if (line.startsWith("TIME ")) {
+                    out.println("  " + line.substring("TIME ".length()));
+                } else if (line.startsWith("DONE ")) {
+                    out.println("Done in " + line.substring("DONE ".length()) + " ms");
+                    return true;
+                } else if (line.startsWith("ERROR ")) {
+                    out.println("Failed: " + line.substring("ERROR ".length()));
+                    return false;
+                }
+            }
+            out.println("Failed: the daemon closed the connection");
+            return false;
+        }
+    }
+
+    /**
+     * Takes the path to a config.xml file, or --ping or --shutdown,
+     * optionally followed by --reset and by --port-file and the daemon's port
+     * file.
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        Path portFile = CimiToFhirDaemon.DEFAULT_PORT_FILE;
+        String command = null;
+        boolean reset = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--port-file".equals(args[i]) && i + 1 < args.length) {
+                portFile = Paths.get(args[++i]);
+            } else if ("--reset".equals(args[i])) {
+                reset = true;
+            } else {
+                command = args[i];
+            }
+        }
+        if (command == null) {
+            System.out.println("Please enter the path to your config.xml file, --ping or --shutdown");
+            System.exit(2);
+        }
+
+        CimiToFhirDaemonClient client = new CimiToFhirDaemonClient(portFile);
+        boolean succeeded;
+        if ("--ping".equals(command)) {
+            succeeded = client.ping(System.out);
+        } else if ("--shutdown".equals(command)) {
+            succeeded = client.shutdown(System.out);
+        } else {
+            succeeded = client.run(command, reset, System.out);
+        }
+        System.exit(succeeded ? 0 : 1);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.parser.TransformationDeserializer;
+import org.opencimi.transform.runtime.CimiInstanceJsonParser;
+import org.opencimi.transform.runtime.CimiToFhirTransformer;
+import org.opencimi.transform.runtime.TransformationContext;
+import org.opencimi.transform.runtime.TransformationResult;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+
+/**
+ * Translates NDJSON files with one CIMI instance per line (see
+ * {@link CimiInstanceJsonParser}) into FHIR NDJSON, one series of files per
+ * resource type (see {@link NdjsonChunkWriter}).
+ * <p>
+ * Lines are read in batches that are decoded, transformed and encoded on a
+ * pool of threads. At most a few batches per thread are in flight, so memory
+ * stays bounded whatever the size of the input, and batches are written in
+ * the order they were read, so the output follows the input. Lines that fail
+ * are reported in {@link NdjsonChunkWriter#ERRORS_FILE_NAME} with their line
+ * number and do not stop the run; none of their resources are written.
+ * Resources transformed from a line are given a random id when they have
+ * none.
+ */
+public class CimiToFhirNdjsonRunner {
+
+    public static final String DEFAULT_TRANSFORMATIONS = "/mapping/maps/CimiTransformations.xml";
+    public static final int DEFAULT_CHUNK_SIZE = 100000;
+    public static final int BATCH_SIZE = 500;
+    public static final String TRANSFORMATIONS_OPTION = "--transformations";
+    public static final String THREADS_OPTION = "--threads";
+    public static final String CHUNK_SIZE_OPTION = "--chunk-size";
+
+    private static final int BATCHES_PER_THREAD = 4;
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final CimiToFhirTransformer transformer;
+    private final int threads;
+    private final int chunkSize;
+    private final ThreadLocal<IParser> parsers;
+    private final CimiInstanceJsonParser instanceParser = new CimiInstanceJsonParser();
+    private PipelineMetrics metrics = PipelineMetrics.NOOP;
+
+    public CimiToFhirNdjsonRunner(FhirContext fhirContext, List<ModelTransform> transforms, int threads, int chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads " + threads);
+        }
+        this.transformer = new CimiToFhirTransformer(fhirContext, transforms);
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    }
+
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Usage: <code>&lt;input.ndjson[.gz]&gt; &lt;outputDirectory&gt;
+     * [--transformations file] [--threads n] [--chunk-size n]</code>
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        String transformations = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        for (int i = 0; i < args.length; i++) {
+            if (TRANSFORMATIONS_OPTION.equals(args[i]) && i + 1 < args.length) {
+                transformations = args[++i];
+            } else if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (CHUNK_SIZE_OPTION.equals(args[i]) && i + 1 < args.length) {
+                chunkSize = Integer.parseInt(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        if (arguments.size() != 2) {
+            System.out.println("Usage: <input.ndjson[.gz]> <outputDirectory> [" + TRANSFORMATIONS_OPTION + " file] [" + THREADS_OPTION + " n] [" + CHUNK_SIZE_OPTION + " n]");
+            System.exit(1);
+        }
+        TransformationDeserializer deserializer = new TransformationDeserializer();
+        List<ModelTransform> transforms = transformations == null ? deserializer.loadFromClassPath(DEFAULT_TRANSFORMATIONS) : deserializer.loadFromFilePath(transformations);
+        CimiToFhirNdjsonRunner runner = new CimiToFhirNdjsonRunner(FhirContext.forR4(), transforms, threads, chunkSize);
+        runner.run(Paths.get(arguments.get(0)), Paths.get(arguments.get(1)), System.out);
+    }
+
+    public Summary run(Path input, Path outputDirectory, PrintStream out) throws IOException {
+        try (InputStream in = open(input)) {
+            return run(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), outputDirectory, out);
+        }
+    }
+
+    public Summary run(BufferedReader reader, Path outputDirectory, PrintStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<List<Output>>> pending = new ArrayDeque<>();
+        int maxPending = threads * BATCHES_PER_THREAD;
+        Summary summary = new Summary(System.nanoTime());
+        long nextReport = summary.start + REPORT_INTERVAL;
+        try (NdjsonChunkWriter writer = new NdjsonChunkWriter(outputDirectory, chunkSize)) {
+            long lineNumber = 0;
+            List<String> lines = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                lines.add(line);
+                if (lines.size() == BATCH_SIZE) {
+                    submit(executor, pending, lineNumber - lines.size() + 1, lines);
+                    lines = new ArrayList<>(BATCH_SIZE);
+                }
+                while (pending.size() >= maxPending) {
+                    write(pending.poll(), writer, summary);
+                }
+                if (System.nanoTime() >= nextReport) {
+                    out.println(summary);
+                    nextReport = System.nanoTime() + REPORT_INTERVAL;
+                }
+            }
+            if (!lines.isEmpty()) {
+                submit(executor, pending, lineNumber - lines.size() + 1, lines);
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), writer, summary);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        summary.end = System.nanoTime();
+        metrics.increment("ndjson.records", summary.records);
+        metrics.increment("ndjson.errors", summary.errors);
+        metrics.recordTime("ndjson.run", summary.end - summary.start);
+        out.println(summary);
+        return summary;
+    }
+
+    private void submit(ExecutorService executor, Deque<Future<List<Output>>> pending, long firstLine, List<String> lines) {
+        pending.add(executor.submit(() -> translate(firstLine, lines)));
+    }
+
+    private List<Output> translate(long firstLine, List<String> lines) {
+        IParser parser = parsers.get();
+        List<Output> outputs = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                TransformationResult result = transformer.transform(instanceParser.parse(line));
+                Base target = result.getTarget();
+                if (!(target instanceof Resource)) {
+                    throw new IllegalArgumentException("Transformed into a " + target.fhirType() + ", which is not a resource");
+                }
+                Resource resource = (Resource) target;
+                if (!resource.hasIdElement()) {
+                    resource.setId(resource.fhirType() + "/" + TransformationContext.randomId());
+                }
+                //A line is written whole or reported as an error, never both
+                List<Output> lineOutputs = new ArrayList<>(1 + result.getReferencedResources().size());
+                lineOutputs.add(Output.record(resource.fhirType(), parser.encodeResourceToString(resource)));
+                for (Resource referencedResource : result.getReferencedResources()) {
+                    lineOutputs.add(Output.resource(referencedResource.fhirType(), parser.encodeResourceToString(referencedResource)));
+                }
+                outputs.addAll(lineOutputs);
+            } catch (RuntimeException e) {
+                outputs.add(Output.error(firstLine + i, e.getMessage()));
+            }
+        }
+        return outputs;
+    }
+
+    private void write(Future<List<Output>> batch, NdjsonChunkWriter writer, Summary summary) throws IOException {
+        List<Output> outputs;
+        try {
+            outputs = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while translating");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error translating records", e.getCause());
+        }
+        for (Output output : outputs) {
+            if (output.resourceType == null) {
+                writer.writeError(output.lineNumber, output.text);
+                summary.records++;
+                summary.errors++;
+            } else {
+                writer.write(output.resourceType, output.text);
+                summary.resources++;
+                if (output.record) {
+                    summary.records++;
+                }
+            }
+        }
+    }
+
+    private static InputStream open(Path input) throws IOException {
+        InputStream in = Files.newInputStream(input);
+        if (input.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 65536);
+        }
+        return in;
+    }
+
+    private static final class Output {
+
+        private final String resourceType;
+        private final String text;
+        private final long lineNumber;
+        private final boolean record;
+
+        private Output(String resourceType, String text, long lineNumber, boolean record) {
+            this.resourceType = resourceType;
+            this.text = text;
+            this.lineNumber = lineNumber;
+            this.record = record;
+        }
+
+        private static Output record(String resourceType, String json) {
+            return new Output(resourceType, json, 0, true);
+        }
+
+        private static Output resource(String resourceType, String json) {
+            return new Output(resourceType, json, 0, false);
+        }
+
+        private static Output error(long lineNumber, String message) {
+            return new Output(null, message, lineNumber, false);
+        }
+    }
+
+    /**
+     * Counts of a run. Records are the non blank input lines, resources the
+     * lines written, including the resources created for references.
+     */
+    public static final class Summary {
+
+        private final long start;
+        private long end;
+        private long records;
+        private long errors;
+        private long resources;
+
+        private Summary(long start) {
+            this.start = start;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getResources() {
+            return resources;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - start);
+        }
+
+        public double getRecordsPerSecond() {
+            long millis = getElapsedMillis();
+            return millis == 0 ? records : records * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records (%d errors), %d resources in %d ms, %.0f records/s",
+                    records, errors, resources, getElapsedMillis(), getRecordsPerSecond());
+        }
+    }
+}
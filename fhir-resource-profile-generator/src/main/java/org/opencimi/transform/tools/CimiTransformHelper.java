@@ -23,30 +23,89 @@ package org.opencimi.transform.tools;
 import ca.uhn.fhir.context.FhirContext;
 import org.opencimi.transform.*;
 import org.opencimi.transform.serializer.TransformationSerializer;
+import org.opencimi.transform.translator.fhir.BmmSchemaLoader;
 import org.openehr.bmm.core.BmmClass;
 import org.openehr.bmm.core.BmmModel;
 import org.openehr.bmm.core.BmmPackage;
+import org.openehr.bmm.core.BmmProperty;
 import org.openehr.bmm.persistence.PersistedBmmSchema;
-import org.openehr.bmm.persistence.deserializer.BmmSchemaDeserializer;
 
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.opencimi.transform.utils.ContentHash;
+import org.opencimi.transform.utils.fhir.CimiToFhirTypeIndex;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+import org.opencimi.transform.utils.metrics.Timing;
+
+import static java.util.stream.Collectors.toList;
 
 public class CimiTransformHelper {
 
+    private static final String CLINICAL_STATEMENT_CLASS = "ClinicalStatement";
+    private static final String ALL_CLASSES_FLAG = "--all";
+    public static final String TEMPLATES_FILE_NAME = "CimiTransformationTemplates.xml";
+
     private String configurationFilePath;
     private Configuration config;
     private BmmModel bmmModel;
-    private FhirContext fhirContext = FhirContext.forR4();
+    //Hash of the inputs bmmModel was built from
+    private String bmmModelHash;
+    private final FhirContext fhirContext;
+    private PipelineMetrics metrics = PipelineMetrics.NOOP;
+    //Flattened classes of the current model, shared by every bound statement
+    private final Map<String, BmmClass> flattenedClasses = new ConcurrentHashMap<>();
 
     public CimiTransformHelper(String configurationFilePath) {
+        this(configurationFilePath, FhirContext.forR4());
+    }
+
+    /**
+     * @param configurationFilePath
+     * @param fhirContext an R4 context, which can be shared between helpers
+     */
+    public CimiTransformHelper(String configurationFilePath, FhirContext fhirContext) {
         this.configurationFilePath = configurationFilePath;
+        this.fhirContext = fhirContext;
     }
 
-    public void initialize() {
+    /**
+     * Loads the configuration. The BMM files are only parsed the first time
+     * the model is requested through {@link #getBmmModel()}. A model loaded
+     * before is kept as long as nothing it was built from changed, so
+     * initializing the same helper again is cheap.
+     */
+    public synchronized void initialize() {
         this.config = ConfigurationLoader.load(configurationFilePath);
-        this.bmmModel = loadCimiModels();
+        if (bmmModel != null && bmmModelHash != null && bmmModelHash.equals(computeModelHashIfPossible())) {
+            return;
+        }
+        this.bmmModel = null;
+        this.bmmModelHash = null;
+        this.flattenedClasses.clear();
+    }
+
+    /**
+     * @return the default type mappings plus the ones of the configured type
+     * mappings file, if any
+     * @throws IOException
+     */
+    public CimiToFhirTypeIndex createTypeIndex() throws IOException {
+        CimiToFhirTypeIndex typeIndex = new CimiToFhirTypeIndex();
+        if (config.getTypeMappingsFile() != null) {
+            typeIndex.loadTypeMappings(Paths.get(config.getTypeMappingsFile()));
+        }
+        return typeIndex;
     }
 
     public String getConfigurationFilePath() {
@@ -61,52 +120,149 @@ public class CimiTransformHelper {
         return config;
     }
 
-    public BmmModel getBmmModel() {
+    public synchronized BmmModel getBmmModel() {
+        if (bmmModel == null) {
+            //Hashed first, so a file changing while it is parsed is noticed next time
+            bmmModelHash = computeModelHashIfPossible();
+            bmmModel = loadCimiModels();
+        }
         return bmmModel;
     }
 
+    /**
+     * @return a hash of everything the model is built from: the contents of
+     * the BMM files, in order, the flattened clinical statements and the
+     * additional type mappings
+     * @throws IOException
+     */
+    public String computeModelHash() throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        for (String persistedBmmSchemaPath : config.getBmmFiles()) {
+            digest.update(ContentHash.of(Paths.get(persistedBmmSchemaPath)).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        config.getClinicalStatementConfigurations().forEach(statement -> {
+            String entry = statement.getStatementName() + "|" + statement.getStatementTopicName() + "|" + statement.getStatementContextName();
+            digest.update(entry.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        });
+        if (config.getTypeMappingsFile() != null) {
+            digest.update(ContentHash.of(Paths.get(config.getTypeMappingsFile())).getBytes(StandardCharsets.UTF_8));
+        }
+        return ContentHash.toHex(digest.digest());
+    }
+
+    private String computeModelHashIfPossible() {
+        try {
+            return computeModelHash();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public FhirContext getFhirContext(){
         return this.fhirContext;
     }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
     
     public BmmClass flattenClinicalStatement(String statementName, String statementTopicClassName, String statementContextClassName) {
-        BmmClass clinicalStatement = bmmModel.getClassDefinition("ClinicalStatement");
-        BmmClass clinicalStatementFlattened = clinicalStatement.flattenBmmClass();
-        clinicalStatementFlattened.setName(statementName);
-        clinicalStatementFlattened.getProperties().remove("topic");
-        clinicalStatementFlattened.getProperties().remove("context");
-        BmmClass medicationAct = bmmModel.getClassDefinition(statementTopicClassName).flattenBmmClass();
-        BmmClass medicationOrder = bmmModel.getClassDefinition(statementContextClassName).flattenBmmClass();
-        clinicalStatementFlattened.getProperties().putAll(medicationAct.getProperties());
-        medicationAct.getProperties().put("topicKey", medicationAct.getProperties().get("key"));
-        medicationAct.getProperties().remove("key");
-        clinicalStatementFlattened.getProperties().putAll(medicationOrder.getProperties());
-        return clinicalStatementFlattened;
+        return flattenClinicalStatement(getBmmModel(), statementName, statementTopicClassName, statementContextClassName);
+    }
+
+    private BmmClass flattenClinicalStatement(BmmModel bmmModel, String statementName, String statementTopicClassName, String statementContextClassName) {
+        try (Timing timing = metrics.time("bmm.flatten")) {
+            return flatten(bmmModel, statementName, statementTopicClassName, statementContextClassName);
+        }
+    }
+
+    private BmmClass flatten(BmmModel bmmModel, String statementName, String statementTopicClassName, String statementContextClassName) {
+        //The statement is the only new class: the flattened ClinicalStatement,
+        //topic and context classes are computed once and only read from here,
+        //the statement copies their property tables instead of flattening again
+        BmmClass clinicalStatement = getFlattenedClass(bmmModel, CLINICAL_STATEMENT_CLASS);
+        Map<String, BmmProperty> properties = new LinkedHashMap<>(clinicalStatement.getProperties());
+        properties.remove("topic");
+        properties.remove("context");
+        properties.putAll(getFlattenedProperties(bmmModel, statementTopicClassName));
+        properties.putAll(getFlattenedProperties(bmmModel, statementContextClassName));
+
+        BmmClass statement = new BmmClass(statementName, clinicalStatement.getDocumentation(), clinicalStatement.isAbstract());
+        if (clinicalStatement.getAncestors() != null) {
+            statement.getAncestors().putAll(clinicalStatement.getAncestors());
+        }
+        statement.getProperties().putAll(properties);
+        return statement;
+    }
+
+    /**
+     * @param className
+     * @return the properties of the class including the inherited ones. The
+     * table is shared by every caller and cannot be modified.
+     */
+    public Map<String, BmmProperty> getFlattenedProperties(String className) {
+        return getFlattenedProperties(getBmmModel(), className);
+    }
+
+    private Map<String, BmmProperty> getFlattenedProperties(BmmModel bmmModel, String className) {
+        return Collections.unmodifiableMap(getFlattenedClass(bmmModel, className).getProperties());
+    }
+
+    private BmmClass getFlattenedClass(BmmModel bmmModel, String className) {
+        return flattenedClasses.computeIfAbsent(className, name -> {
+            BmmClass classDefinition = bmmModel.getClassDefinition(name);
+            if (classDefinition == null) {
+                throw new IllegalArgumentException("Class " + name + " is not defined in the model");
+            }
+            metrics.increment("bmm.flatten.classes");
+            return classDefinition.flattenBmmClass();
+        });
     }
 
     public BmmModel loadCimiModels() {
+        try (Timing timing = metrics.time("bmm.load")) {
+            BmmModel bmmModel = createCimiModel();
+            metrics.increment("bmm.classes", bmmModel.getClassDefinitions().size());
+            return bmmModel;
+        }
+    }
+
+    private BmmModel createCimiModel() {
         PersistedBmmSchema bmmSchema = null;
         PersistedBmmSchema previousSchema = null;
-        for (String persistedBmmSchemaPath : config.getBmmFiles()) {
-            System.out.println("Processing " + persistedBmmSchemaPath);
-            BmmSchemaDeserializer schemaDeserializer = new BmmSchemaDeserializer();
-            bmmSchema = schemaDeserializer.deserialize(persistedBmmSchemaPath);
+        config.getBmmFiles().forEach(path -> System.out.println("Processing " + path));
+        //Files are parsed concurrently, the merge keeps the configured order
+        BmmSchemaLoader schemaLoader = new BmmSchemaLoader();
+        for (PersistedBmmSchema parsedSchema : schemaLoader.parseFiles(config.getBmmFiles())) {
+            bmmSchema = parsedSchema;
             if (previousSchema != null) {
                 bmmSchema.merge(previousSchema);
             }
             previousSchema = bmmSchema;
         }
+        schemaLoader.getTimings().forEach((path, millis) -> metrics.recordTime("bmm.parse." + Paths.get(path).getFileName(), TimeUnit.MILLISECONDS.toNanos(millis)));
 
         bmmSchema.createBmmSchema();
-        bmmModel = bmmSchema.getBmmModel();
+        BmmModel bmmModel = bmmSchema.getBmmModel();
+        flattenedClasses.clear();
+        //Statements only read the model, so they are flattened in parallel
+        //and added afterwards in the configured order
+        List<BmmClass> clinicalStatements = config.getClinicalStatementConfigurations().parallelStream()
+            .map(statement -> flattenClinicalStatement(bmmModel, statement.getStatementName(), statement.getStatementTopicName(), statement.getStatementContextName()))
+            .collect(toList());
         BmmPackage boundStatementPkg = new BmmPackage("boundstatement");
         bmmModel.addPackage(boundStatementPkg);
-        config.getClinicalStatementConfigurations().forEach( statement -> {
-            BmmClass clinicalStatement = flattenClinicalStatement(statement.getStatementName(), statement.getStatementTopicName(), statement.getStatementContextName());
+        clinicalStatements.forEach(clinicalStatement -> {
             boundStatementPkg.addClass(clinicalStatement);
             bmmModel.addClassDefinition(clinicalStatement);
         });
-        return bmmSchema.getBmmModel();
+        return bmmModel;
     }
 
     /**
@@ -114,13 +270,17 @@ public class CimiTransformHelper {
      *
      * @param args
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         if (validArguments(args)) {
             String configFileDir = null;
             configFileDir = args[0];
             CimiTransformHelper helper = new CimiTransformHelper(configFileDir);
             helper.initialize();
+            if (args.length > 1) {
+                helper.createTransformationTemplates(Paths.get(helper.getConfig().getOutputDirectory() + TEMPLATES_FILE_NAME));
+                return;
+            }
             BmmClass clinicalStatementFlattened = helper.flattenClinicalStatement("MedicationOrderStatement","MedicationAct","MedicationOrder");
             helper.createTransformationTemplate(clinicalStatementFlattened);
         } else {
@@ -128,39 +288,94 @@ public class CimiTransformHelper {
         }
     }
 
-    public void createTransformationTemplate(BmmClass clinicalStatementFlattened) {
+    public void createTransformationTemplate(BmmClass clinicalStatementFlattened) throws IOException {
         List<ModelTransform> transforms = new ArrayList<>();
-        String transformFileName = clinicalStatementFlattened.getName() + "Transform";
-        ModelTransform transform = new ModelTransform(transformFileName);
+        TransformationSerializer transformationSerializer = new TransformationSerializer();
+        ModelTransform transform = createTransformationTemplate(clinicalStatementFlattened, createTypeIndex());
         transforms.add(transform);
-        TransformInput transformSource = new TransformInput("CIMI", clinicalStatementFlattened.getName(), "http://opencimi.org/structuredefinition/" + clinicalStatementFlattened.getName());
+        transformationSerializer.write(transforms, Paths.get(config.getOutputDirectory() + transform.getName() + ".xml"));
+    }
+
+    /**
+     * Writes a template transformation for every concrete class of the model
+     * to a single file, compressed if its name ends with <code>.gz</code>.
+     * Classes are flattened and converted in parallel; the templates are
+     * written as they become available, in the order of the model.
+     *
+     * @param file
+     * @return the number of templates written
+     * @throws IOException
+     */
+    public int createTransformationTemplates(Path file) throws IOException {
+        BmmModel model = getBmmModel();
+        CimiToFhirTypeIndex typeIndex = createTypeIndex();
+        List<BmmClass> classes = model.getClassDefinitions().values().stream()
+            .filter(classDefinition -> !classDefinition.isAbstract() && !typeIndex.isExcludedClass(classDefinition))
+            .collect(toList());
+        try (Timing timing = metrics.time("templates.generate");
+                TransformationSerializer.TransformationWriter writer = new TransformationSerializer().open(file)) {
+            //Flattened classes are not cached: each one is only needed for its own template
+            classes.parallelStream()
+                .map(classDefinition -> createTransformationTemplate(classDefinition.flattenBmmClass(), typeIndex))
+                .forEachOrdered(transform -> {
+                    try {
+                        writer.write(transform);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        metrics.increment("templates.generated", classes.size());
+        return classes.size();
+    }
+
+    /**
+     * Creates a skeleton transformation with one rule per property of the
+     * flattened class. The FHIR target of the class is filled in when the
+     * type index maps it. Properties of a mapped type are cast to their FHIR
+     * type, the others are copied. Everything else is left as TBD.
+     */
+    private ModelTransform createTransformationTemplate(BmmClass flattenedClass, CimiToFhirTypeIndex typeIndex) {
+        ModelTransform transform = new ModelTransform(flattenedClass.getName() + "Transform");
+        TransformInput transformSource = new TransformInput("CIMI", flattenedClass.getName(), "http://opencimi.org/structuredefinition/" + flattenedClass.getName());
         transform.setSource(transformSource);
-        TransformInput transformTarget = new TransformInput("FHIR", "TBD", "http://hl7.org/fhir/structuredefinition/TBD");
+        String fhirTarget = typeIndex.getFhirType(flattenedClass.getName());
+        if (fhirTarget == null) {
+            fhirTarget = "TBD";
+        }
+        TransformInput transformTarget = new TransformInput("FHIR", fhirTarget, "http://hl7.org/fhir/StructureDefinition/" + fhirTarget);
         transform.setTarget(transformTarget);
         RuleGroup ruleGroup = new RuleGroup();
         transform.addRuleGroup(ruleGroup);
-        clinicalStatementFlattened.getProperties().forEach((propertyName, property) -> {
+        flattenedClass.getProperties().forEach((propertyName, property) -> {
             Rule rule = new Rule();
             ruleGroup.addRule(rule);
             RuleSource source = new RuleSource();
             rule.addSource(source);
             ModelAttribute attribute = new ModelAttribute(propertyName);
             source.addAttribute(attribute);
-            RuleTarget target = new RuleTarget(new TypeConversion("fhir:copy"));
+            String fhirType = typeIndex.isExcludedType(property.getType()) ? null : typeIndex.getFhirType(property.getType());
+            //copy ignores parameters, only cast converts to the FHIR type
+            TypeConversion typeConversion = new TypeConversion(fhirType == null ? "copy" : "cast");
+            typeConversion.setNamespace("fhir");
+            if (fhirType != null) {
+                OperationParameter targetType = new OperationParameter();
+                targetType.setName("targetType");
+                targetType.setValue(fhirType);
+                typeConversion.addOperationParameter(targetType);
+            }
+            RuleTarget target = new RuleTarget(typeConversion);
             rule.addTarget(target);
             target.addAttribute(new ModelAttribute("TBD"));
         });
-        TransformationSerializer transformationSerializer = new TransformationSerializer();
-        String serializedTransform = transformationSerializer.serialize(transforms);
-        try (PrintWriter out = new PrintWriter(config.getOutputDirectory() + transformFileName + ".xml")) {
-            out.println(serializedTransform);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return transform;
     }
 
     /**
      * Executable takes the following arguments:se {                                                                                                                       * <ul>//logger.error("You have entered an invalid number of arguments. Please enter the path to config.xml file");               * <li>The path to the config.xml file to run this routine. If this argument is omitted, application will look for a config.xml file at the top-level of the classpath</li>                                                                                                                           * <li>The output directory for the generated BMM files. This argument is required and must end with a file separator such as '/'</li>
+     * <li>Optionally --all, to write a template for every concrete class of the model to CimiTransformationTemplates.xml instead</li>
      * </ul>
      *
      * @param args
@@ -169,8 +384,8 @@ public class CimiTransformHelper {
 
     public static boolean validArguments(String[] args) {
         boolean isValid = true;
-        if (args.length != 1) {
-            System.out.println("You have entered an invalid number of arguments. Please enter the path to your config.xml file");
+        if (args.length != 1 && !(args.length == 2 && ALL_CLASSES_FLAG.equals(args[1]))) {
+            System.out.println("You have entered an invalid number of arguments. Please enter the path to your config.xml file, optionally followed by " + ALL_CLASSES_FLAG);
             isValid = false;
         }
         return isValid;
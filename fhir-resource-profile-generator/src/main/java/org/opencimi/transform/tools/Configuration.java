@@ -27,6 +27,13 @@ public class Configuration {
 
     private List<String> bmmFiles = new ArrayList<>();
     private String outputDirectory;
+    private int parallelism = 1;
+    private boolean incremental;
+    private boolean snapshot;
+    private boolean analysisCache;
+    private boolean metrics;
+    private boolean metricsJmx;
+    private String typeMappingsFile;
     private List<ClinicalStatementConfiguration> clinicalStatementConfigurations = new ArrayList<>();
 
     public List<String> getBmmFiles() {
@@ -49,6 +56,72 @@ public class Configuration {
         this.outputDirectory = outputDirectory;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return whether only the transformations whose inputs changed are
+     * analysed again. Incremental builds also keep the logical profile
+     * snapshot, whether or not {@link #isSnapshot() snapshots} are enabled,
+     * so an unchanged model is not regenerated either.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public boolean isAnalysisCache() {
+        return analysisCache;
+    }
+
+    public void setAnalysisCache(boolean analysisCache) {
+        this.analysisCache = analysisCache;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    public void setMetricsJmx(boolean metricsJmx) {
+        this.metricsJmx = metricsJmx;
+    }
+
+    /**
+     * @return a file with CIMI to FHIR type mappings to add to the default
+     * ones, or null
+     */
+    public String getTypeMappingsFile() {
+        return typeMappingsFile;
+    }
+
+    public void setTypeMappingsFile(String typeMappingsFile) {
+        this.typeMappingsFile = typeMappingsFile;
+    }
+
     public List<ClinicalStatementConfiguration> getClinicalStatementConfigurations() {
         return clinicalStatementConfigurations;
     }
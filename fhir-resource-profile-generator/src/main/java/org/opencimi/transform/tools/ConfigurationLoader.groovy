@@ -50,6 +50,26 @@ class ConfigurationLoader {
             configuration.outputDirectory.each { dir ->
                 String path = dir.@'name'
                 config.setOutputDirectory(path)}
+            configuration.parallelism.each { p ->
+                String threads = p.@'threads'
+                config.setParallelism(Integer.parseInt(threads))}
+            configuration.incremental.each { i ->
+                String enabled = i.@'enabled'
+                config.setIncremental(Boolean.parseBoolean(enabled))}
+            configuration.snapshot.each { s ->
+                String enabled = s.@'enabled'
+                config.setSnapshot(Boolean.parseBoolean(enabled))}
+            configuration.analysisCache.each { a ->
+                String enabled = a.@'enabled'
+                config.setAnalysisCache(Boolean.parseBoolean(enabled))}
+            configuration.metrics.each { m ->
+                String enabled = m.@'enabled'
+                String jmx = m.@'jmx'
+                config.setMetrics(Boolean.parseBoolean(enabled))
+                config.setMetricsJmx(Boolean.parseBoolean(jmx))}
+            configuration.typeMappings.each { t ->
+                String path = t.@'name'
+                config.setTypeMappingsFile(path)}
         } catch(Exception e) {
             throw new RuntimeException("Error parsing configuration file", e)
         }
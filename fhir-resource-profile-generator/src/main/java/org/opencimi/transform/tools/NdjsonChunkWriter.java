@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes NDJSON lines into one series of files per resource type, named
+ * <code>Type.n.ndjson</code>, starting a new file every
+ * <code>chunkSize</code> lines. Not thread safe.
+ */
+public class NdjsonChunkWriter implements Closeable {
+
+    public static final String ERRORS_FILE_NAME = "errors.txt";
+
+    private final Path directory;
+    private final int chunkSize;
+    private final Map<String, Chunk> chunks = new HashMap<>();
+    private Writer errors;
+
+    public NdjsonChunkWriter(Path directory, int chunkSize) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.chunkSize = chunkSize;
+    }
+
+    public void write(String resourceType, String json) throws IOException {
+        Chunk chunk = chunks.get(resourceType);
+        if (chunk == null) {
+            chunk = new Chunk(resourceType);
+            chunks.put(resourceType, chunk);
+        }
+        chunk.write(json);
+    }
+
+    public void writeError(long lineNumber, String message) throws IOException {
+        if (errors == null) {
+            errors = Files.newBufferedWriter(directory.resolve(ERRORS_FILE_NAME), StandardCharsets.UTF_8);
+        }
+        errors.write("line " + lineNumber + ": " + message);
+        errors.write('\n');
+    }
+
+    /**
+     * @return the number of lines written for each resource type
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        chunks.forEach((type, chunk) -> counts.put(type, chunk.total));
+        return counts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Chunk chunk : chunks.values()) {
+            try {
+                chunk.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (errors != null) {
+            try {
+                errors.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private class Chunk implements Closeable {
+
+        private final String resourceType;
+        private BufferedWriter writer;
+        private int index;
+        private int lines;
+        private long total;
+
+        private Chunk(String resourceType) {
+            this.resourceType = resourceType;
+        }
+
+        private void write(String json) throws IOException {
+            if (writer == null || lines == chunkSize) {
+                close();
+                index++;
+                lines = 0;
+                writer = Files.newBufferedWriter(directory.resolve(resourceType + "." + index + ".ndjson"), StandardCharsets.UTF_8);
+            }
+            writer.write(json);
+            writer.write('\n');
+            lines++;
+            total++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+    }
+}
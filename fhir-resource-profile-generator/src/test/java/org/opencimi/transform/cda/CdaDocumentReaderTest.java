@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.cda;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.elementmodel.Element;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencimi.transform.fhir.CoreDefinitionCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CdaDocumentReaderTest {
+
+    private static final String CLINICAL_DOCUMENT = "http://hl7.org/fhir/StructureDefinition/ClinicalDocument";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private CdaDocumentReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        PrePopulatedValidationSupport validationSupport = new PrePopulatedValidationSupport();
+        CoreDefinitionCache.getStructureDefinitions(fhirContext).forEach(validationSupport::addStructureDefinition);
+        CdaToFhirTransformer.loadDefinitions(Paths.get(getClass().getResource("/cda/definitions").toURI()), fhirContext)
+                .forEach(validationSupport::addStructureDefinition);
+        HapiWorkerContext workerContext = new HapiWorkerContext(fhirContext, validationSupport);
+        reader = new CdaDocumentReader(workerContext, workerContext.fetchResource(StructureDefinition.class, CLINICAL_DOCUMENT));
+    }
+
+    @Test
+    public void documentIsReadAgainstTheLogicalModel() throws Exception {
+        Element document;
+        try (InputStream in = getClass().getResourceAsStream("/cda/document.xml")) {
+            document = reader.read(in);
+        }
+
+        assertEquals("ClinicalDocument", document.getName());
+        assertEquals("DOCCLIN", document.getNamedChild("classCode").getValue());
+        assertNull(document.getNamedChild("moodCode"));
+
+        Element id = document.getNamedChild("id");
+        assertEquals("2.16.840.1.113883.19.5", id.getNamedChild("root").getValue());
+        assertEquals("c266", id.getNamedChild("extension").getValue());
+
+        Element title = document.getNamedChild("title");
+        assertEquals(1, title.getChildren().size());
+        assertEquals("Good Health Clinic Consultation Note", title.getNamedChild("value").getValue());
+
+        Element version = document.getNamedChild("versionInteger");
+        assertEquals("integer", version.getType());
+        assertEquals("2", version.getValue());
+
+        List<Element> values = document.getChildrenByName("value");
+        assertEquals(2, values.size());
+        assertEquals("PQ", values.get(0).getType());
+        assertEquals("1.5", values.get(0).getNamedChild("value").getValue());
+        assertEquals("mg", values.get(0).getNamedChild("unit").getValue());
+        assertEquals("CD", values.get(1).getType());
+        assertEquals("8302-2", values.get(1).getNamedChild("code").getValue());
+
+        assertNull(document.getNamedChild("text"));
+        assertNull(document.getNamedChild("author"));
+    }
+
+    @Test
+    public void otherDocumentsAreRejected() throws Exception {
+        String observation = "<Observation xmlns=\"urn:hl7-org:v3\"/>";
+        try {
+            reader.read(new ByteArrayInputStream(observation.getBytes(StandardCharsets.UTF_8)));
+            fail("The root element is not a ClinicalDocument");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Observation"));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.cda;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.hapi.ctx.PrePopulatedValidationSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CdaToFhirTransformerTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void bundledMapsAreParsedOnce() {
+        CdaStructureMaps maps = CdaStructureMaps.load(new HapiWorkerContext(fhirContext, new PrePopulatedValidationSupport()));
+
+        assertEquals(CdaStructureMaps.MAP_RESOURCES.size(), maps.getMaps().size());
+        assertNotNull(maps.getMap(CdaStructureMaps.CDA_MAP_URL));
+        assertTrue(maps.getSourceDefinitions().contains("http://hl7.org/fhir/StructureDefinition/ClinicalDocument"));
+        assertEquals(Collections.singleton("http://hl7.org/fhir/StructureMap/cda-tel"), maps.getUnresolvedImports());
+    }
+
+    @Test
+    public void missingLogicalModelIsReported() {
+        try {
+            new CdaToFhirTransformer(fhirContext, Collections.emptyList());
+            fail("The CDA logical model is not bundled");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("http://hl7.org/fhir/StructureDefinition/ClinicalDocument"));
+        }
+    }
+
+    @Test
+    public void documentIsTransformedIntoADocumentBundle() throws Exception {
+        CdaToFhirTransformer transformer = new CdaToFhirTransformer(fhirContext,
+                CdaToFhirTransformer.loadDefinitions(Paths.get(getClass().getResource("/cda/definitions").toURI()), fhirContext));
+
+        Bundle bundle;
+        try (InputStream in = getClass().getResourceAsStream("/cda/note.xml")) {
+            bundle = transformer.transform(in);
+        }
+
+        assertEquals(Bundle.BundleType.DOCUMENT, bundle.getType());
+        assertEquals(1, bundle.getEntry().size());
+        Composition composition = (Composition) bundle.getEntryFirstRep().getResource();
+        assertEquals("Good Health Clinic Consultation Note", composition.getTitle());
+        assertEquals("en-US", composition.getLanguage());
+    }
+}
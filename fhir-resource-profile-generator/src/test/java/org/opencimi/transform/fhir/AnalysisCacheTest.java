@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class AnalysisCacheTest {
+
+    private static final FhirContext context = FhirContext.forR4();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keysDependOnEveryInputButNotOnTheirOrder() {
+        AnalysisCache cache = new AnalysisCache(context, folder.getRoot().toPath());
+        StructureMap map = createMap("AMap");
+        StructureMap dependency = createMap("BMap");
+        StructureMap otherDependency = createMap("CMap");
+        StructureDefinition input = createProfile("A", "http://opencimi.org/logical-model/fhir/A");
+        StructureDefinition otherInput = createProfile("B", "http://opencimi.org/logical-model/fhir/B");
+
+        String key = cache.computeKey(map, Arrays.asList(dependency, otherDependency), Arrays.asList(input, otherInput));
+        assertEquals(key, cache.computeKey(map, Arrays.asList(otherDependency, dependency), Arrays.asList(otherInput, input)));
+
+        otherInput.setDescription("changed");
+        assertNotEquals(key, cache.computeKey(map, Arrays.asList(dependency, otherDependency), Arrays.asList(input, otherInput)));
+        assertNotEquals(key, cache.computeKey(map, Collections.singletonList(dependency), Arrays.asList(input, otherInput)));
+    }
+
+    @Test
+    public void storedProfilesAreReturned() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve(AnalysisCache.DIRECTORY_NAME);
+        AnalysisCache cache = new AnalysisCache(context, directory);
+        String key = cache.computeKey(createMap("AMap"), Collections.emptyList(), Collections.emptyList());
+        assertNull(cache.get(key));
+
+        cache.put(key, Arrays.asList(createProfile("A", "http://opencimi.org/fhir/A"), createProfile("B", "http://opencimi.org/fhir/B")));
+        List<StructureDefinition> profiles = new AnalysisCache(context, directory).get(key);
+
+        assertEquals(2, profiles.size());
+        assertEquals("http://opencimi.org/fhir/B", profiles.get(1).getUrl());
+        assertEquals(1, directory.toFile().list().length);
+    }
+
+    @Test
+    public void unreadableEntriesAreMissing() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        AnalysisCache cache = new AnalysisCache(context, directory);
+        Files.write(directory.resolve("broken.json"), "{ not json".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(cache.get("broken"));
+    }
+
+    private StructureMap createMap(String name) {
+        StructureMap map = new StructureMap();
+        map.setName(name);
+        map.setUrl(StructureMapFactory.STRUCTURE_MAP_URI_BASE + name.toLowerCase());
+        return map;
+    }
+
+    private StructureDefinition createProfile(String name, String url) {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setName(name);
+        profile.setUrl(url);
+        return profile;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CoreDefinitionCacheTest {
+
+    @Test
+    public void definitionsAreSharedPerFhirVersion() {
+        List<StructureDefinition> first = CoreDefinitionCache.getStructureDefinitions(FhirContext.forR4());
+        List<StructureDefinition> second = CoreDefinitionCache.getStructureDefinitions(FhirContext.forR4());
+
+        assertSame(first, second);
+        assertFalse(first.isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void definitionsAreUnmodifiable() {
+        CoreDefinitionCache.getStructureDefinitions(FhirContext.forR4()).add(new StructureDefinition());
+    }
+
+    @Test
+    public void definitionsIncludeTheTypesUsedByTheMaps() {
+        Set<String> urls = new HashSet<>();
+        for (StructureDefinition definition : CoreDefinitionCache.getStructureDefinitions(FhirContext.forR4())) {
+            urls.add(definition.getUrl());
+        }
+        for (String type : new String[]{"Element", "Resource", "DomainResource", "Coding", "CodeableConcept", "Identifier",
+                "Reference", "Extension", "Period", "MedicationRequest", "Bundle", "string", "uri"}) {
+            assertTrue(type, urls.contains("http://hl7.org/fhir/StructureDefinition/" + type));
+        }
+    }
+}
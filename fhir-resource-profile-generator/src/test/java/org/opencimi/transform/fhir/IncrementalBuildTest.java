@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.parser.TransformationDeserializer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalBuildTest {
+
+    private final FhirContext context = FhirContext.forR4();
+    private final LogicalProfileIndex logicalProfiles = LogicalProfileIndex.of(context, Collections.emptyList());
+    private final TransformationScheduler scheduler = new TransformationScheduler(logicalProfiles);
+    private final List<ModelTransform> transforms = new TransformationDeserializer().loadFromClassPath("/mapping/maps/CimiTransformations.xml");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unchangedBuildIsUpToDate() throws IOException {
+        Path output = folder.getRoot().toPath();
+        build(output, Collections.emptyMap());
+
+        IncrementalBuild incrementalBuild = plan(output);
+        for (StructureMap map : buildMaps()) {
+            assertTrue(map.getName(), incrementalBuild.isUpToDate(map));
+        }
+    }
+
+    @Test
+    public void changedTransformIsOutdated() throws IOException {
+        Path output = folder.getRoot().toPath();
+        build(output, Collections.emptyMap());
+        transforms.get(0).getTarget().setContraintIdentifier("http://opencimi.org/fhir/ChangedCoding");
+
+        IncrementalBuild incrementalBuild = plan(output);
+        List<StructureMap> maps = buildMaps();
+        assertFalse(incrementalBuild.isUpToDate(maps.get(0)));
+        assertTrue(incrementalBuild.isUpToDate(maps.get(1)));
+    }
+
+    @Test
+    public void deletedOutputFileMakesItsTransformOutdated() throws IOException {
+        Path output = folder.getRoot().toPath();
+        build(output, Collections.emptyMap());
+        Files.delete(output.resolve(transforms.get(1).getName() + "0.json"));
+
+        IncrementalBuild incrementalBuild = plan(output);
+        List<StructureMap> maps = buildMaps();
+        assertTrue(incrementalBuild.isUpToDate(maps.get(0)));
+        assertFalse(incrementalBuild.isUpToDate(maps.get(1)));
+    }
+
+    @Test
+    public void profilesNoLongerEmittedAreDeleted() throws IOException {
+        Path output = folder.getRoot().toPath();
+        build(output, Collections.emptyMap());
+        String name = transforms.get(0).getName();
+        assertTrue(Files.exists(output.resolve(name + "1.json")));
+
+        transforms.get(0).getTarget().setContraintIdentifier("http://opencimi.org/fhir/ChangedCoding");
+        build(output, Collections.singletonMap(name, 1));
+
+        assertTrue(Files.exists(output.resolve(name + "0.json")));
+        assertFalse(Files.exists(output.resolve(name + "1.json")));
+        assertTrue(Files.exists(output.resolve(transforms.get(1).getName() + "1.json")));
+    }
+
+    private List<StructureMap> buildMaps() {
+        List<StructureMap> maps = new ArrayList<>();
+        for (ModelTransform transform : transforms) {
+            maps.add(StructureMapFactory.build(transform));
+        }
+        return maps;
+    }
+
+    private IncrementalBuild plan(Path output) throws IOException {
+        IncrementalBuild incrementalBuild = new IncrementalBuild(context, output, logicalProfiles, transforms);
+        incrementalBuild.plan(buildMaps(), scheduler);
+        return incrementalBuild;
+    }
+
+    /**
+     * Simulates a run in which every outdated transform emits two profiles,
+     * or the number given for it.
+     */
+    private void build(Path output, Map<String, Integer> profileCounts) throws IOException {
+        IncrementalBuild incrementalBuild = plan(output);
+        for (StructureMap map : buildMaps()) {
+            List<StructureDefinition> profiles;
+            if (incrementalBuild.isUpToDate(map)) {
+                profiles = incrementalBuild.loadProfiles(map);
+            } else {
+                profiles = new ArrayList<>();
+                for (int i = 0; i < profileCounts.getOrDefault(map.getName(), 2); i++) {
+                    StructureDefinition profile = new StructureDefinition();
+                    profile.setName(map.getName() + i);
+                    profile.setUrl("http://opencimi.org/fhir/" + profile.getName());
+                    try (Writer writer = Files.newBufferedWriter(output.resolve(ProfileOutputWriter.getFileName(profile)), StandardCharsets.UTF_8)) {
+                        context.newJsonParser().encodeResourceToWriter(profile, writer);
+                    }
+                    profiles.add(profile);
+                }
+            }
+            incrementalBuild.recordProfiles(map, profiles);
+        }
+        incrementalBuild.save();
+        assertEquals(true, Files.exists(output.resolve(BuildManifest.FILE_NAME)));
+    }
+}
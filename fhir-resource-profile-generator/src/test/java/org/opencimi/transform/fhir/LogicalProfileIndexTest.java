@@ -0,0 +1,76 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class LogicalProfileIndexTest {
+
+    private static final String BASE_URL = "http://opencimi.org/logical-model/fhir/";
+
+    private final FhirContext context = FhirContext.forR4();
+
+    @Test
+    public void profilesAreIndexedInOrder() {
+        List<StructureDefinition> profiles = Arrays.asList(createProfile("QUANTITY", null), createProfile("DOSAGE", "QUANTITY"));
+        LogicalProfileIndex index = LogicalProfileIndex.of(context, profiles);
+
+        assertEquals(Arrays.asList(BASE_URL + "QUANTITY", BASE_URL + "DOSAGE"), Arrays.asList(index.getUrls().toArray()));
+        assertEquals("DOSAGE", index.getName(BASE_URL + "DOSAGE"));
+        assertEquals(BASE_URL + "DOSAGE", index.getUrl("DOSAGE"));
+        assertEquals(Collections.singleton(BASE_URL + "QUANTITY"), index.getReferences(BASE_URL + "DOSAGE"));
+        assertEquals(Collections.emptySet(), index.getReferences(BASE_URL + "QUANTITY"));
+        assertNotEquals(index.getHash(BASE_URL + "QUANTITY"), index.getHash(BASE_URL + "DOSAGE"));
+        assertEquals(index.getHash(BASE_URL + "DOSAGE"), LogicalProfileIndex.of(context, profiles).getHash(BASE_URL + "DOSAGE"));
+        assertNull(index.getProfile(BASE_URL + "PARTY"));
+    }
+
+    @Test
+    public void validationSupportResolvesIndexedProfiles() {
+        LogicalProfileIndex index = LogicalProfileIndex.of(context, Collections.singletonList(createProfile("QUANTITY", null)));
+        LogicalProfileValidationSupport validationSupport = new LogicalProfileValidationSupport(index);
+
+        assertEquals("QUANTITY", validationSupport.fetchStructureDefinition(context, BASE_URL + "QUANTITY").getName());
+        assertEquals("QUANTITY", validationSupport.fetchResource(context, StructureDefinition.class, BASE_URL + "QUANTITY").getName());
+        assertNull(validationSupport.fetchStructureDefinition(context, BASE_URL + "PARTY"));
+    }
+
+    private StructureDefinition createProfile(String className, String elementClassName) {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setName(className);
+        profile.setUrl(BASE_URL + className);
+        profile.getSnapshot().addElement().setPath(className);
+        if (elementClassName != null) {
+            profile.getSnapshot().addElement().setPath(className + ".value").addType().setCode(BASE_URL + elementClassName);
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class ProfileOutputWriterTest {
+
+    private static final FhirContext context = FhirContext.forR4();
+
+    @Rule
+    public TemporaryFolder outputDirectory = new TemporaryFolder();
+
+    @Test
+    public void writesEveryProfileAndNoTemporaryFiles() throws Exception {
+        try (ProfileOutputWriter writer = new ProfileOutputWriter(context, outputDirectory.getRoot().toPath(), 3, 4, 2, true)) {
+            for (int i = 0; i < 20; i++) {
+                writer.write(createProfile("Profile" + i, "http://opencimi.org/fhir/Profile" + i));
+            }
+        }
+
+        String[] files = outputDirectory.getRoot().list();
+        Arrays.sort(files);
+        assertEquals(20, files.length);
+        for (String file : files) {
+            assertEquals(true, file.startsWith("Profile") && file.endsWith(".json"));
+        }
+        assertEquals("http://opencimi.org/fhir/Profile7", read("Profile7.json").getUrl());
+    }
+
+    @Test
+    public void lastProfileWithTheSameNameWins() throws Exception {
+        try (ProfileOutputWriter writer = new ProfileOutputWriter(context, outputDirectory.getRoot().toPath(), 4, 8, 3, false)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(createProfile("Shared", "http://opencimi.org/fhir/Shared" + i));
+            }
+        }
+
+        assertEquals(1, outputDirectory.getRoot().list().length);
+        assertEquals("http://opencimi.org/fhir/Shared9", read("Shared.json").getUrl());
+    }
+
+    @Test
+    public void existingFilesAreReplacedWithTheirPermissions() throws Exception {
+        Path root = outputDirectory.getRoot().toPath();
+        assumeTrue(root.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path existing = root.resolve("Existing.json");
+        Files.write(existing, "stale".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(existing, PosixFilePermissions.fromString("rw-r-----"));
+
+        try (ProfileOutputWriter writer = new ProfileOutputWriter(context, root, 2, 4, 2, false)) {
+            writer.write(createProfile("Existing", "http://opencimi.org/fhir/Existing"));
+            writer.write(createProfile("New", "http://opencimi.org/fhir/New"));
+        }
+
+        assertEquals(2, outputDirectory.getRoot().list().length);
+        assertEquals("http://opencimi.org/fhir/Existing", read("Existing.json").getUrl());
+        assertEquals(PosixFilePermissions.fromString("rw-r-----"), Files.getPosixFilePermissions(existing));
+        assertEquals(ProfileOutputWriter.FILE_PERMISSIONS, Files.getPosixFilePermissions(root.resolve("New.json")));
+    }
+
+    private StructureDefinition createProfile(String name, String url) {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setName(name);
+        profile.setUrl(url);
+        return profile;
+    }
+
+    private StructureDefinition read(String fileName) throws Exception {
+        try (Reader reader = new FileReader(new File(outputDirectory.getRoot(), fileName))) {
+            return context.newJsonParser().parseResource(StructureDefinition.class, reader);
+        }
+    }
+}
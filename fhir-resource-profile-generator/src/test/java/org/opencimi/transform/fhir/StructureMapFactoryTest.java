@@ -0,0 +1,75 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.junit.Test;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.parser.TransformationDeserializer;
+import org.opencimi.transform.utils.metrics.PipelineMetrics;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StructureMapFactoryTest {
+
+    private final IParser parser = FhirContext.forR4().newJsonParser();
+    private final List<ModelTransform> transforms = new TransformationDeserializer().loadFromClassPath("/mapping/maps/CimiTransformations.xml");
+
+    @Test
+    public void cachedMapsAreCopies() {
+        StructureMapFactory factory = new StructureMapFactory(ConversionHandlerRegistry.createDefault());
+        ModelTransform transform = transforms.get(0);
+
+        StructureMap first = factory.toStructureMap(transform, PipelineMetrics.NOOP);
+        first.setName("Modified");
+        StructureMap second = factory.toStructureMap(transform, PipelineMetrics.NOOP);
+
+        assertNotSame(first, second);
+        assertEquals(transform.getName(), second.getName());
+        assertSame(factory.compile(transform), factory.compile(new TransformationDeserializer().loadFromClassPath("/mapping/maps/CimiTransformations.xml").get(0)));
+    }
+
+    @Test
+    public void registeredHandlersReplaceTheDefaultOnes() {
+        ConversionHandlerRegistry registry = ConversionHandlerRegistry.createDefault();
+        StructureMapFactory factory = new StructureMapFactory(registry);
+        ModelTransform transform = transforms.get(0);
+        String defaultMap = parser.encodeResourceToString(factory.toStructureMap(transform, PipelineMetrics.NOOP));
+
+        registry.register("copy", (rule, target, compiledRule) -> target.setTransform(StructureMap.StructureMapTransform.TRUNCATE));
+        StructureMap map = factory.toStructureMap(transform, PipelineMetrics.NOOP);
+
+        assertEquals(StructureMap.StructureMapTransform.TRUNCATE, map.getGroup().get(0).getRule().get(0).getTarget().get(0).getTransform());
+        assertEquals(defaultMap, parser.encodeResourceToString(StructureMapFactory.build(transform)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownConversionsFailToCompile() {
+        ModelTransform transform = transforms.get(0);
+        new StructureMapFactory(new ConversionHandlerRegistry()).compile(transform);
+    }
+}
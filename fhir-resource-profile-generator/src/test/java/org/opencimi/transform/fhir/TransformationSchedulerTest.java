@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransformationSchedulerTest {
+
+    private static final String BASE_URL = "http://opencimi.org/logical-model/fhir/";
+
+    private final FhirContext context = FhirContext.forR4();
+
+    @Test
+    public void independentMapsShareALevel() {
+        StructureMap codedText = createMap("CodedTextMap", "CODED_TEXT");
+        StructureMap quantity = createMap("QuantityMap", "QUANTITY");
+        StructureMap statement = createMap("MedicationOrderMap", "MedicationOrderStatement");
+
+        List<StructureDefinition> logicalProfiles = new ArrayList<>();
+        logicalProfiles.add(createProfile("CODED_TEXT", null));
+        logicalProfiles.add(createProfile("QUANTITY", null));
+        logicalProfiles.add(createProfile("DOSAGE", "QUANTITY"));
+        logicalProfiles.add(createProfile("MedicationOrderStatement", "DOSAGE"));
+
+        List<List<StructureMap>> levels = new TransformationScheduler(LogicalProfileIndex.of(context, logicalProfiles)).schedule(Arrays.asList(statement, codedText, quantity));
+
+        assertEquals(2, levels.size());
+        assertEquals(Arrays.asList(codedText, quantity), levels.get(0));
+        assertEquals(Arrays.asList(statement), levels.get(1));
+    }
+
+    @Test
+    public void importedMapsRunFirst() {
+        StructureMap importing = createMap("ImportingMap", "A");
+        StructureMap imported = createMap("ImportedMap", "B");
+        importing.addImport(imported.getUrl());
+
+        List<List<StructureMap>> levels = new TransformationScheduler(LogicalProfileIndex.of(context, new ArrayList<>())).schedule(Arrays.asList(importing, imported));
+
+        assertEquals(Arrays.asList(Arrays.asList(imported), Arrays.asList(importing)), levels);
+    }
+
+    @Test
+    public void cyclesKeepTheOriginalOrder() {
+        StructureMap first = createMap("FirstMap", "A");
+        StructureMap second = createMap("SecondMap", "B");
+        first.addImport(second.getUrl());
+        second.addImport(first.getUrl());
+
+        List<List<StructureMap>> levels = new TransformationScheduler(LogicalProfileIndex.of(context, new ArrayList<>())).schedule(Arrays.asList(first, second));
+
+        assertEquals(Arrays.asList(Arrays.asList(first), Arrays.asList(second)), levels);
+    }
+
+    private StructureMap createMap(String name, String sourceClass) {
+        StructureMap map = new StructureMap();
+        map.setName(name);
+        map.setUrl(StructureMapFactory.STRUCTURE_MAP_URI_BASE + name.toLowerCase());
+        map.addStructure().setUrl(BASE_URL + sourceClass).setMode(StructureMap.StructureMapModelMode.SOURCE);
+        return map;
+    }
+
+    private StructureDefinition createProfile(String className, String elementClassName) {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setUrl(BASE_URL + className);
+        profile.getSnapshot().addElement().setPath(className);
+        if (elementClassName != null) {
+            profile.getSnapshot().addElement().setPath(className + ".value").addType().setCode(BASE_URL + elementClassName);
+        }
+        return profile;
+    }
+}
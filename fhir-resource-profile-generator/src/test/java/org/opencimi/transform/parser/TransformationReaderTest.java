@@ -97,4 +97,18 @@ public class TransformationReaderTest {
 
     }
 
+    @Test
+    public void iterateReadsTransformationsOnDemand() throws Exception {
+        List<ModelTransform> transforms = transformationReader.loadFromClassPath("/mapping/maps/CimiTransformations.xml");
+        try (TransformationDeserializer.TransformationIterator iterator = transformationReader.iterate(getClass().getResourceAsStream("/mapping/maps/CimiTransformations.xml"), "CimiTransformations.xml")) {
+            for (ModelTransform transform : transforms) {
+                assertTrue(iterator.hasNext());
+                ModelTransform streamed = iterator.next();
+                assertEquals(transform.getName(), streamed.getName());
+                assertEquals(transform.getRuleGroupList().get(0).getRules().size(), streamed.getRuleGroupList().get(0).getRules().size());
+            }
+            assertFalse(iterator.hasNext());
+        }
+    }
+
 }
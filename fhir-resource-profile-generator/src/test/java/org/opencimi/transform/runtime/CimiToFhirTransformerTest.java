@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.runtime;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.UriType;
+import org.junit.Test;
+import org.opencimi.transform.parser.TransformationDeserializer;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CimiToFhirTransformerTest {
+
+    private final CimiToFhirTransformer transformer = new CimiToFhirTransformer(FhirContext.forR4(),
+            new TransformationDeserializer().loadFromClassPath("/mapping/maps/CimiTransformations.xml"));
+    private final CimiToFhirTransformer runtimeTransformer = new CimiToFhirTransformer(FhirContext.forR4(),
+            new TransformationDeserializer().loadFromClassPath("/mapping/RuntimeTransformations.xml"));
+
+    @Test
+    public void codedTextIsTransformedIntoCoding() {
+        CimiInstance codedText = new CimiInstance("CODED_TEXT")
+                .set("code", "1049630")
+                .set("term", "diphenhydramine hydrochloride 25 MG Oral Tablet")
+                .set("terminology_id", "http://www.nlm.nih.gov/research/umls/rxnorm")
+                .set("terminology_version", "2018-01")
+                .set("uri", "urn:oid:2.16.840.1.113883.6.88");
+
+        TransformationResult result = transformer.transform(codedText);
+
+        Coding coding = (Coding) result.getTarget();
+        assertEquals("1049630", coding.getCode());
+        assertEquals("diphenhydramine hydrochloride 25 MG Oral Tablet", coding.getDisplay());
+        assertEquals("http://www.nlm.nih.gov/research/umls/rxnorm", coding.getSystem());
+        assertEquals("2018-01", coding.getVersion());
+        Extension extension = coding.getExtension().get(0);
+        assertEquals(RuntimeConversionRegistry.EXTENSION_URL_BASE + "uri", extension.getUrl());
+        assertEquals("urn:oid:2.16.840.1.113883.6.88", extension.getValue().primitiveValue());
+        assertTrue(result.getReferencedResources().isEmpty());
+    }
+
+    @Test
+    public void plansAreReusedAcrossInstances() {
+        for (String code : Arrays.asList("a", "b", "c")) {
+            Coding coding = (Coding) transformer.transform(new CimiInstance("CODED_TEXT").set("code", code)).getTarget();
+            assertEquals(code, coding.getCode());
+            assertTrue(coding.getExtension().isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void instancesWithoutTransformationAreRejected() {
+        transformer.transform(new CimiInstance("PARTY"));
+    }
+
+    @Test
+    public void castCreatesElementsOfTheTargetType() {
+        Identifier identifier = (Identifier) runtimeTransformer.transform(new CimiInstance("IDENTIFIER")
+                .set("value", "12345")
+                .set("system", "urn:oid:2.16.840.1.113883.4.1")).getTarget();
+
+        assertTrue(identifier.getSystemElement() instanceof UriType);
+        assertEquals("urn:oid:2.16.840.1.113883.4.1", identifier.getSystem());
+
+        //Instances are cast through the plan of their class
+        Encounter encounter = (Encounter) runtimeTransformer.transform(new CimiInstance("Encounter")
+                .set("period", new CimiInstance("INTERVAL_VALUE").set("lower", "2018-01-01").set("upper", "2018-01-03"))).getTarget();
+
+        assertEquals("2018-01-01", encounter.getPeriod().getStartElement().getValueAsString());
+        assertEquals("2018-01-03", encounter.getPeriod().getEndElement().getValueAsString());
+    }
+
+    @Test
+    public void nestedInstancesAreTransformedWithTheirOwnPlan() {
+        CimiInstance order = new CimiInstance("MedicationOrderStatement")
+                .set("identifier", Arrays.asList(
+                        new CimiInstance("IDENTIFIER").set("value", "a"),
+                        new CimiInstance("IDENTIFIER").set("value", "b").set("system", "http://example.org/orders")));
+
+        MedicationRequest request = (MedicationRequest) runtimeTransformer.transform(order).getTarget();
+
+        assertEquals(2, request.getIdentifier().size());
+        assertEquals("a", request.getIdentifier().get(0).getValue());
+        assertEquals("b", request.getIdentifier().get(1).getValue());
+        assertEquals("http://example.org/orders", request.getIdentifier().get(1).getSystem());
+    }
+
+    @Test
+    public void referencesPointAtTheReferencedResources() {
+        CimiInstance order = new CimiInstance("MedicationOrderStatement")
+                .set("encounter", new CimiInstance("Encounter").set("identifier", new CimiInstance("IDENTIFIER").set("value", "visit-1")));
+
+        TransformationResult result = runtimeTransformer.transform(order);
+
+        assertEquals(1, result.getReferencedResources().size());
+        Encounter encounter = (Encounter) result.getReferencedResources().get(0);
+        assertEquals("visit-1", encounter.getIdentifier().get(0).getValue());
+        MedicationRequest request = (MedicationRequest) result.getTarget();
+        assertEquals("Encounter/" + encounter.getIdElement().getIdPart(), request.getContext().getReference());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void valuesThatAreNotInstancesCannotBeReferenced() {
+        runtimeTransformer.transform(new CimiInstance("MedicationOrderStatement").set("encounter", "visit-1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void instancesTransformedIntoAnotherTypeCannotBeReferenced() {
+        runtimeTransformer.transform(new CimiInstance("MedicationOrderStatement").set("encounter", new CimiInstance("Patient")));
+    }
+}
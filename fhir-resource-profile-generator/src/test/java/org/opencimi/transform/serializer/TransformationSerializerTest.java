@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.serializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencimi.transform.ModelAttribute;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.OperationParameter;
+import org.opencimi.transform.RuleGroup;
+import org.opencimi.transform.RuleSource;
+import org.opencimi.transform.RuleTarget;
+import org.opencimi.transform.TransformInput;
+import org.opencimi.transform.TypeConversion;
+import org.opencimi.transform.parser.TransformationDeserializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransformationSerializerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TransformationSerializer serializer = new TransformationSerializer();
+    private final TransformationDeserializer deserializer = new TransformationDeserializer();
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<ModelTransform> transforms = deserializer.loadFromClassPath("/mapping/maps/CimiTransformations.xml");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.write(transforms, out);
+        List<ModelTransform> readBack = deserializer.load(new ByteArrayInputStream(out.toByteArray()), "roundTrip");
+
+        assertEquals(describe(transforms), describe(readBack));
+    }
+
+    @Test
+    public void roundTripCompressedFileWithEscapedValues() throws Exception {
+        ModelTransform transform = new ModelTransform("A<B & \"C\"");
+        transform.setSource(new TransformInput("CIMI", "CODED_TEXT", null));
+        transform.setTarget(new TransformInput("FHIR", "Coding", "http://hl7.org/fhir/StructureDefinition/Coding?a=1&b=2"));
+        RuleGroup ruleGroup = new RuleGroup();
+        transform.addRuleGroup(ruleGroup);
+        org.opencimi.transform.Rule rule = new org.opencimi.transform.Rule();
+        ruleGroup.addRule(rule);
+        RuleSource source = new RuleSource();
+        source.addAttribute(new ModelAttribute("code"));
+        rule.addSource(source);
+        TypeConversion typeConversion = new TypeConversion("cast");
+        typeConversion.setNamespace("fhir");
+        OperationParameter parameter = new OperationParameter();
+        parameter.setName("targetType");
+        parameter.setValue("<uri>");
+        typeConversion.addOperationParameter(parameter);
+        RuleTarget target = new RuleTarget(typeConversion);
+        target.addAttribute(new ModelAttribute("system"));
+        rule.addTarget(target);
+
+        Path file = folder.getRoot().toPath().resolve("transformations.xml.gz");
+        serializer.write(Collections.singletonList(transform), file);
+        List<ModelTransform> readBack = deserializer.loadFromFilePath(file.toString());
+
+        assertEquals(describe(Collections.singletonList(transform)), describe(readBack));
+        assertNull(readBack.get(0).getSource().getContraintIdentifier());
+    }
+
+    /**
+     * Renders every field of the transformations so two lists can be
+     * compared with a single assertion.
+     */
+    private static String describe(List<ModelTransform> transforms) {
+        StringBuilder builder = new StringBuilder();
+        for (ModelTransform transform : transforms) {
+            builder.append(transform.getName()).append('|')
+                .append(describe(transform.getSource())).append('|')
+                .append(describe(transform.getTarget())).append('\n');
+            for (RuleGroup ruleGroup : transform.getRuleGroupList()) {
+                builder.append(" group\n");
+                for (org.opencimi.transform.Rule rule : ruleGroup.getRules()) {
+                    builder.append("  rule\n");
+                    for (RuleSource source : rule.getSources()) {
+                        builder.append("   source");
+                        source.getAttributeList().forEach(attribute -> builder.append(' ').append(attribute.getName()));
+                        builder.append('\n');
+                    }
+                    for (RuleTarget target : rule.getTargets()) {
+                        builder.append("   target");
+                        target.getAttributeList().forEach(attribute -> builder.append(' ').append(attribute.getName()));
+                        TypeConversion typeConversion = target.getTypeConversion();
+                        if (typeConversion != null) {
+                            builder.append(" ").append(typeConversion.getNamespace()).append(':').append(typeConversion.getType());
+                            typeConversion.getOperationParameterList().forEach(parameter -> builder.append(' ').append(parameter.getName()).append('=').append(parameter.getValue()));
+                        }
+                        builder.append('\n');
+                    }
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String describe(TransformInput input) {
+        return input == null ? "null" : input.getModel() + "," + input.getClassName() + "," + input.getContraintIdentifier();
+    }
+}
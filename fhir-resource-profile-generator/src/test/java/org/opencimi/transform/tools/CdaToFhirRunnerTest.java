@@ -0,0 +1,84 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencimi.transform.cda.CdaToFhirTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CdaToFhirRunnerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void documentsOfAnArchiveAreTransformed() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4();
+        CdaToFhirTransformer transformer = new CdaToFhirTransformer(fhirContext,
+                CdaToFhirTransformer.loadDefinitions(Paths.get(getClass().getResource("/cda/definitions").toURI()), fhirContext));
+        byte[] note = Files.readAllBytes(Paths.get(getClass().getResource("/cda/note.xml").toURI()));
+        Path archive = folder.getRoot().toPath().resolve("documents.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "notes/first.xml", note);
+            addEntry(zip, "notes/second.xml", note);
+            addEntry(zip, "notes/readme.txt", "Not a document".getBytes(StandardCharsets.UTF_8));
+            addEntry(zip, "broken.xml", "<Observation xmlns=\"urn:hl7-org:v3\"/>".getBytes(StandardCharsets.UTF_8));
+        }
+        Path output = folder.getRoot().toPath().resolve("bundles");
+        ByteArrayOutputStream progress = new ByteArrayOutputStream();
+
+        int failures = new CdaToFhirRunner(fhirContext, transformer, 2).run(archive, output, new PrintStream(progress, true, "UTF-8"));
+
+        assertEquals(1, failures);
+        assertTrue(new String(progress.toByteArray(), StandardCharsets.UTF_8).contains("broken.xml: "));
+        assertFalse(Files.exists(output.resolve("broken.json")));
+        for (String name : new String[]{"notes_first.json", "notes_second.json"}) {
+            try (Reader reader = Files.newBufferedReader(output.resolve(name), StandardCharsets.UTF_8)) {
+                Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, reader);
+                assertEquals(Bundle.BundleType.DOCUMENT, bundle.getType());
+            }
+        }
+        assertEquals(2, output.toFile().list().length);
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, byte[] content) throws Exception {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CimiToFhirDaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void clientTalksToTheDaemonThroughThePortFile() throws Exception {
+        Path portFile = folder.getRoot().toPath().resolve("daemon.port");
+        CimiToFhirDaemon daemon = new CimiToFhirDaemon(portFile);
+        daemon.start();
+        Thread server = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        server.start();
+
+        List<String> portFileLines = Files.readAllLines(portFile, StandardCharsets.UTF_8);
+        assertEquals(String.valueOf(daemon.getPort()), portFileLines.get(0));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CimiToFhirDaemonClient client = new CimiToFhirDaemonClient(portFile);
+        assertTrue(client.ping(new PrintStream(output, true)));
+        assertFalse(client.run(folder.getRoot().toPath().resolve("missing-config.xml").toString(), false, new PrintStream(output, true)));
+
+        assertTrue(client.shutdown(new PrintStream(output, true)));
+        server.join(10000);
+        assertFalse(server.isAlive());
+        assertFalse(Files.exists(portFile));
+    }
+}
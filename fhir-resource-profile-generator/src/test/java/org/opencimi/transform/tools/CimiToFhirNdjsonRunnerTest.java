@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencimi.transform.parser.TransformationDeserializer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CimiToFhirNdjsonRunnerTest {
+
+    private static final String SWEC_CONTEXT = "http://opencimi.org/fhir/extension/swecContext";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void outputIsChunkedByResourceTypeInInputOrder() throws Exception {
+        FhirContext fhirContext = FhirContext.forR4();
+        CimiToFhirNdjsonRunner runner = new CimiToFhirNdjsonRunner(fhirContext,
+                new TransformationDeserializer().loadFromClassPath(CimiToFhirNdjsonRunner.DEFAULT_TRANSFORMATIONS), 3, 1000);
+        StringBuilder input = new StringBuilder();
+        int count = CimiToFhirNdjsonRunner.BATCH_SIZE * 5 + 7;
+        for (int i = 0; i < count; i++) {
+            input.append("{\"cimiType\": \"MedicationOrderStatement\", \"context\": \"").append(i).append("\"}\n");
+        }
+        input.append("{\"cimiType\": \"CODED_TEXT\", \"code\": \"x\"}\n");
+        input.append("not json\n");
+        Path output = folder.newFolder().toPath();
+
+        CimiToFhirNdjsonRunner.Summary summary = runner.run(new BufferedReader(new StringReader(input.toString())), output,
+                new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(count + 2, summary.getRecords());
+        assertEquals(2, summary.getErrors());
+        List<String> lines = new ArrayList<>();
+        for (int chunk = 1; chunk <= 3; chunk++) {
+            Path file = output.resolve("MedicationRequest." + chunk + ".ndjson");
+            assertTrue(Files.exists(file));
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        assertEquals(count, lines.size());
+        for (int i = 0; i < count; i++) {
+            MedicationRequest request = fhirContext.newJsonParser().parseResource(MedicationRequest.class, lines.get(i));
+            assertEquals(String.valueOf(i), request.getExtensionByUrl(SWEC_CONTEXT).getValue().primitiveValue());
+            assertTrue(request.hasIdElement());
+        }
+        List<String> errors = Files.readAllLines(output.resolve(NdjsonChunkWriter.ERRORS_FILE_NAME), StandardCharsets.UTF_8);
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0).startsWith("line " + (count + 1) + ":"));
+        assertTrue(errors.get(1).startsWith("line " + (count + 2) + ":"));
+    }
+}
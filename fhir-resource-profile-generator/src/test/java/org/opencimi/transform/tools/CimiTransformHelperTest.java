@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * OpenCIMI - OpenCIMI CIMI-to-FHIR Translation Utilities
+ * %%
+ * Copyright (C) 2016 - 2017 Cognitive Medical Systems
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ * Author: Claude Nanjo
+ */
+package org.opencimi.transform.tools;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openehr.bmm.core.BmmClass;
+import org.openehr.bmm.core.BmmModel;
+import org.openehr.bmm.core.BmmProperty;
+import org.opencimi.transform.ModelTransform;
+import org.opencimi.transform.Rule;
+import org.opencimi.transform.TypeConversion;
+import org.opencimi.transform.parser.TransformationDeserializer;
+import org.opencimi.transform.utils.metrics.InMemoryPipelineMetrics;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CimiTransformHelperTest {
+
+    //The May 2017 ballot calls the statement base class BaseClinicalStatement,
+    //the test schema adds the ClinicalStatement class the helper flattens
+    private static final String[] BMM_FILES = {
+        "CIMI_RM_CORE.v.0.0.2.bmm",
+        "CIMI_RM_FOUNDATION.v.0.0.2.bmm",
+        "CIMI_RM_CLINICAL.v.0.0.2.bmm",
+        "CIMI_RM_TEST.v.0.0.2.bmm"
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CimiTransformHelper helper;
+    private InMemoryPipelineMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder config = new StringBuilder("<configuration>\n    <bmmFiles>\n");
+        for (String bmmFile : BMM_FILES) {
+            Path file = folder.getRoot().toPath().resolve(bmmFile);
+            try (InputStream in = CimiTransformHelperTest.class.getResourceAsStream("/bmm/ballot_may_2017/" + bmmFile)) {
+                Files.copy(in, file);
+            }
+            config.append("        <bmmFile name=\"").append(file).append("\"/>\n");
+        }
+        config.append("    </bmmFiles>\n")
+            .append("    <clinicalStatements>\n")
+            .append("        <clinicalStatement name=\"MedicationOrderStatement\" topic=\"MedicationAct\" context=\"MedicationOrder\"/>\n")
+            .append("    </clinicalStatements>\n")
+            .append("    <outputDirectory name=\"").append(folder.getRoot()).append("/\"/>\n")
+            .append("</configuration>\n");
+        Path configFile = folder.getRoot().toPath().resolve("config.xml");
+        Files.write(configFile, config.toString().getBytes(StandardCharsets.UTF_8));
+
+        metrics = new InMemoryPipelineMetrics();
+        helper = new CimiTransformHelper(configFile.toString());
+        helper.setMetrics(metrics);
+        helper.initialize();
+    }
+
+    @Test
+    public void boundStatementsKeepTheirPropertiesAndOrder() {
+        BmmModel model = helper.getBmmModel();
+
+        //Flattened the way statements were bound before the classes were cached
+        BmmClass expected = model.getClassDefinition("ClinicalStatement").flattenBmmClass();
+        Map<String, BmmProperty> expectedProperties = expected.getProperties();
+        expectedProperties.remove("topic");
+        expectedProperties.remove("context");
+        expectedProperties.putAll(model.getClassDefinition("MedicationAct").flattenBmmClass().getProperties());
+        expectedProperties.putAll(model.getClassDefinition("MedicationOrder").flattenBmmClass().getProperties());
+
+        BmmClass statement = model.getClassDefinition("MedicationOrderStatement");
+        assertFalse(statement.getProperties().isEmpty());
+        assertEquals(new ArrayList<>(expectedProperties.keySet()), new ArrayList<>(statement.getProperties().keySet()));
+    }
+
+    @Test
+    public void classesAreFlattenedOncePerModel() {
+        helper.getBmmModel();
+        long flattenedClasses = metrics.getCounters().get("bmm.flatten.classes");
+        assertEquals(3, flattenedClasses);
+
+        BmmClass statement = helper.flattenClinicalStatement("OtherMedicationOrderStatement", "MedicationAct", "MedicationOrder");
+
+        assertEquals("OtherMedicationOrderStatement", statement.getName());
+        assertEquals(flattenedClasses, (long) metrics.getCounters().get("bmm.flatten.classes"));
+        assertEquals(2, (long) metrics.getTimerCounts().get("bmm.flatten"));
+    }
+
+    @Test
+    public void templatesCastPropertiesOfMappedTypes() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("templates.xml.gz");
+
+        int count = helper.createTransformationTemplates(file);
+
+        List<ModelTransform> transforms = new TransformationDeserializer().loadFromFilePath(file.toString());
+        assertEquals(count, transforms.size());
+        assertTrue(transforms.stream().anyMatch(transform -> "MedicationOrderStatementTransform".equals(transform.getName())));
+        ModelTransform electronicContact = transforms.stream()
+            .filter(transform -> "ElectronicContactTransform".equals(transform.getName()))
+            .findFirst()
+            .orElseThrow(() -> new AssertionError("No template for ElectronicContact"));
+        assertEquals("TBD", electronicContact.getTarget().getClassName());
+
+        //CODED_TEXT is mapped to CodeableConcept
+        TypeConversion use = getTypeConversion(electronicContact, "use");
+        assertEquals("fhir", use.getNamespace());
+        assertEquals("cast", use.getType());
+        assertEquals(1, use.getOperationParameterList().size());
+        assertEquals("targetType", use.getOperationParameterList().get(0).getName());
+        assertEquals("CodeableConcept", use.getOperationParameterList().get(0).getValue());
+
+        //TEXT is not mapped
+        TypeConversion preferredTiming = getTypeConversion(electronicContact, "preferredTiming");
+        assertEquals("copy", preferredTiming.getType());
+        assertTrue(preferredTiming.getOperationParameterList().isEmpty());
+    }
+
+    private TypeConversion getTypeConversion(ModelTransform transform, String propertyName) {
+        for (Rule rule : transform.getRuleGroupList().get(0).getRules()) {
+            if (propertyName.equals(rule.getSources().get(0).getAttributeList().get(0).getName())) {
+                return rule.getTargets().get(0).getTypeConversion();
+            }
+        }
+        throw new AssertionError("No rule for " + propertyName + " in " + transform.getName());
+    }
+}